@@ -0,0 +1,52 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Connects benchmarks to a local PostgreSQL, e.g. the one in docker-compose.yml. Connection settings are read from the
+ * system properties postgres.host, postgres.port, postgres.user, postgres.password and postgres.database, and any other
+ * provider configuration can be passed as a system property with the "benchmark." prefix.
+ */
+class BenchmarkDatabase {
+
+    static final String NAMESPACE = "lds-provider-postgres-benchmark";
+    static final ZonedDateTime VERSION = ZonedDateTime.of(2018, 1, 1, 0, 0, 0, 0, ZoneId.of("Etc/UTC"));
+
+    static PostgresPersistence open(Set<String> entities, Map<String, String> overrides) {
+        Map<String, String> configuration = new HashMap<>();
+        configuration.put("postgres.driver.host", System.getProperty("postgres.host", "localhost"));
+        configuration.put("postgres.driver.port", System.getProperty("postgres.port", "5432"));
+        configuration.put("postgres.driver.user", System.getProperty("postgres.user", "lds"));
+        configuration.put("postgres.driver.password", System.getProperty("postgres.password", "lds"));
+        configuration.put("postgres.driver.database", System.getProperty("postgres.database", "lds"));
+        System.getProperties().stringPropertyNames().stream()
+                .filter(key -> key.startsWith("benchmark.postgres."))
+                .forEach(key -> configuration.put(key.substring("benchmark.".length()), System.getProperty(key)));
+        configuration.putAll(overrides);
+        PostgresDbInitializer initializer = new PostgresDbInitializer();
+        initializer.initialize(NAMESPACE, configuration, entities, null);
+        return (PostgresPersistence) initializer.getPostgresPersistence();
+    }
+
+    static String id(int i) {
+        return String.format("%010d", i);
+    }
+
+    /**
+     * @return a document with the given number of string leaf-nodes, half of them in an array.
+     */
+    static Flowable<Fragment> document(String entity, String id, ZonedDateTime version, int fragments) {
+        return Flowable.range(0, fragments).map(i -> new Fragment(NAMESPACE, entity, id, version,
+                i % 2 == 0 ? "$.field" + i : "$.items[" + i + "].value", FragmentType.STRING, 0,
+                ("value-" + id + "-" + i).getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,59 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning stored rows back into fragments: per row for the fragment-per-row layout, and per document for
+ * the packed documents of the document storage mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"100"})
+    int fragmentsPerDocument;
+
+    FragmentLayout layout;
+    ResultSet row;
+    byte[] packedDocument;
+
+    @Setup
+    public void setup() throws SQLException {
+        layout = FragmentLayout.v1();
+        row = InMemoryResultSet.of(Integer.MAX_VALUE);
+        row.next();
+        List<Fragment> fragments = BenchmarkDatabase.document("DecodeBenchmark", "0000000001", BenchmarkDatabase.VERSION, fragmentsPerDocument)
+                .toList().blockingGet();
+        packedDocument = DocumentCodec.encode(fragments).fragments;
+    }
+
+    @Benchmark
+    public Fragment decodeRow() throws SQLException {
+        return layout.decode(row, BenchmarkDatabase.NAMESPACE, "DecodeBenchmark");
+    }
+
+    @Benchmark
+    public List<Fragment> decodePackedDocument() {
+        return DocumentCodec.decode(packedDocument, BenchmarkDatabase.NAMESPACE, "DecodeBenchmark", "0000000001", BenchmarkDatabase.VERSION);
+    }
+}
@@ -0,0 +1,48 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+
+/**
+ * Result-set of identical fragment rows in the column order of {@link FragmentLayout#v1()}, so that decoding and
+ * publishing can be measured without a database.
+ */
+class InMemoryResultSet {
+
+    static ResultSet of(int rows) {
+        Timestamp version = Timestamp.from(BenchmarkDatabase.VERSION.toInstant());
+        Integer[] indices = {3};
+        Array indicesArray = (Array) Proxy.newProxyInstance(InMemoryResultSet.class.getClassLoader(), new Class[]{Array.class},
+                (proxy, method, args) -> "getArray".equals(method.getName()) ? indices : null);
+        byte[] value = "a moderately long string value".getBytes();
+        int[] position = {0};
+        int[] fetchSize = {0};
+        return (ResultSet) Proxy.newProxyInstance(InMemoryResultSet.class.getClassLoader(), new Class[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++position[0] <= rows;
+                case "getString":
+                    return (int) args[0] == 1 ? "0000000001" : "$.items[].value";
+                case "getTimestamp":
+                    return version;
+                case "getArray":
+                    return indicesArray;
+                case "getShort":
+                    return (short) 1;
+                case "getBytes":
+                    return value;
+                case "getFetchSize":
+                    return fetchSize[0];
+                case "setFetchSize":
+                    fetchSize[0] = (int) args[0];
+                    return null;
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,95 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the hasNext/hasPrevious existence probes compared with the readAll based implementation they replaced,
+ * on an entity of documents loaded once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class NeighbourProbeBenchmark {
+
+    static final String ENTITY = "NeighbourProbeBenchmark";
+    static final ZonedDateTime SNAPSHOT = BenchmarkDatabase.VERSION.plusDays(1);
+
+    @Param({"20000"})
+    int documents;
+
+    @Param({"20"})
+    int fragmentsPerDocument;
+
+    PostgresPersistence persistence;
+    Transaction tx;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        persistence = BenchmarkDatabase.open(Set.of(ENTITY), Map.of("postgres.write.mode", "copy"));
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, BenchmarkDatabase.NAMESPACE, ENTITY, List.of()).blockingAwait();
+        persistence.createOrOverwrite(tx, Flowable.range(0, documents)
+                .concatMap(i -> BenchmarkDatabase.document(ENTITY, BenchmarkDatabase.id(i), BenchmarkDatabase.VERSION, fragmentsPerDocument)))
+                .blockingAwait();
+        tx.commit().join();
+        this.tx = persistence.createTransaction(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        this.tx.cancel();
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, BenchmarkDatabase.NAMESPACE, ENTITY, List.of()).blockingAwait();
+        tx.commit().join();
+        persistence.close();
+    }
+
+    private String randomId() {
+        return BenchmarkDatabase.id(ThreadLocalRandom.current().nextInt(documents));
+    }
+
+    @Benchmark
+    public boolean hasNextProbe() {
+        return persistence.hasNext(tx, SNAPSHOT, BenchmarkDatabase.NAMESPACE, ENTITY, randomId()).blockingGet();
+    }
+
+    @Benchmark
+    public boolean hasNextReadAll() {
+        return !persistence.readAll(tx, SNAPSHOT, BenchmarkDatabase.NAMESPACE, ENTITY, Range.firstAfter(1, randomId())).isEmpty().blockingGet();
+    }
+
+    @Benchmark
+    public boolean hasPreviousProbe() {
+        return persistence.hasPrevious(tx, SNAPSHOT, BenchmarkDatabase.NAMESPACE, ENTITY, randomId()).blockingGet();
+    }
+
+    @Benchmark
+    public boolean hasPreviousReadAll() {
+        return !persistence.readAll(tx, SNAPSHOT, BenchmarkDatabase.NAMESPACE, ENTITY, Range.lastBefore(1, randomId())).isEmpty().blockingGet();
+    }
+}
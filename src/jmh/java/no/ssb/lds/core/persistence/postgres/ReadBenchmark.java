@@ -0,0 +1,102 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of read, readAll and find on an entity of documents loaded once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReadBenchmark {
+
+    static final String ENTITY = "ReadBenchmark";
+    static final ZonedDateTime SNAPSHOT = BenchmarkDatabase.VERSION.plusDays(1);
+
+    @Param({"10000"})
+    int documents;
+
+    @Param({"20", "200"})
+    int fragmentsPerDocument;
+
+    PostgresPersistence persistence;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        persistence = BenchmarkDatabase.open(Set.of(ENTITY), Map.of("postgres.write.mode", "copy"));
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, BenchmarkDatabase.NAMESPACE, ENTITY, List.of()).blockingAwait();
+        persistence.createOrOverwrite(tx, Flowable.range(0, documents)
+                .concatMap(i -> BenchmarkDatabase.document(ENTITY, BenchmarkDatabase.id(i), BenchmarkDatabase.VERSION, fragmentsPerDocument)))
+                .blockingAwait();
+        tx.commit().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, BenchmarkDatabase.NAMESPACE, ENTITY, List.of()).blockingAwait();
+        tx.commit().join();
+        persistence.close();
+    }
+
+    private String randomId() {
+        return BenchmarkDatabase.id(ThreadLocalRandom.current().nextInt(documents));
+    }
+
+    private void consume(Transaction tx, Flowable<Fragment> fragments, Blackhole blackhole) {
+        try {
+            fragments.blockingForEach(blackhole::consume);
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) {
+        Transaction tx = persistence.createTransaction(true);
+        consume(tx, persistence.read(tx, SNAPSHOT, BenchmarkDatabase.NAMESPACE, ENTITY, randomId()), blackhole);
+    }
+
+    @Benchmark
+    public void readAllPageOf100(Blackhole blackhole) {
+        Transaction tx = persistence.createTransaction(true);
+        consume(tx, persistence.readAll(tx, SNAPSHOT, BenchmarkDatabase.NAMESPACE, ENTITY, Range.firstAfter(100, randomId())), blackhole);
+    }
+
+    @Benchmark
+    public void find(Blackhole blackhole) {
+        String id = randomId();
+        byte[] value = ("value-" + id + "-0").getBytes(StandardCharsets.UTF_8);
+        Transaction tx = persistence.createTransaction(true);
+        consume(tx, persistence.find(tx, SNAPSHOT, BenchmarkDatabase.NAMESPACE, ENTITY, "$.field0", value, Range.unbounded()), blackhole);
+    }
+}
@@ -0,0 +1,72 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-row overhead of publishing an in-memory result-set through {@link ResultSetPublisher} and flattening the
+ * batches, the way the persistence consumes it, compared with iterating the result-set directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(ResultSetPublisherBenchmark.ROWS)
+public class ResultSetPublisherBenchmark {
+
+    static final int ROWS = 10000;
+
+    @Param({"1", "32"})
+    int batchSize;
+
+    @Param({"256"})
+    int prefetch;
+
+    ResultSetPublisherFactory publishers;
+    FragmentLayout layout;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        publishers = new ResultSetPublisherFactory(2, prefetch, batchSize);
+        layout = FragmentLayout.v1();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        publishers.close();
+    }
+
+    @Benchmark
+    public void publisher(Blackhole blackhole) {
+        Flowable.fromPublisher(publishers.publisher(InMemoryResultSet.of(ROWS), rs -> layout.decode(rs, BenchmarkDatabase.NAMESPACE, "PublisherBenchmark")))
+                .concatMapIterable(batch -> batch)
+                .blockingForEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public void directIteration(Blackhole blackhole) throws Exception {
+        ResultSet resultSet = InMemoryResultSet.of(ROWS);
+        while (resultSet.next()) {
+            blackhole.consume(layout.decode(resultSet, BenchmarkDatabase.NAMESPACE, "PublisherBenchmark"));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of createOrOverwrite, one document per operation, by document size and write strategy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriteBenchmark {
+
+    static final String ENTITY = "WriteBenchmark";
+
+    @Param({"10", "100", "1000"})
+    int fragmentsPerDocument;
+
+    @Param({"100", "1000"})
+    int batchSize;
+
+    @Param({"batch", "copy"})
+    String writeMode;
+
+    PostgresPersistence persistence;
+    int nextId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        persistence = BenchmarkDatabase.open(Set.of(ENTITY), Map.of(
+                "postgres.write.mode", writeMode,
+                "postgres.write.batch.size", String.valueOf(batchSize)));
+        deleteAll();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        deleteAll();
+        persistence.close();
+    }
+
+    private void deleteAll() {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, BenchmarkDatabase.NAMESPACE, ENTITY, List.of()).blockingAwait();
+        tx.commit().join();
+    }
+
+    @Benchmark
+    public void createOrOverwrite() {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.createOrOverwrite(tx, BenchmarkDatabase.document(ENTITY, BenchmarkDatabase.id(nextId++), BenchmarkDatabase.VERSION, fragmentsPerDocument))
+                .blockingAwait();
+        tx.commit().join();
+    }
+}
@@ -1,5 +1,6 @@
 import no.ssb.lds.api.persistence.PersistenceInitializer;
 import no.ssb.lds.core.persistence.postgres.PostgresDbInitializer;
+import no.ssb.lds.core.persistence.postgres.PostgresR2dbcInitializer;
 
 module no.ssb.lds.persistence.postgres {
     requires no.ssb.lds.persistence.api;
@@ -7,11 +8,21 @@ module no.ssb.lds.persistence.postgres {
     requires com.zaxxer.hikari;
     requires org.postgresql.jdbc;
     requires java.logging;
+    requires java.management;
+    requires org.slf4j;
     requires jul_to_slf4j;
     requires io.reactivex.rxjava2;
     requires org.reactivestreams;
+    requires r2dbc.spi;
+    requires r2dbc.postgresql;
+    requires r2dbc.pool;
+    requires reactor.core;
+
+    exports no.ssb.lds.core.persistence.postgres.api;
 
     opens postgres;
+    // pool and operation metrics are exposed as MXBeans
+    opens no.ssb.lds.core.persistence.postgres to java.management;
 
-    provides PersistenceInitializer with PostgresDbInitializer;
+    provides PersistenceInitializer with PostgresDbInitializer, PostgresR2dbcInitializer;
 }
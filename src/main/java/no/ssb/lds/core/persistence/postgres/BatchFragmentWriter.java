@@ -0,0 +1,261 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes fragments using JDBC batches of INSERT statements, preceded by one set-based DELETE statement that clears any
+ * existing rows of each document version that is written. Batch boundaries are decided by a {@link WriteBatchSizer}.
+ * When the latest-version table is maintained, the highest version of each written document in a batch is also
+ * upserted into that table. Only one row per document may be upserted by a batch, as the driver rewrites the batch
+ * into a single multi-row INSERT ... ON CONFLICT, which cannot affect the same row twice.
+ * Statements are prepared per fragment table, as entities may be stored in tables of their own.
+ * <p>
+ * When unchanged documents are skipped, the fragments of each document version are held back until the version is
+ * complete, and the version is only written when its {@link ContentHashes content hash} differs from that of the
+ * version visible at its timestamp. Fragments of a document version are expected to arrive contiguously.
+ */
+class BatchFragmentWriter {
+
+    private static final int ROW_OVERHEAD_BYTES = 32;
+
+    private final PostgresTransaction tx;
+    private final FragmentLayout layout;
+    private final EntityTables entityTables;
+    private final WriteBatchSizer batchSizer;
+    private final Map<String, TableStatements> statementsByTable = new LinkedHashMap<>();
+    private final PreparedStatement latestVersionStatement; // null when the latest-version table is not maintained
+    private final boolean maintainLatestVersions;
+    private final PreparedStatement contentHashStatement; // null when unchanged documents are not skipped
+    private final Map<String, PreparedStatement> visibleHashStatementsByTable = new LinkedHashMap<>();
+    private final List<Fragment> document = new ArrayList<>();
+    private final Set<String> pendingDocumentIds = new HashSet<>();
+    private DocumentKey documentKey;
+    private int pendingContentHashes;
+    private final Set<DocumentKey> deletedDocuments = new LinkedHashSet<>();
+    private final Map<String, Timestamp> pendingLatestVersions = new LinkedHashMap<>(); // by entity/id
+    private final ArrayList<Integer> indices = new ArrayList<>();
+    private int pendingInserts;
+    private long pendingBytes;
+
+    /**
+     * Statements of one fragment table. The document versions to clear are deleted with a single set-based statement
+     * per flush, joining the table with arrays of the pending keys.
+     */
+    private static class TableStatements {
+        final PostgresTransaction tx;
+        final PreparedStatement insertStatement;
+        final PreparedStatement deleteStatement;
+        final List<String> deleteEntities = new ArrayList<>();
+        final List<String> deleteIds = new ArrayList<>();
+        final List<Long> deleteVersions = new ArrayList<>();
+        int pendingInserts;
+
+        TableStatements(PostgresTransaction tx, FragmentLayout layout, String table) throws SQLException {
+            this.tx = tx;
+            this.insertStatement = tx.prepareStatement(layout.insertSql(table));
+            this.deleteStatement = tx.prepareStatement("DELETE FROM " + table + " n " +
+                    "USING unnest(?::varchar[], ?::varchar[], ?::bigint[]) AS d(entity, id, version_millis) " +
+                    "WHERE n.entity = d.entity AND n.id = d.id AND n.version = 'epoch'::timestamptz + d.version_millis * interval '1 millisecond'");
+        }
+
+        void addDelete(String entity, String id, Timestamp version) {
+            deleteEntities.add(entity);
+            deleteIds.add(id);
+            deleteVersions.add(version.getTime());
+        }
+
+        void flush() throws SQLException {
+            if (!deleteIds.isEmpty()) {
+                deleteStatement.setArray(1, tx.connection.createArrayOf("varchar", deleteEntities.toArray()));
+                deleteStatement.setArray(2, tx.connection.createArrayOf("varchar", deleteIds.toArray()));
+                deleteStatement.setArray(3, tx.connection.createArrayOf("bigint", deleteVersions.toArray()));
+                tx.executeUpdate(deleteStatement);
+                deleteEntities.clear();
+                deleteIds.clear();
+                deleteVersions.clear();
+            }
+            if (pendingInserts > 0) {
+                tx.executeBatch(insertStatement);
+                insertStatement.clearBatch();
+                pendingInserts = 0;
+            }
+        }
+
+        void close() throws SQLException {
+            insertStatement.close();
+            deleteStatement.close();
+        }
+    }
+
+    BatchFragmentWriter(PostgresTransaction tx, FragmentLayout layout, EntityTables entityTables, WriteBatchSizer batchSizer, boolean maintainLatestVersions) throws SQLException {
+        this(tx, layout, entityTables, batchSizer, maintainLatestVersions, false);
+    }
+
+    BatchFragmentWriter(PostgresTransaction tx, FragmentLayout layout, EntityTables entityTables, WriteBatchSizer batchSizer, boolean maintainLatestVersions, boolean skipUnchanged) throws SQLException {
+        this.tx = tx;
+        this.layout = layout;
+        this.entityTables = entityTables;
+        this.batchSizer = batchSizer;
+        this.maintainLatestVersions = maintainLatestVersions;
+        this.latestVersionStatement = maintainLatestVersions ? tx.prepareStatement(LatestVersionTable.UPSERT_SQL) : null;
+        this.contentHashStatement = skipUnchanged ? tx.prepareStatement(ContentHashes.UPSERT_SQL) : null;
+    }
+
+    void write(Fragment fragment) throws SQLException {
+        if (contentHashStatement == null) {
+            append(fragment);
+            return;
+        }
+        DocumentKey key = DocumentKey.from(fragment);
+        if (documentKey != null && !documentKey.equals(key)) {
+            writeDocumentIfChanged();
+        }
+        documentKey = key;
+        document.add(fragment);
+    }
+
+    private void writeDocumentIfChanged() throws SQLException {
+        byte[] hash = ContentHashes.hash(document);
+        Timestamp version = new Timestamp(documentKey.timestamp().toInstant().toEpochMilli());
+        if (pendingDocumentIds.contains(documentKey.entity() + "/" + documentKey.id())) {
+            flush(); // the visible version may be one that is still pending
+        }
+        if (Arrays.equals(hash, visibleHash(documentKey.entity(), documentKey.id(), version))) {
+            tx.record("createOrOverwrite.unchanged-documents", 1);
+        } else {
+            for (Fragment fragment : document) {
+                append(fragment);
+            }
+            contentHashStatement.setString(1, documentKey.entity());
+            contentHashStatement.setString(2, documentKey.id());
+            contentHashStatement.setTimestamp(3, version);
+            contentHashStatement.setBytes(4, hash);
+            contentHashStatement.addBatch();
+            pendingContentHashes++;
+        }
+        document.clear();
+        documentKey = null;
+    }
+
+    private byte[] visibleHash(String entity, String id, Timestamp version) throws SQLException {
+        String table = entityTables.of(entity);
+        PreparedStatement ps = visibleHashStatementsByTable.get(table);
+        if (ps == null) {
+            ps = tx.prepareStatement(ContentHashes.visibleHashSql(table, maintainLatestVersions));
+            visibleHashStatementsByTable.put(table, ps);
+        }
+        ContentHashes.setVisibleHashParameters(ps, entity, id, version, maintainLatestVersions);
+        try (ResultSet resultSet = tx.executeQuery(ps)) {
+            return resultSet.next() ? resultSet.getBytes(1) : null;
+        }
+    }
+
+    private void append(Fragment fragment) throws SQLException {
+        if (fragment.offset() != 0) {
+            throw new IllegalStateException("Postgres fragments must have offset == 0, illegal offset: " + fragment.offset());
+        }
+        Timestamp version = new Timestamp(fragment.timestamp().toInstant().toEpochMilli());
+        TableStatements statements = statementsOf(fragment.entity());
+        PreparedStatement insertStatement = statements.insertStatement;
+        if (deletedDocuments.add(DocumentKey.from(fragment))) {
+            statements.addDelete(fragment.entity(), fragment.id(), version);
+            if (latestVersionStatement != null) {
+                pendingLatestVersions.merge(fragment.entity() + "/" + fragment.id(), version, (pending, added) -> added.after(pending) ? added : pending);
+            }
+        }
+        insertStatement.setString(1, fragment.entity());
+        insertStatement.setString(2, fragment.id());
+        insertStatement.setTimestamp(3, version);
+        indices.clear();
+        String indexUnawarePath = Fragment.computeIndexUnawarePath(fragment.path(), indices);
+        layout.setPathAndIndices(insertStatement, 4, tx, indexUnawarePath, indices);
+        insertStatement.setShort(6, (short) fragment.fragmentType().ordinal());
+        byte[] value = fragment.value();
+        insertStatement.setBytes(7, value);
+        insertStatement.addBatch();
+        statements.pendingInserts++;
+        pendingInserts++;
+        if (contentHashStatement != null) {
+            pendingDocumentIds.add(fragment.entity() + "/" + fragment.id());
+        }
+        pendingBytes += ROW_OVERHEAD_BYTES + fragment.id().getBytes(StandardCharsets.UTF_8).length + indexUnawarePath.getBytes(StandardCharsets.UTF_8).length
+                + 4L * indices.size() + (value == null ? 0 : value.length);
+        if (batchSizer.isFull(pendingInserts, pendingBytes)) {
+            flush();
+        }
+    }
+
+    private TableStatements statementsOf(String entity) throws SQLException {
+        String table = entityTables.of(entity);
+        TableStatements statements = statementsByTable.get(table);
+        if (statements == null) {
+            statements = new TableStatements(tx, layout, table);
+            statementsByTable.put(table, statements);
+        }
+        return statements;
+    }
+
+    private void flush() throws SQLException {
+        if (pendingInserts == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (TableStatements statements : statementsByTable.values()) {
+            statements.flush();
+        }
+        if (!pendingLatestVersions.isEmpty()) {
+            for (Map.Entry<String, Timestamp> entry : pendingLatestVersions.entrySet()) {
+                int separator = entry.getKey().indexOf('/');
+                LatestVersionTable.setUpsertParameters(latestVersionStatement, entry.getKey().substring(0, separator),
+                        entry.getKey().substring(separator + 1), entry.getValue(), false);
+                latestVersionStatement.addBatch();
+            }
+            tx.executeBatch(latestVersionStatement);
+            latestVersionStatement.clearBatch();
+            pendingLatestVersions.clear();
+        }
+        if (pendingContentHashes > 0) {
+            tx.executeBatch(contentHashStatement);
+            contentHashStatement.clearBatch();
+            pendingContentHashes = 0;
+        }
+        pendingDocumentIds.clear();
+        batchSizer.onFlushed(pendingInserts, pendingBytes, System.nanoTime() - start);
+        pendingInserts = 0;
+        pendingBytes = 0;
+    }
+
+    void finish() throws SQLException {
+        if (documentKey != null) {
+            writeDocumentIfChanged();
+        }
+        flush();
+        for (TableStatements statements : statementsByTable.values()) {
+            statements.close();
+        }
+        if (latestVersionStatement != null) {
+            latestVersionStatement.close();
+        }
+        if (contentHashStatement != null) {
+            contentHashStatement.close();
+        }
+        for (PreparedStatement ps : visibleHashStatementsByTable.values()) {
+            ps.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.core.persistence.postgres.api.BulkImportListener;
+import no.ssb.lds.core.persistence.postgres.api.BulkImportResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a stream of many documents using parallel workers. Documents are partitioned by the hash of their id, so that
+ * all versions of a document are written by the same worker in stream order, and each worker writes its partition in
+ * transactions of up to documentsPerTransaction documents on a connection of its own.
+ * <p>
+ * When a transaction fails, its documents are written again one per transaction, so that a failing document is
+ * reported to the listener without failing the documents it happened to share a transaction with.
+ * <p>
+ * Fragments of a document version are expected to arrive contiguously, which is how documents are serialized into
+ * fragments.
+ */
+class BulkImport {
+
+    private static final List<Fragment> END_OF_PARTITION = Collections.emptyList();
+    private static final long HAND_OVER_POLL_MILLIS = 100;
+
+    private final PostgresPersistence persistence;
+    private final int workers;
+    private final int documentsPerTransaction;
+    private final BulkImportListener listener;
+    private final AtomicLong documentsWritten = new AtomicLong();
+    private final AtomicLong documentsFailed = new AtomicLong();
+
+    BulkImport(PostgresPersistence persistence, int workers, int documentsPerTransaction, BulkImportListener listener) {
+        if (workers < 1 || documentsPerTransaction < 1) {
+            throw new IllegalArgumentException("workers and documentsPerTransaction must be positive");
+        }
+        if (workers >= persistence.transactionFactory.dataSource.getMaximumPoolSize()) {
+            throw new IllegalArgumentException("workers must leave at least one connection of the pool for other transactions, " +
+                    "pool max-size is " + persistence.transactionFactory.dataSource.getMaximumPoolSize());
+        }
+        this.persistence = persistence;
+        this.workers = workers;
+        this.documentsPerTransaction = documentsPerTransaction;
+        this.listener = listener != null ? listener : new BulkImportListener() {
+        };
+    }
+
+    /**
+     * Consumes the fragments on the calling thread and returns when every partition is written.
+     */
+    BulkImportResult run(Flowable<Fragment> fragments) {
+        long start = System.nanoTime();
+        List<BlockingQueue<List<Fragment>>> partitions = new ArrayList<>(workers);
+        List<CompletableFuture<Void>> partitionWriters = new ArrayList<>(workers);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+        try {
+            for (int i = 0; i < workers; i++) {
+                BlockingQueue<List<Fragment>> partition = new ArrayBlockingQueue<>(2 * documentsPerTransaction);
+                partitions.add(partition);
+                partitionWriters.add(CompletableFuture.runAsync(() -> writePartition(partition), executor));
+            }
+            RuntimeException failure = null;
+            try {
+                dispatch(fragments, partitions, partitionWriters);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            for (int i = 0; i < workers; i++) {
+                if (!partitionWriters.get(i).isDone()) {
+                    handOver(partitions.get(i), partitionWriters.get(i), END_OF_PARTITION);
+                }
+            }
+            for (CompletableFuture<Void> partitionWriter : partitionWriters) {
+                try {
+                    partitionWriter.join();
+                } catch (CompletionException e) {
+                    RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new PersistenceException(e.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else if (failure != cause) {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return new BulkImportResult(documentsWritten.get(), documentsFailed.get(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void dispatch(Flowable<Fragment> fragments, List<BlockingQueue<List<Fragment>>> partitions, List<CompletableFuture<Void>> partitionWriters) {
+        DocumentKey documentKey = null;
+        List<Fragment> document = new ArrayList<>();
+        Iterator<Fragment> iterator = fragments.blockingIterable().iterator();
+        while (iterator.hasNext()) {
+            Fragment fragment = iterator.next();
+            DocumentKey key = DocumentKey.from(fragment);
+            if (documentKey != null && !documentKey.equals(key)) {
+                if (!dispatch(document, partitions, partitionWriters)) {
+                    ((Disposable) iterator).dispose();
+                    return; // the failure of the partition writer is reported when it is joined
+                }
+                document = new ArrayList<>();
+            }
+            documentKey = key;
+            document.add(fragment);
+        }
+        if (!document.isEmpty()) {
+            dispatch(document, partitions, partitionWriters);
+        }
+    }
+
+    private boolean dispatch(List<Fragment> document, List<BlockingQueue<List<Fragment>>> partitions, List<CompletableFuture<Void>> partitionWriters) {
+        int partition = Math.floorMod(document.get(0).id().hashCode(), workers);
+        return handOver(partitions.get(partition), partitionWriters.get(partition), document);
+    }
+
+    /**
+     * Waits for room in the partition.
+     *
+     * @return false if the writer of the partition has stopped, which only happens when it fails.
+     */
+    private static boolean handOver(BlockingQueue<List<Fragment>> partition, CompletableFuture<Void> partitionWriter, List<Fragment> document) {
+        try {
+            while (!partition.offer(document, HAND_OVER_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (partitionWriter.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException(e);
+        }
+    }
+
+    private void writePartition(BlockingQueue<List<Fragment>> partition) {
+        List<List<Fragment>> documents = new ArrayList<>(documentsPerTransaction);
+        try {
+            for (List<Fragment> document = partition.take(); document != END_OF_PARTITION; document = partition.take()) {
+                documents.add(document);
+                if (documents.size() >= documentsPerTransaction) {
+                    write(documents);
+                    documents = new ArrayList<>(documentsPerTransaction);
+                }
+            }
+            if (!documents.isEmpty()) {
+                write(documents);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException(e);
+        }
+    }
+
+    private void write(List<List<Fragment>> documents) {
+        try {
+            writeInTransaction(documents);
+            documentsWritten.addAndGet(documents.size());
+        } catch (RuntimeException e) {
+            if (documents.size() == 1) {
+                failed(documents.get(0), e);
+            } else {
+                for (List<Fragment> document : documents) {
+                    try {
+                        writeInTransaction(List.of(document));
+                        documentsWritten.incrementAndGet();
+                    } catch (RuntimeException documentFailure) {
+                        failed(document, documentFailure);
+                    }
+                }
+            }
+        }
+        listener.onProgress(documentsWritten.get(), documentsFailed.get());
+    }
+
+    private void writeInTransaction(List<List<Fragment>> documents) {
+        try {
+            persistence.transactionFactory.runAsyncInIsolatedTransaction(tx -> {
+                persistence.createOrOverwrite(tx, Flowable.fromIterable(documents).concatMapIterable(document -> document))
+                        .blockingAwait();
+                return null;
+            }, false).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new PersistenceException(e.getCause());
+        }
+    }
+
+    private void failed(List<Fragment> document, Throwable cause) {
+        documentsFailed.incrementAndGet();
+        listener.onFailure(DocumentKey.from(document.get(0)), cause);
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "postgres-bulk-import-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
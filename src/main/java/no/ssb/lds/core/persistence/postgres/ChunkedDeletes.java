@@ -0,0 +1,220 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Set-based deletes over all documents of an entity, executed as a sequence of statements that each cover the next
+ * chunk of ids in primary-key order. Progress is made through the primary-key index without aggregating over the whole
+ * entity, and every statement deletes a bounded number of documents, which bounds the work and memory of each
+ * statement.
+ * <p>
+ * Chunking alone does not bound locks or WAL, as the row locks and dead tuples of every chunk run in one transaction
+ * are held until that transaction completes. Both operations therefore commit every chunk in a transaction of its
+ * own, so that a failure leaves the chunks before it done.
+ */class ChunkedDeletes {
+
+    private static final String BEFORE_FIRST_ID = " ";
+
+    private final String fragmentTable;
+    private final String entity;
+    private final int chunkSize;
+
+    ChunkedDeletes(String fragmentTable, String entity, int chunkSize) {
+        this.fragmentTable = fragmentTable;
+        this.entity = entity;
+        this.chunkSize = chunkSize;
+    }
+
+    @FunctionalInterface
+    private interface Chunk {
+        int run(PostgresTransaction tx, String after, String last) throws SQLException;
+    }
+
+    /**
+     * Deletes all versions of all documents of the entity from the fragment table and from the given document tables,
+     * which are keyed by entity and id like namespace_latest. Every chunk is deleted and committed in a transaction of
+     * its own, so the delete is not undone if the given transaction is cancelled. Documents with rows locked by other
+     * transactions, including the given one, are skipped by the chunks instead of waiting for them. Those documents,
+     * and the documents the given transaction wrote but has not committed, are deleted by a final pass in the given
+     * transaction.
+     *
+     * @return the number of fragment rows deleted.
+     */
+    long deleteAll(PostgresTransactionFactory transactionFactory, PostgresTransaction tx, List<String> documentTables) throws SQLException {
+        long deleted = inChunks(transactionFactory, "deleteAllEntities.fragments",
+                (chunkTx, after, last) -> deleteUnlockedDocuments(chunkTx, documentTables, after, last));
+        for (String after = BEFORE_FIRST_ID, last = lastIdOfNextChunk(tx, after); last != null; after = last, last = lastIdOfNextChunk(tx, after)) {
+            deleted += deleteRange(tx, fragmentTable, after, last, null);
+            for (String documentTable : documentTables) {
+                deleteRange(tx, documentTable, after, last, null);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes the versions of every document of the entity that are neither among its keepLatest latest versions,
+     * nor at or after keepFrom. The latest version of a document is always kept. Every chunk is deleted and committed
+     * in a transaction of its own, so a failure leaves the chunks before it purged.
+     *
+     * @param keepFrom versions at or after this time are kept, or null to keep versions by count only.
+     * @return the number of fragment rows deleted.
+     */
+    long purgeVersions(PostgresTransactionFactory transactionFactory, int keepLatest, Timestamp keepFrom, boolean purgeContentHashes) {
+        if (keepLatest < 1) {
+            throw new IllegalArgumentException("The latest version of a document must be kept, keepLatest was: " + keepLatest);
+        }
+        return inChunks(transactionFactory, "purgeVersions.fragments",
+                (tx, after, last) -> purgeVersions(tx, after, last, keepLatest, keepFrom, purgeContentHashes));
+    }
+
+    /**
+     * Runs the chunk for every chunk of ids, each in a transaction of its own that is committed before the next
+     * chunk is found.
+     *
+     * @return the sum of the chunk results.
+     */
+    private long inChunks(PostgresTransactionFactory transactionFactory, String statistic, Chunk chunk) {
+        long total = 0;
+        String after = BEFORE_FIRST_ID;
+        for (; ; ) {
+            PostgresTransaction tx = transactionFactory.createTransaction(false);
+            String last;
+            try {
+                last = lastIdOfNextChunk(tx, after);
+                if (last != null) {
+                    int result = chunk.run(tx, after, last);
+                    tx.record(statistic, result);
+                    total += result;
+                }
+            } catch (SQLException | RuntimeException e) {
+                try {
+                    tx.cancel();
+                } catch (RuntimeException cancelFailure) {
+                    e.addSuppressed(cancelFailure);
+                }
+                throw e instanceof SQLException ? new PersistenceException(e) : (RuntimeException) e;
+            }
+            tx.commit();
+            if (last == null) {
+                return total;
+            }
+            after = last;
+        }
+    }
+
+    private int purgeVersions(PostgresTransaction tx, String after, String last, int keepLatest, Timestamp keepFrom, boolean purgeContentHashes) throws SQLException {
+        int deleted;
+        try (PreparedStatement ps = tx.prepareStatement("DELETE FROM " + fragmentTable + " n USING (" +
+                "SELECT id, version FROM (" +
+                "SELECT id, version, row_number() OVER (PARTITION BY id ORDER BY version DESC) AS position " +
+                "FROM " + fragmentTable + " WHERE entity = ? AND ? < id AND id <= ? GROUP BY id, version) v " +
+                "WHERE position > ?" + (keepFrom == null ? "" : " AND version < ?") + ") p " +
+                "WHERE n.entity = ? AND n.id = p.id AND n.version = p.version")) {
+            int index = 1;
+            ps.setString(index++, entity);
+            ps.setString(index++, after);
+            ps.setString(index++, last);
+            ps.setInt(index++, keepLatest);
+            if (keepFrom != null) {
+                ps.setTimestamp(index++, keepFrom);
+            }
+            ps.setString(index, entity);
+            deleted = tx.executeUpdate(ps);
+        }
+        if (purgeContentHashes) {
+            try (PreparedStatement ps = tx.prepareStatement("DELETE FROM namespace_content_hash h " +
+                    "WHERE h.entity = ? AND ? < h.id AND h.id <= ? " +
+                    "AND NOT EXISTS (SELECT 1 FROM " + fragmentTable + " n WHERE n.entity = h.entity AND n.id = h.id AND n.version = h.version)")) {
+                ps.setString(1, entity);
+                ps.setString(2, after);
+                ps.setString(3, last);
+                tx.executeUpdate(ps);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the last id of the next chunk of at most chunkSize ids after the given id, or null if there are none.
+     */
+    private String lastIdOfNextChunk(PostgresTransaction tx, String after) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement("SELECT max(id) FROM (SELECT id FROM " + fragmentTable + " " +
+                "WHERE entity = ? AND ? < id GROUP BY id ORDER BY id LIMIT ?) c")) {
+            ps.setString(1, entity);
+            ps.setString(2, after);
+            ps.setInt(3, chunkSize);
+            try (ResultSet resultSet = tx.executeQuery(ps)) {
+                resultSet.next();
+                return resultSet.getString(1);
+            }
+        }
+    }
+
+    /**
+     * Deletes the documents of the range that no other transaction holds a lock on any row of. A document is deleted
+     * from the fragment table and the document tables alike or not at all, so that a document table never refers to
+     * versions that were deleted while others were kept.
+     */
+    private int deleteUnlockedDocuments(PostgresTransaction tx, List<String> documentTables, String after, String last) throws SQLException {
+        Set<String> lockedIds = new HashSet<>(lockRange(tx, fragmentTable, after, last));
+        for (String documentTable : documentTables) {
+            lockedIds.addAll(lockRange(tx, documentTable, after, last));
+        }
+        Array excludedIds = lockedIds.isEmpty() ? null : tx.connection.createArrayOf("varchar", lockedIds.toArray());
+        int deleted = deleteRange(tx, fragmentTable, after, last, excludedIds);
+        for (String documentTable : documentTables) {
+            deleteRange(tx, documentTable, after, last, excludedIds);
+        }
+        return deleted;
+    }
+
+    /**
+     * Locks the rows of the range that no other transaction holds a lock on.
+     *
+     * @return the ids of the range with rows that could not be locked.
+     */
+    private List<String> lockRange(PostgresTransaction tx, String table, String after, String last) throws SQLException {
+        String range = "FROM " + table + " WHERE entity = ? AND ? < id AND id <= ?";
+        try (PreparedStatement ps = tx.prepareStatement("SELECT a.id FROM (SELECT id, count(*) AS n " + range + " GROUP BY id) a " +
+                "LEFT JOIN (SELECT id, count(*) AS n FROM (SELECT id " + range + " FOR UPDATE SKIP LOCKED) r GROUP BY id) l ON l.id = a.id " +
+                "WHERE l.n IS DISTINCT FROM a.n")) {
+            ps.setString(1, entity);
+            ps.setString(2, after);
+            ps.setString(3, last);
+            ps.setString(4, entity);
+            ps.setString(5, after);
+            ps.setString(6, last);
+            List<String> ids = new ArrayList<>();
+            try (ResultSet resultSet = tx.executeQuery(ps)) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getString(1));
+                }
+            }
+            return ids;
+        }
+    }
+
+    private int deleteRange(PostgresTransaction tx, String table, String after, String last, Array excludedIds) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement("DELETE FROM " + table + " WHERE entity = ? AND ? < id AND id <= ?" +
+                (excludedIds == null ? "" : " AND NOT (id = ANY(?))"))) {
+            ps.setString(1, entity);
+            ps.setString(2, after);
+            ps.setString(3, last);
+            if (excludedIds != null) {
+                ps.setArray(4, excludedIds);
+            }
+            return tx.executeUpdate(ps);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Maintenance of the namespace_content_hash table, which holds a hash of the content of every document version
+ * written while unchanged documents are skipped. A version whose hash equals the hash of the version visible at its
+ * timestamp would not change what reads return, and is not written. Versions without a hash, such as those written
+ * before skipping was enabled and delete-markers, never match, so they are always overwritten.
+ */
+class ContentHashes {
+
+    static final String UPSERT_SQL = "INSERT INTO namespace_content_hash(entity, id, version, hash) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (entity, id, version) DO UPDATE SET hash = EXCLUDED.hash";
+
+    /**
+     * Hash of the version visible at a snapshot. Parameters are (entity, id) followed by those of the version at
+     * snapshot expression.
+     */
+    static String visibleHashSql(String fragmentTable, boolean latestVersionTable) {
+        String versionAtSnapshot = latestVersionTable
+                ? LatestVersionTable.versionAtSnapshotSql(fragmentTable)
+                : "(SELECT max(version) FROM " + fragmentTable + " WHERE entity = ? AND id = ? AND version <= ?)";
+        return "SELECT hash FROM namespace_content_hash WHERE entity = ? AND id = ? AND version = " + versionAtSnapshot;
+    }
+
+    static void setVisibleHashParameters(PreparedStatement ps, String entity, String id, Timestamp snapshot, boolean latestVersionTable) throws SQLException {
+        ps.setString(1, entity);
+        ps.setString(2, id);
+        if (latestVersionTable) {
+            LatestVersionTable.setVersionAtSnapshotParameters(ps, 3, entity, id, snapshot);
+        } else {
+            ps.setString(3, entity);
+            ps.setString(4, id);
+            ps.setTimestamp(5, snapshot);
+        }
+    }
+
+    /**
+     * SHA-256 over path, type and value of the fragments of a document version, in the order they are written.
+     */
+    static byte[] hash(List<Fragment> fragments) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Fragment fragment : fragments) {
+            digest.update(fragment.path().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update((byte) fragment.fragmentType().ordinal());
+            byte[] value = fragment.value();
+            int length = value == null ? -1 : value.length;
+            digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+            if (value != null) {
+                digest.update(value);
+            }
+        }
+        return digest.digest();
+    }
+
+    static void delete(PostgresTransaction tx, String entity, String id, Timestamp version) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement("DELETE FROM namespace_content_hash WHERE entity = ? AND id = ? AND version = ?")) {
+            ps.setString(1, entity);
+            ps.setString(2, id);
+            ps.setTimestamp(3, version);
+            tx.executeUpdate(ps);
+        }
+    }
+
+    static void deleteDocument(PostgresTransaction tx, String entity, String id) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement("DELETE FROM namespace_content_hash WHERE entity = ? AND id = ?")) {
+            ps.setString(1, entity);
+            ps.setString(2, id);
+            tx.executeUpdate(ps);
+        }
+    }
+}
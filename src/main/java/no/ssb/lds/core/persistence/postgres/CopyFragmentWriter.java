@@ -0,0 +1,173 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams fragments into a session-local staging table using binary COPY, and then merges the staged rows into the
+ * fragment table of each staged entity. Rows are encoded into a small buffer that is handed to the driver whenever it
+ * fills up, so memory use is independent of the number of fragments written.
+ * <p>
+ * See https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4 for the binary file format.
+ */
+class CopyFragmentWriter {
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+    private static final long POSTGRES_EPOCH_MICROS = 946684800000000L; // 2000-01-01T00:00:00Z
+    private static final int FLUSH_THRESHOLD_BYTES = 64 * 1024;
+
+    private final PostgresTransaction tx;
+    private final Connection connection;
+    private final FragmentLayout layout;
+    private final EntityTables entityTables;
+    private final String stagingTable;
+    private final boolean maintainLatestVersions;
+    private final CopyIn copyIn;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_THRESHOLD_BYTES + 8192);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final ArrayList<Integer> indices = new ArrayList<>();
+    private int rowCount;
+
+    CopyFragmentWriter(PostgresTransaction tx, FragmentLayout layout, EntityTables entityTables, boolean maintainLatestVersions) throws SQLException {
+        this.tx = tx;
+        this.connection = tx.connection;
+        this.layout = layout;
+        this.entityTables = entityTables;
+        this.stagingTable = layout.table + "_staging";
+        this.maintainLatestVersions = maintainLatestVersions;
+        try (Statement st = connection.createStatement()) {
+            st.execute(layout.createStagingTableSql(stagingTable));
+        }
+        this.copyIn = connection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn("COPY " + stagingTable + " (entity, id, version, path, indices, type, value) FROM STDIN (FORMAT binary)");
+        try {
+            out.write(SIGNATURE);
+            out.writeInt(0); // flags
+            out.writeInt(0); // header extension length
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void write(Fragment fragment) throws SQLException {
+        if (fragment.offset() != 0) {
+            throw new IllegalStateException("Postgres fragments must have offset == 0, illegal offset: " + fragment.offset());
+        }
+        try {
+            out.writeShort(7);
+            FragmentLayout.writeCopyText(out, fragment.entity());
+            FragmentLayout.writeCopyText(out, fragment.id());
+            out.writeInt(8);
+            out.writeLong(fragment.timestamp().toInstant().toEpochMilli() * 1000 - POSTGRES_EPOCH_MICROS);
+            indices.clear();
+            String indexUnawarePath = Fragment.computeIndexUnawarePath(fragment.path(), indices);
+            layout.writeCopyPathAndIndices(out, indexUnawarePath, indices);
+            out.writeInt(2);
+            out.writeShort(fragment.fragmentType().ordinal());
+            byte[] value = fragment.value();
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        rowCount++;
+        if (buffer.size() >= FLUSH_THRESHOLD_BYTES) {
+            flush();
+        }
+    }
+
+    private void flush() throws SQLException {
+        copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+        buffer.reset();
+    }
+
+    /**
+     * Completes the COPY operation and replaces any existing versions of the staged documents with the staged rows.
+     */
+    void finish() throws SQLException {
+        try {
+            out.writeShort(-1); // file trailer
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        flush();
+        copyIn.endCopy();
+        if (rowCount == 0) {
+            return;
+        }
+        layout.registerStagedPaths(tx, stagingTable);
+        if (entityTables.isTablePerEntity()) {
+            List<String> entities = new ArrayList<>();
+            try (Statement st = connection.createStatement(); ResultSet rs = st.executeQuery("SELECT DISTINCT entity FROM " + stagingTable)) {
+                while (rs.next()) {
+                    entities.add(rs.getString(1));
+                }
+            }
+            for (String entity : entities) {
+                merge(entityTables.of(entity), entity);
+            }
+        } else {
+            merge(entityTables.sharedTable(), null);
+        }
+        try (Statement st = connection.createStatement()) {
+            if (maintainLatestVersions) {
+                st.executeUpdate("INSERT INTO namespace_latest(entity, id, version, deleted) " +
+                        "SELECT entity, id, max(version), false FROM " + stagingTable + " GROUP BY entity, id " +
+                        LatestVersionTable.ON_CONFLICT_SQL);
+            }
+            st.executeUpdate("TRUNCATE " + stagingTable);
+        }
+    }
+
+    /**
+     * Replaces existing versions of the staged documents in the fragment table with the staged rows, limited to the
+     * given entity unless it is null.
+     */
+    private void merge(String table, String entity) throws SQLException {
+        String stagedRows = entity == null ? "" : " WHERE entity = ?";
+        try (PreparedStatement ps = connection.prepareStatement("DELETE FROM " + table + " n USING (SELECT DISTINCT entity, id, version FROM " + stagingTable + stagedRows + ") s " +
+                "WHERE n.entity = s.entity AND n.id = s.id AND n.version = s.version")) {
+            if (entity != null) {
+                ps.setString(1, entity);
+            }
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = connection.prepareStatement(layout.insertStagedSql(table, stagingTable, entity == null ? "" : " WHERE s.entity = ?"))) {
+            if (entity != null) {
+                ps.setString(1, entity);
+            }
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Aborts an unfinished COPY operation, so that the connection can be rolled back. Called on the error path and
+     * when the write is disposed, so failures are not propagated in order to preserve the original error.
+     */
+    void cancel() {
+        try {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        } catch (SQLException e) {
+            // the transaction is rolled back by the caller regardless
+        }
+    }
+}
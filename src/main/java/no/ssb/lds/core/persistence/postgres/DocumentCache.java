@@ -0,0 +1,150 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Size-bounded LRU cache of the fragments of document versions. Document versions are immutable once committed, so
+ * entries are only ever invalidated by writes through this provider.
+ * <p>
+ * An access-ordered map is modified by every hit, so the cache is split into shards by key hash, each an LRU of its
+ * own under a lock of its own. Concurrent reads of different documents then rarely wait for each other, at the cost of
+ * evicting the least recently used entry of a shard rather than of the whole cache.
+ * <p>
+ * Every invalidation bumps a generation counter. Readers capture the generation before querying the database and
+ * the resulting fragments are only cached if no invalidation happened in the meantime, which prevents a read that
+ * races with a concurrent overwrite from re-populating the cache with stale fragments.
+ */
+class DocumentCache {
+
+    static final class Key {
+        final String namespace;
+        final String entity;
+        final String id;
+        final long version;
+
+        Key(String namespace, String entity, String id, long version) {
+            this.namespace = namespace;
+            this.entity = entity;
+            this.id = id;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return version == key.version &&
+                    id.equals(key.id) &&
+                    entity.equals(key.entity) &&
+                    namespace.equals(key.namespace);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(namespace, entity, id, version);
+        }
+    }
+
+    private static final int MAX_SHARDS = 64;
+
+    private final int maxFragmentsPerDocument;
+    private final AtomicLong generation = new AtomicLong();
+    private final Shard[] shards;
+
+    DocumentCache(int capacity, int maxFragmentsPerDocument) {
+        this.maxFragmentsPerDocument = maxFragmentsPerDocument;
+        int shardCount = Math.min(Math.min(capacity, MAX_SHARDS), 4 * Runtime.getRuntime().availableProcessors());
+        // a power of two, so that the shard of a key is found by masking its hash
+        shardCount = Integer.highestOneBit(Math.max(1, shardCount));
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            // spread the remainder over the first shards, so that the total capacity is as configured
+            shards[i] = new Shard(capacity / shardCount + (i < capacity % shardCount ? 1 : 0));
+        }
+    }
+
+    int maxFragmentsPerDocument() {
+        return maxFragmentsPerDocument;
+    }
+
+    long generation() {
+        return generation.get();
+    }
+
+    private Shard shardOf(Key key) {
+        int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    List<Fragment> get(Key key) {
+        Shard shard = shardOf(key);
+        synchronized (shard) {
+            return shard.get(key);
+        }
+    }
+
+    /**
+     * Caches the fragments unless the document is too large, or an invalidation happened after the given generation.
+     * The generation is checked under the lock of the shard, which invalidations take after bumping the generation.
+     */
+    void put(Key key, List<Fragment> fragments, long readGeneration) {
+        if (fragments.size() > maxFragmentsPerDocument) {
+            return;
+        }
+        List<Fragment> copy = List.copyOf(fragments);
+        Shard shard = shardOf(key);
+        synchronized (shard) {
+            if (generation.get() == readGeneration) {
+                shard.put(key, copy);
+            }
+        }
+    }
+
+    void invalidate(String namespace, String entity, String id, long version) {
+        generation.incrementAndGet();
+        Key key = new Key(namespace, entity, id, version);
+        Shard shard = shardOf(key);
+        synchronized (shard) {
+            shard.remove(key);
+        }
+    }
+
+    void invalidateAllVersions(String namespace, String entity, String id) {
+        invalidateIf(key -> key.id.equals(id) && key.entity.equals(entity) && key.namespace.equals(namespace));
+    }
+
+    void invalidateEntity(String namespace, String entity) {
+        invalidateIf(key -> key.entity.equals(entity) && key.namespace.equals(namespace));
+    }
+
+    private void invalidateIf(Predicate<Key> predicate) {
+        generation.incrementAndGet();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.keySet().removeIf(predicate);
+            }
+        }
+    }
+
+    private static class Shard extends LinkedHashMap<Key, List<Fragment>> {
+        private final int capacity;
+
+        Shard(int capacity) {
+            super(Math.min(capacity, 1024), 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, List<Fragment>> eldest) {
+            return size() > capacity;
+        }
+    }
+}
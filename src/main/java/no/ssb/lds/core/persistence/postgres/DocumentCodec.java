@@ -0,0 +1,180 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs all fragments of a document version into a single blob, and builds the jsonb leaf-index used by find.
+ * <p>
+ * Blob format: int32 fragment count, followed by each fragment as int32 path length, UTF-8 path, int8 fragment type
+ * and int32 value length (-1 for null) followed by the value bytes. Fragments are stored in the same order as the
+ * fragment-per-row storage returns them, i.e. by index-unaware path, then indices, then type.
+ * <p>
+ * The leaf-index is a json object mapping every index-unaware path to the array of hex-encoded values found at that
+ * path, so that find can be answered by jsonb containment on a GIN index.
+ */
+class DocumentCodec {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Comparator<SortableFragment> FRAGMENT_ORDER = Comparator
+            .comparing((SortableFragment f) -> f.indexUnawarePath)
+            .thenComparing(DocumentCodec::compareIndices)
+            .thenComparingInt(f -> f.fragment.fragmentType().ordinal());
+
+    private static class SortableFragment {
+        final Fragment fragment;
+        final String indexUnawarePath;
+        final List<Integer> indices;
+
+        SortableFragment(Fragment fragment) {
+            this.fragment = fragment;
+            this.indices = new ArrayList<>();
+            this.indexUnawarePath = Fragment.computeIndexUnawarePath(fragment.path(), indices);
+        }
+    }
+
+    private static int compareIndices(SortableFragment a, SortableFragment b) {
+        int n = Math.min(a.indices.size(), b.indices.size());
+        for (int i = 0; i < n; i++) {
+            int c = Integer.compare(a.indices.get(i), b.indices.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.indices.size(), b.indices.size());
+    }
+
+    /**
+     * Encoded form of one document version.
+     */
+    static class EncodedDocument {
+        final byte[] fragments;
+        final String leaves;
+
+        EncodedDocument(byte[] fragments, String leaves) {
+            this.fragments = fragments;
+            this.leaves = leaves;
+        }
+    }
+
+    static EncodedDocument encode(List<Fragment> fragments) {
+        List<SortableFragment> sorted = new ArrayList<>(fragments.size());
+        for (Fragment fragment : fragments) {
+            if (fragment.offset() != 0) {
+                throw new IllegalStateException("Postgres fragments must have offset == 0, illegal offset: " + fragment.offset());
+            }
+            sorted.add(new SortableFragment(fragment));
+        }
+        sorted.sort(FRAGMENT_ORDER);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * fragments.size());
+        DataOutputStream out = new DataOutputStream(buffer);
+        Map<String, List<String>> valuesByPath = new LinkedHashMap<>();
+        try {
+            out.writeInt(sorted.size());
+            for (SortableFragment f : sorted) {
+                byte[] path = f.fragment.path().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(path.length);
+                out.write(path);
+                out.writeByte(f.fragment.fragmentType().ordinal());
+                byte[] value = f.fragment.value();
+                if (value == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                    valuesByPath.computeIfAbsent(f.indexUnawarePath, p -> new ArrayList<>()).add(hex(value));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        StringBuilder leaves = new StringBuilder(32 * valuesByPath.size() + 2).append('{');
+        for (Map.Entry<String, List<String>> entry : valuesByPath.entrySet()) {
+            if (leaves.length() > 1) {
+                leaves.append(',');
+            }
+            appendLeaf(leaves, entry.getKey(), entry.getValue());
+        }
+        return new EncodedDocument(buffer.toByteArray(), leaves.append('}').toString());
+    }
+
+    static List<Fragment> decode(byte[] blob, String namespace, String entity, String id, ZonedDateTime version) {
+        ByteBuffer buffer = ByteBuffer.wrap(blob);
+        int n = buffer.getInt();
+        List<Fragment> fragments = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int pathLength = buffer.getInt();
+            String path = new String(blob, buffer.position(), pathLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + pathLength);
+            FragmentType type = FragmentType.fromTypeCode(buffer.get());
+            int valueLength = buffer.getInt();
+            byte[] value = null;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                buffer.get(value);
+            }
+            fragments.add(new Fragment(namespace, entity, id, version, path, type, 0, value));
+        }
+        return fragments;
+    }
+
+    /**
+     * @return a leaf-index containing only the given path and value, suitable as the right hand side of @&gt;.
+     */
+    static String leafProbe(String indexUnawarePath, byte[] value) {
+        StringBuilder sb = new StringBuilder().append('{');
+        appendLeaf(sb, indexUnawarePath, List.of(hex(value)));
+        return sb.append('}').toString();
+    }
+
+    private static void appendLeaf(StringBuilder sb, String path, List<String> hexValues) {
+        appendJsonString(sb, path);
+        sb.append(":[");
+        for (int i = 0; i < hexValues.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(hexValues.get(i)).append('"');
+        }
+        sb.append(']');
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    static String hex(byte[] value) {
+        char[] chars = new char[2 * value.length];
+        for (int i = 0; i < value.length; i++) {
+            chars[2 * i] = HEX[(value[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[value[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
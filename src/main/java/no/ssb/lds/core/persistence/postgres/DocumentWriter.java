@@ -0,0 +1,89 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the fragments of each document version and writes every version as a single row of the namespace_document
+ * table, using JDBC batches of upserts. Fragments of a document version are expected to arrive contiguously, which is
+ * how documents are serialized into fragments.
+ */
+class DocumentWriter {
+
+    static final String UPSERT_SQL = "INSERT INTO namespace_document(entity, id, version, deleted, fragments, leaves) VALUES (?, ?, ?, ?, ?, ?::jsonb) " +
+            "ON CONFLICT (entity, id, version) DO UPDATE SET deleted = EXCLUDED.deleted, fragments = EXCLUDED.fragments, leaves = EXCLUDED.leaves";
+
+    private static final int ROW_OVERHEAD_BYTES = 32;
+
+    private final PostgresTransaction tx;
+    private final WriteBatchSizer batchSizer;
+    private final PreparedStatement upsertStatement;
+    private final List<Fragment> documentFragments = new ArrayList<>();
+    private DocumentKey documentKey;
+    private int pendingRows;
+    private long pendingBytes;
+
+    DocumentWriter(PostgresTransaction tx, WriteBatchSizer batchSizer) throws SQLException {
+        this.tx = tx;
+        this.batchSizer = batchSizer;
+        this.upsertStatement = tx.prepareStatement(UPSERT_SQL);
+    }
+
+    void write(Fragment fragment) throws SQLException {
+        DocumentKey key = DocumentKey.from(fragment);
+        if (documentKey != null && !sameDocument(documentKey, key)) {
+            addDocument();
+        }
+        documentKey = key;
+        documentFragments.add(fragment);
+    }
+
+    private static boolean sameDocument(DocumentKey a, DocumentKey b) {
+        return a.entity().equals(b.entity()) && a.id().equals(b.id()) && a.timestamp().toInstant().equals(b.timestamp().toInstant());
+    }
+
+    private void addDocument() throws SQLException {
+        if (documentFragments.isEmpty()) {
+            return;
+        }
+        boolean deleted = documentFragments.size() == 1 && documentFragments.get(0).deleteMarker();
+        DocumentCodec.EncodedDocument encoded = DocumentCodec.encode(documentFragments);
+        upsertStatement.setString(1, documentKey.entity());
+        upsertStatement.setString(2, documentKey.id());
+        upsertStatement.setTimestamp(3, new Timestamp(documentKey.timestamp().toInstant().toEpochMilli()));
+        upsertStatement.setBoolean(4, deleted);
+        upsertStatement.setBytes(5, encoded.fragments);
+        upsertStatement.setString(6, encoded.leaves);
+        upsertStatement.addBatch();
+        pendingRows++;
+        pendingBytes += ROW_OVERHEAD_BYTES + encoded.fragments.length + encoded.leaves.length();
+        documentFragments.clear();
+        if (batchSizer.isFull(pendingRows, pendingBytes)) {
+            flush();
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (pendingRows == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        tx.executeBatch(upsertStatement);
+        upsertStatement.clearBatch();
+        batchSizer.onFlushed(pendingRows, pendingBytes, System.nanoTime() - start);
+        pendingRows = 0;
+        pendingBytes = 0;
+    }
+
+    void finish() throws SQLException {
+        addDocument();
+        flush();
+        upsertStatement.close();
+    }
+}
@@ -0,0 +1,225 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the fragment table of an entity. How entities are mapped to tables is decided by the {@link Mode}:
+ * <ul>
+ * <li>{@link Mode#SHARED}: every entity is stored in the base table of the {@link FragmentLayout}.</li>
+ * <li>{@link Mode#TABLE_PER_ENTITY}: every entity gets its own table created like the base table, including its
+ * indexes, so that large entities do not bloat the heap and indexes of other entities.</li>
+ * <li>{@link Mode#PARTITIONED}: entities are stored in a table partitioned by LIST on entity, optionally with RANGE
+ * sub-partitions on version. Queries go to the partitioned table and rely on partition pruning, which works because
+ * every query on a fragment table has an equality condition on entity.</li>
+ * </ul>
+ * <p>
+ * Tables and partitions are created for the managed domains at startup, and version partitions by the maintenance
+ * operation {@link #createVersionPartitions(String, ZonedDateTime, ZonedDateTime)}, but never while reading or
+ * writing. DDL would have to run on a connection of its own to outlive the transaction that needed it, and takes locks
+ * that queue behind and block the transactions using the table. Fragments of any other entity are stored in the base
+ * table with a table per entity, and in the DEFAULT partition when partitioned. Likewise, versions outside the created
+ * RANGE sub-partitions are stored in the DEFAULT sub-partition of the entity.
+ */
+class EntityTables {
+
+    enum Mode {
+        SHARED,
+        TABLE_PER_ENTITY,
+        PARTITIONED
+    }
+
+    /**
+     * Width of the RANGE sub-partitions on version when partitioned.
+     */
+    enum VersionInterval {
+        NONE,
+        YEAR,
+        MONTH
+    }
+
+    private static final int MAX_IDENTIFIER_BYTES = 63;
+    private static final String DEFAULT_PARTITION_SUFFIX = "$default"; // entity names never contain '$'
+
+    private final DataSource dataSource;
+    private final String baseTable;
+    private final Mode mode;
+    private final VersionInterval versionInterval;
+    private final ConcurrentHashMap<String, String> tableByEntity = new ConcurrentHashMap<>();
+
+    EntityTables(DataSource dataSource, String baseTable, Mode mode, VersionInterval versionInterval) {
+        this.dataSource = dataSource;
+        this.baseTable = baseTable;
+        this.mode = mode;
+        this.versionInterval = mode == Mode.PARTITIONED ? versionInterval : VersionInterval.NONE;
+    }
+
+    boolean isTablePerEntity() {
+        return mode == Mode.TABLE_PER_ENTITY;
+    }
+
+    boolean isPartitioned() {
+        return mode == Mode.PARTITIONED;
+    }
+
+    /**
+     * @return the table queried for all entities when not using a table per entity.
+     */
+    String sharedTable() {
+        return mode == Mode.PARTITIONED ? partitionedTable() : baseTable;
+    }
+
+    private String partitionedTable() {
+        return baseTable + "_partitioned";
+    }
+
+    /**
+     * @return the tables that together hold the fragments of all entities.
+     */
+    Collection<String> allTables() {
+        if (mode == Mode.TABLE_PER_ENTITY) {
+            List<String> tables = new ArrayList<>(tableByEntity.values());
+            tables.add(baseTable);
+            return tables;
+        }
+        return List.of(sharedTable());
+    }
+
+    /**
+     * @return the quoted name of the table to query for fragments of the entity.
+     */
+    String of(String entity) {
+        if (mode == Mode.TABLE_PER_ENTITY) {
+            return tableByEntity.getOrDefault(entity, baseTable);
+        }
+        return sharedTable();
+    }
+
+    /**
+     * @return the quoted name of the table or partition holding the entity and nothing else, or null if the entity
+     * shares a table or partition with other entities.
+     */
+    String entityTable(String entity) {
+        if (mode == Mode.SHARED) {
+            return null;
+        }
+        return tableByEntity.get(entity);
+    }
+
+    /**
+     * Creates the tables or partitions of the given entities, and when partitioned the DEFAULT partitions and the
+     * version partitions of the current and the next interval. Only for use at startup.
+     */
+    void createAll(Collection<String> entities) {
+        if (mode == Mode.SHARED) {
+            return;
+        }
+        if (mode == Mode.PARTITIONED) {
+            String defaultPartition = "\"" + partitionedTable() + DEFAULT_PARTITION_SUFFIX + "\"";
+            execute("CREATE TABLE IF NOT EXISTS " + defaultPartition + " PARTITION OF " + partitionedTable() + " DEFAULT");
+        }
+        ZonedDateTime now = ZonedDateTime.now(FragmentLayout.UTC);
+        for (String entity : entities) {
+            String table = create(entity);
+            tableByEntity.put(entity, table);
+            if (versionInterval != VersionInterval.NONE) {
+                String defaultPartition = quote(unquote(table) + DEFAULT_PARTITION_SUFFIX, baseTable + "_" + Integer.toHexString(table.hashCode()) + DEFAULT_PARTITION_SUFFIX);
+                execute("CREATE TABLE IF NOT EXISTS " + defaultPartition + " PARTITION OF " + table + " DEFAULT");
+                createVersionPartitions(entity, now, versionInterval == VersionInterval.YEAR ? now.plusYears(1) : now.plusMonths(1));
+            }
+        }
+    }
+
+    /**
+     * Creates the RANGE sub-partitions of the entity for every interval from the one holding from up to and including
+     * the one holding to. Creating a partition scans the DEFAULT sub-partition of the entity, and fails if it holds
+     * versions that belong in the new partition. Intended for maintenance, as the DDL blocks concurrent transactions
+     * on the entity.
+     *
+     * @throws IllegalStateException if versions of the entity are not partitioned by RANGE.
+     */
+    void createVersionPartitions(String entity, ZonedDateTime from, ZonedDateTime to) {
+        String entityTable = entityTable(entity);
+        if (mode != Mode.PARTITIONED || versionInterval == VersionInterval.NONE || entityTable == null) {
+            throw new IllegalStateException("Versions of " + entity + " are not partitioned by range");
+        }
+        ZonedDateTime start = from.withZoneSameInstant(FragmentLayout.UTC).withDayOfMonth(1).toLocalDate().atStartOfDay(FragmentLayout.UTC);
+        if (versionInterval == VersionInterval.YEAR) {
+            start = start.withMonth(1);
+        }
+        while (!start.isAfter(to)) {
+            ZonedDateTime end;
+            String suffix;
+            if (versionInterval == VersionInterval.YEAR) {
+                end = start.plusYears(1);
+                suffix = String.format("%04d", start.getYear());
+            } else {
+                end = start.plusMonths(1);
+                suffix = String.format("%04d_%02d", start.getYear(), start.getMonthValue());
+            }
+            String partition = quote(unquote(entityTable) + "_" + suffix, baseTable + "_" + Integer.toHexString(entityTable.hashCode()) + "_" + suffix);
+            execute("CREATE TABLE IF NOT EXISTS " + partition + " PARTITION OF " + entityTable +
+                    " FOR VALUES FROM (" + literal(start.toInstant()) + ") TO (" + literal(end.toInstant()) + ")");
+            start = end;
+        }
+    }
+
+    static String tableName(String baseTable, String entity) {
+        return quote(baseTable + "_" + entity, baseTable + "_" + Integer.toHexString(entity.hashCode()) + "_" + Integer.toHexString(entity.length()));
+    }
+
+    private static String quote(String name, String fallbackName) {
+        if (name.indexOf('"') >= 0 || name.getBytes(StandardCharsets.UTF_8).length > MAX_IDENTIFIER_BYTES) {
+            name = fallbackName;
+        }
+        return "\"" + name + "\"";
+    }
+
+    private static String unquote(String identifier) {
+        return identifier.substring(1, identifier.length() - 1);
+    }
+
+    private static String literal(Object value) {
+        return "'" + String.valueOf(value).replace("'", "''") + "'";
+    }
+
+    private String create(String entity) {
+        if (mode == Mode.PARTITIONED) {
+            String partition = tableName(partitionedTable(), entity);
+            execute("CREATE TABLE IF NOT EXISTS " + partition + " PARTITION OF " + partitionedTable() +
+                    " FOR VALUES IN (" + literal(entity) + ")" +
+                    (versionInterval == VersionInterval.NONE ? "" : " PARTITION BY RANGE (version)"));
+            return partition;
+        }
+        String table = tableName(baseTable, entity);
+        execute("CREATE TABLE IF NOT EXISTS " + table + " (LIKE " + baseTable + " INCLUDING ALL)");
+        return table;
+    }
+
+    private void execute(String ddl) {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement st = connection.createStatement()) {
+                st.execute(ddl);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                if (!"42P07".equals(e.getSQLState()) && !"23505".equals(e.getSQLState())) {
+                    throw e;
+                }
+                // created concurrently by another instance
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+    }
+}
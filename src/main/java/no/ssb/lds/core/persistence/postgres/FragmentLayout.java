@@ -0,0 +1,347 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage layout of fragment rows. Decides the table fragments are stored in, and how paths and array-indices are
+ * encoded in and decoded from that table.
+ * <p>
+ * Queries on the fragment table always use the alias n, and select the columns of {@link #selectFrom(String)} in order
+ * (id, version, path, indices, type, value), which is what {@link #decode(ResultSet, String, String)} expects.
+ * {@link #table} is the base fragment table, see {@link EntityTables} for how per-entity tables are derived from it.
+ */
+abstract class FragmentLayout {
+
+    static final ZoneId UTC = ZoneId.of("Etc/UTC");
+
+    final String table;
+
+    private FragmentLayout(String table) {
+        this.table = table;
+    }
+
+    static FragmentLayout v1() {
+        return new Version1();
+    }
+
+    static FragmentLayout v2(PathDictionary pathDictionary) {
+        return new Version2(pathDictionary);
+    }
+
+    /**
+     * @param fragmentTable the table holding the fragments, either {@link #table} or one created like it.
+     * @return "SELECT ... FROM fragmentTable n" including whatever joins are needed to select the index-unaware path.
+     */
+    abstract String selectFrom(String fragmentTable);
+
+    /**
+     * @return column expression of the index-unaware path, suitable for ORDER BY.
+     */
+    abstract String pathColumn();
+
+    /**
+     * @return name of the fragment table column matched by {@link #setPath(PreparedStatement, int, PostgresTransaction, String)}.
+     */
+    abstract String pathKeyColumn();
+
+    abstract String insertSql(String fragmentTable);
+
+    abstract Fragment decode(ResultSet resultSet, String namespace, String entity) throws SQLException;
+
+    /**
+     * Binds the index-unaware path and its indices to two consecutive parameters of an insert statement. Registers
+     * the path in the given transaction if needed.
+     */
+    abstract void setPathAndIndices(PreparedStatement ps, int index, PostgresTransaction tx, String indexUnawarePath, List<Integer> indices) throws SQLException;
+
+    /**
+     * Binds the key of the path column for equality matching. Binds a key that matches no rows if no fragment was
+     * ever written with the path.
+     */
+    abstract void setPath(PreparedStatement ps, int index, PostgresTransaction tx, String indexUnawarePath) throws SQLException;
+
+    /**
+     * @return the key of the path column as an SQL literal, for use in index predicates. Registers the path if needed,
+     * so only for use outside of transactions.
+     */
+    abstract String pathKeyLiteral(String indexUnawarePath);
+
+    /**
+     * @return DDL of the session-local staging table that COPY writes to. The staging table always holds the
+     * index-unaware path as text in column path, as paths cannot be registered while the connection is copying.
+     */
+    abstract String createStagingTableSql(String stagingTable);
+
+    /**
+     * Writes the path and indices fields of a binary COPY tuple of the staging table.
+     */
+    abstract void writeCopyPathAndIndices(DataOutputStream out, String indexUnawarePath, List<Integer> indices) throws IOException;
+
+    /**
+     * Prepares the staged rows for {@link #insertStagedSql(String, String, String)}, registering their paths if
+     * needed.
+     */
+    void registerStagedPaths(PostgresTransaction tx, String stagingTable) throws SQLException {
+    }
+
+    /**
+     * @param condition empty, or a WHERE clause on the staged rows, which use the alias s.
+     * @return "INSERT INTO fragmentTable ... SELECT ... FROM stagingTable s" of the staged rows matching condition.
+     */
+    abstract String insertStagedSql(String fragmentTable, String stagingTable, String condition);
+
+    static ZonedDateTime toZonedDateTime(Timestamp version) {
+        return ZonedDateTime.ofInstant(version.toInstant(), UTC);
+    }
+
+    static void writeCopyText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Original layout, with the path stored as text and indices as an integer array.
+     */
+    static class Version1 extends FragmentLayout {
+
+        private static final int INT4_OID = 23;
+
+        Version1() {
+            super("namespace");
+        }
+
+        @Override
+        String selectFrom(String fragmentTable) {
+            return "SELECT n.id, n.version, n.path, n.indices, n.type, n.value FROM " + fragmentTable + " n";
+        }
+
+        @Override
+        String pathColumn() {
+            return "n.path";
+        }
+
+        @Override
+        String pathKeyColumn() {
+            return "path";
+        }
+
+        @Override
+        String insertSql(String fragmentTable) {
+            return "INSERT INTO " + fragmentTable + "(entity, id, version, path, indices, type, value) values(?, ?, ?, ?, ?, ?, ?)";
+        }
+
+        @Override
+        Fragment decode(ResultSet resultSet, String namespace, String entity) throws SQLException {
+            String id = resultSet.getString(1);
+            ZonedDateTime timestamp = toZonedDateTime(resultSet.getTimestamp(2));
+            String indexUnawarePath = resultSet.getString(3);
+            Array arrayIndices = resultSet.getArray(4);
+            Integer[] integerArray = (Integer[]) arrayIndices.getArray();
+            String path = Fragment.computePathFromIndexUnawarePathAndIndices(indexUnawarePath, List.of(integerArray));
+            short type = resultSet.getShort(5);
+            byte[] value = resultSet.getBytes(6);
+            return new Fragment(namespace, entity, id, timestamp, path, FragmentType.fromTypeCode((byte) type), 0, value);
+        }
+
+        @Override
+        void setPathAndIndices(PreparedStatement ps, int index, PostgresTransaction tx, String indexUnawarePath, List<Integer> indices) throws SQLException {
+            ps.setString(index, indexUnawarePath);
+            ps.setArray(index + 1, tx.connection.createArrayOf("integer", indices.toArray(new Integer[indices.size()])));
+        }
+
+        @Override
+        void setPath(PreparedStatement ps, int index, PostgresTransaction tx, String indexUnawarePath) throws SQLException {
+            ps.setString(index, indexUnawarePath);
+        }
+
+        @Override
+        String pathKeyLiteral(String indexUnawarePath) {
+            return "'" + indexUnawarePath.replace("'", "''") + "'";
+        }
+
+        @Override
+        String createStagingTableSql(String stagingTable) {
+            return "CREATE TEMPORARY TABLE IF NOT EXISTS " + stagingTable + " (LIKE " + table + ") ON COMMIT DELETE ROWS";
+        }
+
+        @Override
+        String insertStagedSql(String fragmentTable, String stagingTable, String condition) {
+            return "INSERT INTO " + fragmentTable + "(entity, id, version, path, indices, type, value) " +
+                    "SELECT s.entity, s.id, s.version, s.path, s.indices, s.type, s.value FROM " + stagingTable + " s" + condition;
+        }
+
+        @Override
+        void writeCopyPathAndIndices(DataOutputStream out, String indexUnawarePath, List<Integer> indices) throws IOException {
+            writeCopyText(out, indexUnawarePath);
+            int n = indices.size();
+            if (n == 0) {
+                out.writeInt(12);
+                out.writeInt(0); // dimensions
+                out.writeInt(0); // has-null flag
+                out.writeInt(INT4_OID);
+                return;
+            }
+            out.writeInt(20 + 8 * n);
+            out.writeInt(1); // dimensions
+            out.writeInt(0); // has-null flag
+            out.writeInt(INT4_OID);
+            out.writeInt(n); // dimension size
+            out.writeInt(1); // dimension lower bound
+            for (int i = 0; i < n; i++) {
+                out.writeInt(4);
+                out.writeInt(indices.get(i));
+            }
+        }
+    }
+
+    /**
+     * Compact layout. Paths are dictionary-encoded as integer ids in namespace_path, and indices are stored as
+     * big-endian 32-bit integers in a bytea. Indices are never negative, so byte-wise ordering of the bytea equals
+     * element-wise ordering of the indices.
+     */
+    static class Version2 extends FragmentLayout {
+
+        private static final byte[] NO_INDICES = new byte[0];
+        private static final int UNKNOWN_PATH_ID = -1; // ids are generated from 1 and up
+
+        private final PathDictionary pathDictionary;
+
+        Version2(PathDictionary pathDictionary) {
+            super("namespace_v2");
+            this.pathDictionary = pathDictionary;
+        }
+
+        @Override
+        String selectFrom(String fragmentTable) {
+            return "SELECT n.id, n.version, p.path, n.indices, n.type, n.value FROM " + fragmentTable + " n JOIN namespace_path p ON p.path_id = n.path_id";
+        }
+
+        @Override
+        String pathColumn() {
+            return "p.path";
+        }
+
+        @Override
+        String pathKeyColumn() {
+            return "path_id";
+        }
+
+        @Override
+        String insertSql(String fragmentTable) {
+            return "INSERT INTO " + fragmentTable + "(entity, id, version, path_id, indices, type, value) values(?, ?, ?, ?, ?, ?, ?)";
+        }
+
+        @Override
+        Fragment decode(ResultSet resultSet, String namespace, String entity) throws SQLException {
+            String id = resultSet.getString(1);
+            ZonedDateTime timestamp = toZonedDateTime(resultSet.getTimestamp(2));
+            String path = pathWithIndices(resultSet.getString(3), resultSet.getBytes(4));
+            short type = resultSet.getShort(5);
+            byte[] value = resultSet.getBytes(6);
+            return new Fragment(namespace, entity, id, timestamp, path, FragmentType.fromTypeCode((byte) type), 0, value);
+        }
+
+        /**
+         * Replaces every "[]" in the index-unaware path with the corresponding encoded index.
+         */
+        static String pathWithIndices(String indexUnawarePath, byte[] indices) {
+            if (indices.length == 0) {
+                return indexUnawarePath;
+            }
+            StringBuilder sb = new StringBuilder(indexUnawarePath.length() + 2 * indices.length);
+            int from = 0;
+            int i = 0;
+            for (int at = indexUnawarePath.indexOf("[]"); at >= 0 && i < indices.length; at = indexUnawarePath.indexOf("[]", from)) {
+                int index = ((indices[i] & 0xff) << 24) | ((indices[i + 1] & 0xff) << 16) | ((indices[i + 2] & 0xff) << 8) | (indices[i + 3] & 0xff);
+                sb.append(indexUnawarePath, from, at + 1).append(index).append(']');
+                i += 4;
+                from = at + 2;
+            }
+            return sb.append(indexUnawarePath, from, indexUnawarePath.length()).toString();
+        }
+
+        static byte[] encodeIndices(List<Integer> indices) {
+            int n = indices.size();
+            if (n == 0) {
+                return NO_INDICES;
+            }
+            byte[] bytes = new byte[4 * n];
+            for (int i = 0; i < n; i++) {
+                int index = indices.get(i);
+                bytes[4 * i] = (byte) (index >>> 24);
+                bytes[4 * i + 1] = (byte) (index >>> 16);
+                bytes[4 * i + 2] = (byte) (index >>> 8);
+                bytes[4 * i + 3] = (byte) index;
+            }
+            return bytes;
+        }
+
+        @Override
+        void setPathAndIndices(PreparedStatement ps, int index, PostgresTransaction tx, String indexUnawarePath, List<Integer> indices) throws SQLException {
+            ps.setInt(index, pathDictionary.idOf(indexUnawarePath));
+            ps.setBytes(index + 1, encodeIndices(indices));
+        }
+
+        @Override
+        void setPath(PreparedStatement ps, int index, PostgresTransaction tx, String indexUnawarePath) throws SQLException {
+            Integer pathId = pathDictionary.lookup(tx, indexUnawarePath);
+            ps.setInt(index, pathId == null ? UNKNOWN_PATH_ID : pathId);
+        }
+
+        @Override
+        String pathKeyLiteral(String indexUnawarePath) {
+            return String.valueOf(pathDictionary.idOf(indexUnawarePath));
+        }
+
+        @Override
+        String createStagingTableSql(String stagingTable) {
+            return "CREATE TEMPORARY TABLE IF NOT EXISTS " + stagingTable + " (entity varchar COLLATE \"POSIX\" NOT NULL, " +
+                    "id varchar COLLATE \"POSIX\" NOT NULL, " +
+                    "version timestamp(3) with time zone NOT NULL, path varchar NOT NULL, indices bytea NOT NULL, " +
+                    "type smallint NOT NULL, value bytea) ON COMMIT DELETE ROWS";
+        }
+
+        @Override
+        void writeCopyPathAndIndices(DataOutputStream out, String indexUnawarePath, List<Integer> indices) throws IOException {
+            writeCopyText(out, indexUnawarePath);
+            byte[] bytes = encodeIndices(indices);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        void registerStagedPaths(PostgresTransaction tx, String stagingTable) throws SQLException {
+            List<String> paths = new ArrayList<>();
+            try (PreparedStatement ps = tx.prepareStatement("SELECT DISTINCT path FROM " + stagingTable)) {
+                try (ResultSet rs = tx.executeQuery(ps)) {
+                    while (rs.next()) {
+                        paths.add(rs.getString(1));
+                    }
+                }
+            }
+            pathDictionary.registerAll(paths);
+        }
+
+        @Override
+        String insertStagedSql(String fragmentTable, String stagingTable, String condition) {
+            return "INSERT INTO " + fragmentTable + "(entity, id, version, path_id, indices, type, value) " +
+                    "SELECT s.entity, s.id, s.version, p.path_id, s.indices, s.type, s.value FROM " + stagingTable + " s " +
+                    "JOIN namespace_path p ON p.path = s.path" + condition;
+        }
+    }
+}
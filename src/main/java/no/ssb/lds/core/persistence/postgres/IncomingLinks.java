@@ -0,0 +1,89 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Finds documents linking to a document. Links are string values of the form /&lt;entity&gt;/&lt;id&gt;, and are found
+ * through the partial md5 index on values starting with '/' that every fragment table has, or through the GIN index on
+ * the hex-encoded link values of the leaf-index when documents are stored a row per version. Only the latest version
+ * of a linking document counts, links in its history do not.
+ * <p>
+ * Delete policies are enforced with {@link #checkDeletePolicy(PersistenceDeletePolicy, String, String, Probe)}.
+ * {@link PersistenceDeletePolicy#FAIL_IF_INCOMING_LINKS} fails a delete of a document that other documents link to.
+ * Removing the links, or deleting the linking documents, as the other policies require, depends on the specification
+ * of the linking entities, which the provider does not have. Those policies therefore fail the delete as unsupported
+ * when there are links to remove or cascade to, rather than leaving the links dangling, and are trivially met when
+ * there are none. A null policy deletes without looking for links.
+ */
+class IncomingLinks {
+
+    static final String LINK_VALUE_CONDITION = "substring(n.value FROM 1 FOR 1) = '\\x2f'::bytea";
+
+    @FunctionalInterface
+    interface Probe {
+        boolean linksExist() throws SQLException;
+    }
+
+    static void checkDeletePolicy(PersistenceDeletePolicy policy, String entity, String id, Probe probe) throws SQLException {
+        if (policy == null || !probe.linksExist()) {
+            return;
+        }
+        if (policy == PersistenceDeletePolicy.FAIL_IF_INCOMING_LINKS) {
+            throw new PersistenceException("Unable to delete " + entity + "/" + id + ", other documents link to it");
+        }
+        throw new PersistenceException("Unable to delete " + entity + "/" + id + ", other documents link to it and " +
+                "delete policy " + policy + " is not supported");
+    }
+
+    static byte[] linkValue(String entity, String id) {
+        return ("/" + entity + "/" + id).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true if the latest version of any document other than the given one, in any of the fragment tables,
+     * links to it.
+     */
+    static boolean exist(PostgresTransaction tx, Iterable<String> fragmentTables, String entity, String id) throws SQLException {
+        byte[] link = linkValue(entity, id);
+        for (String table : fragmentTables) {
+            try (PreparedStatement ps = tx.prepareStatement("SELECT EXISTS (SELECT 1 FROM " + table + " n " +
+                    "WHERE " + LINK_VALUE_CONDITION + " AND md5(n.value) = md5(?) AND n.value = ? AND NOT (n.entity = ? AND n.id = ?) " +
+                    "AND n.version = (SELECT max(version) FROM " + table + " WHERE entity = n.entity AND id = n.id))")) {
+                ps.setBytes(1, link);
+                ps.setBytes(2, link);
+                ps.setString(3, entity);
+                ps.setString(4, id);
+                try (ResultSet resultSet = tx.executeQuery(ps)) {
+                    resultSet.next();
+                    if (resultSet.getBoolean(1)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the latest version of any document other than the given one in namespace_document links to it.
+     */
+    static boolean existInDocuments(PostgresTransaction tx, String entity, String id) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement("SELECT EXISTS (SELECT 1 FROM namespace_document d " +
+                "WHERE lds_link_values(d.leaves) @> ARRAY[?::text] AND NOT (d.entity = ? AND d.id = ?) " +
+                "AND d.version = (SELECT max(version) FROM namespace_document WHERE entity = d.entity AND id = d.id))")) {
+            ps.setString(1, DocumentCodec.hex(linkValue(entity, id)));
+            ps.setString(2, entity);
+            ps.setString(3, id);
+            try (ResultSet resultSet = tx.executeQuery(ps)) {
+                resultSet.next();
+                return resultSet.getBoolean(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Set;
+
+/**
+ * Maintenance of the namespace_latest table, which holds the latest version of every document together with a flag
+ * telling whether that version is a delete-marker. The table is updated in the same transaction as the fragment
+ * table, and allows reads at a snapshot that is newer than the latest version to use a primary-key lookup instead of
+ * computing max(version) over the version history. The fragment table holding the version history depends on the
+ * {@link FragmentLayout} in use, and is passed to the methods that need it.
+ * <p>
+ * The namespace_latest_sync table records the scopes the table is known to be in sync with: an entity with a fragment
+ * table of its own, or {@link #SHARED_SCOPE} for the entities of the shared fragment table. A scope is reconciled at
+ * startup unless it is recorded as in sync, and starting with maintenance disabled clears all records, since writes
+ * done from then on are not reflected in the table.
+ */
+class LatestVersionTable {
+
+    static final String SHARED_SCOPE = "";
+
+    static final String ON_CONFLICT_SQL = "ON CONFLICT (entity, id) DO UPDATE SET version = EXCLUDED.version, deleted = EXCLUDED.deleted " +
+            "WHERE namespace_latest.version <= EXCLUDED.version";
+
+    static final String UPSERT_SQL = "INSERT INTO namespace_latest(entity, id, version, deleted) VALUES (?, ?, ?, ?) " + ON_CONFLICT_SQL;
+
+    /**
+     * Version of a document visible at a snapshot. Falls back to the version history when the latest version is
+     * newer than the snapshot, or when the document is not present in the latest-version table. Parameters are
+     * (entity, id, snapshot, entity, id, snapshot).
+     */
+    static String versionAtSnapshotSql(String fragmentTable) {
+        return "COALESCE(" +
+                "(SELECT version FROM namespace_latest WHERE entity = ? AND id = ? AND version <= ?), " +
+                "(SELECT max(version) FROM " + fragmentTable + " WHERE entity = ? AND id = ? AND version <= ?))";
+    }
+
+    /**
+     * Column expression resolving the version visible at a snapshot for the document with the given id column, where l
+     * is the row of namespace_latest left joined on that id. Falls back to the version history when the latest version
+     * is newer than the snapshot, or when there is no row in l. Parameters are (snapshot, entity, snapshot). The entity
+     * is bound rather than correlated so that partitions can be pruned.
+     */
+    static String latestVersionAtSnapshotColumnSql(String fragmentTable, String idColumn) {
+        return "CASE WHEN l.version <= ? THEN l.version " +
+                "ELSE (SELECT max(h.version) FROM " + fragmentTable + " h WHERE h.entity = ? AND h.id = " + idColumn + " AND h.version <= ?) END";
+    }
+
+    static void setUpsertParameters(PreparedStatement ps, String entity, String id, Timestamp version, boolean deleted) throws SQLException {
+        ps.setString(1, entity);
+        ps.setString(2, id);
+        ps.setTimestamp(3, version);
+        ps.setBoolean(4, deleted);
+    }
+
+    static int setVersionAtSnapshotParameters(PreparedStatement ps, int index, String entity, String id, Timestamp snapshot) throws SQLException {
+        ps.setString(index++, entity);
+        ps.setString(index++, id);
+        ps.setTimestamp(index++, snapshot);
+        ps.setString(index++, entity);
+        ps.setString(index++, id);
+        ps.setTimestamp(index++, snapshot);
+        return index;
+    }
+
+    static void markDeleted(PostgresTransaction tx, String entity, String id, Timestamp version) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement(UPSERT_SQL)) {
+            setUpsertParameters(ps, entity, id, version, true);
+            tx.executeUpdate(ps);
+        }
+    }
+
+    /**
+     * Re-computes the latest version of a document from the version history, after one of its versions was deleted.
+     */
+    static void refresh(PostgresTransaction tx, String fragmentTable, String entity, String id) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement("INSERT INTO namespace_latest(entity, id, version, deleted) " +
+                "SELECT entity, id, version, bool_or(type = ?) FROM " + fragmentTable + " WHERE entity = ? AND id = ? " +
+                "GROUP BY entity, id, version ORDER BY version DESC LIMIT 1 " +
+                "ON CONFLICT (entity, id) DO UPDATE SET version = EXCLUDED.version, deleted = EXCLUDED.deleted")) {
+            ps.setShort(1, (short) FragmentType.DELETED.ordinal());
+            ps.setString(2, entity);
+            ps.setString(3, id);
+            tx.executeUpdate(ps);
+        }
+        try (PreparedStatement ps = tx.prepareStatement("DELETE FROM namespace_latest WHERE entity = ? AND id = ? " +
+                "AND NOT EXISTS (SELECT 1 FROM " + fragmentTable + " WHERE entity = ? AND id = ?)")) {
+            ps.setString(1, entity);
+            ps.setString(2, id);
+            ps.setString(3, entity);
+            ps.setString(4, id);
+            tx.executeUpdate(ps);
+        }
+    }
+
+    static void deleteDocument(PostgresTransaction tx, String entity, String id) throws SQLException {
+        try (PreparedStatement ps = tx.prepareStatement("DELETE FROM namespace_latest WHERE entity = ? AND id = ?")) {
+            ps.setString(1, entity);
+            ps.setString(2, id);
+            tx.executeUpdate(ps);
+        }
+    }
+
+    /**
+     * Reconciles the scope unless it is recorded as in sync, or always if requested, and records it as in sync.
+     * The scope is limited to the given entity unless it is null, in which case it covers all entities of the fragment
+     * table except the excluded ones.
+     */
+    static void reconcileUnlessInSync(Connection connection, String fragmentTable, String entity, Set<String> excludedEntities, boolean always) throws SQLException {
+        String scope = entity == null ? SHARED_SCOPE : entity;
+        if (!always && isInSync(connection, scope)) {
+            return;
+        }
+        reconcile(connection, fragmentTable, entity, excludedEntities);
+        try (PreparedStatement ps = connection.prepareStatement("INSERT INTO namespace_latest_sync(scope) VALUES (?) ON CONFLICT DO NOTHING")) {
+            ps.setString(1, scope);
+            ps.executeUpdate();
+        }
+        connection.commit();
+    }
+
+    static boolean isInSync(Connection connection, String scope) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT EXISTS (SELECT 1 FROM namespace_latest_sync WHERE scope = ?)")) {
+            ps.setString(1, scope);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                resultSet.next();
+                return resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    /**
+     * Clears the in-sync records, if the table was ever enabled, so that every scope is reconciled the next time the
+     * table is enabled.
+     */
+    static void markOutOfSync(Connection connection) throws SQLException {
+        boolean exists;
+        try (PreparedStatement ps = connection.prepareStatement("SELECT to_regclass('namespace_latest_sync') IS NOT NULL");
+             ResultSet resultSet = ps.executeQuery()) {
+            resultSet.next();
+            exists = resultSet.getBoolean(1);
+        }
+        if (exists) {
+            try (PreparedStatement ps = connection.prepareStatement("DELETE FROM namespace_latest_sync")) {
+                ps.executeUpdate();
+            }
+        }
+        connection.commit();
+    }
+
+    /**
+     * Brings the table in line with the version history. Needed when the table is first enabled, or after writes were
+     * done while maintenance was disabled. Limited to the given entity unless it is null, which is required when the
+     * fragment table only holds a single entity, and otherwise covers all entities but the excluded ones.
+     */
+    static void reconcile(Connection connection, String fragmentTable, String entity, Set<String> excludedEntities) throws SQLException {
+        boolean exclude = entity == null && !excludedEntities.isEmpty();
+        String condition = entity != null ? "entity = ?" : exclude ? "NOT (entity = ANY(?))" : null;
+        try (PreparedStatement ps = connection.prepareStatement("INSERT INTO namespace_latest(entity, id, version, deleted) " +
+                "SELECT DISTINCT ON (entity, id) entity, id, version, type = ? FROM " + fragmentTable + (condition == null ? "" : " WHERE " + condition) +
+                " ORDER BY entity, id, version DESC, type DESC " +
+                "ON CONFLICT (entity, id) DO UPDATE SET version = EXCLUDED.version, deleted = EXCLUDED.deleted " +
+                "WHERE (namespace_latest.version, namespace_latest.deleted) IS DISTINCT FROM (EXCLUDED.version, EXCLUDED.deleted)")) {
+            ps.setShort(1, (short) FragmentType.DELETED.ordinal());
+            setScopeParameter(connection, ps, 2, entity, excludedEntities);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = connection.prepareStatement("DELETE FROM namespace_latest l " +
+                "WHERE NOT EXISTS (SELECT 1 FROM " + fragmentTable + " n WHERE n.entity = l.entity AND n.id = l.id)" +
+                (condition == null ? "" : " AND l." + condition))) {
+            setScopeParameter(connection, ps, 1, entity, excludedEntities);
+            ps.executeUpdate();
+        }
+    }
+
+    private static void setScopeParameter(Connection connection, PreparedStatement ps, int index, String entity, Set<String> excludedEntities) throws SQLException {
+        if (entity != null) {
+            ps.setString(index, entity);
+        } else if (!excludedEntities.isEmpty()) {
+            ps.setArray(index, connection.createArrayOf("varchar", excludedEntities.toArray()));
+        }
+    }
+}
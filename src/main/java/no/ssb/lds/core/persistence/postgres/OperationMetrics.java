@@ -0,0 +1,319 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Measures persistence operations and the statements they execute. Every measurement is added to the statistics of
+ * the transaction it ran in, as "&lt;operation&gt;", "&lt;operation&gt;.fragments", "&lt;operation&gt;.bytes" and
+ * "&lt;operation&gt;.micros" for operations, and "statements", "statement.micros", "batches" and "batch.statements"
+ * for statements. Totals and latency histograms across transactions are published over JMX when exported.
+ * <p>
+ * Statements slower than the slow-statement threshold are logged together with their bound parameters.
+ */
+class OperationMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OperationMetrics.class);
+
+    static final OperationMetrics UNEXPORTED = new OperationMetrics(null, false, 0);
+
+    static final String STATEMENT = "statement";
+
+    private static final int BUCKETS = 32;
+
+    private final String poolName;
+    private final boolean exported;
+    private final long slowStatementNanos; // 0 when slow statements are not logged
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    /**
+     * @param poolName                  name of the connection pool the operations run on, which qualifies the names
+     *                                  of the exported beans so that provider instances do not share them.
+     * @param exported                  whether totals are published as {@link OperationMetricsMXBean}s.
+     * @param slowStatementThresholdMs  statements running at least this long are logged, 0 to disable.
+     */
+    OperationMetrics(String poolName, boolean exported, long slowStatementThresholdMs) {
+        this.poolName = poolName;
+        this.exported = exported;
+        this.slowStatementNanos = TimeUnit.MILLISECONDS.toNanos(slowStatementThresholdMs);
+    }
+
+    @FunctionalInterface
+    interface Execution<T> {
+        T execute() throws SQLException;
+    }
+
+    /**
+     * Measures a read from subscription until the fragments are exhausted, fail or are cancelled.
+     */
+    Flowable<Fragment> read(PostgresTransaction tx, String operation, Flowable<Fragment> fragments) {
+        return Flowable.defer(() -> {
+            Measurement measurement = new Measurement(tx, operation);
+            return fragments
+                    .doOnNext(measurement::add)
+                    .doOnError(measurement::failed)
+                    .doFinally(measurement::done);
+        });
+    }
+
+    /**
+     * Measures a write of the fragments by the writer, counting the fragments as the writer consumes them.
+     */
+    Completable write(PostgresTransaction tx, String operation, Flowable<Fragment> fragments, Function<Flowable<Fragment>, Completable> writer) {
+        return Completable.defer(() -> {
+            Measurement measurement = new Measurement(tx, operation);
+            return writer.apply(fragments.doOnNext(measurement::add))
+                    .doOnError(measurement::failed)
+                    .doFinally(measurement::done);
+        });
+    }
+
+    Completable completable(PostgresTransaction tx, String operation, Completable completable) {
+        return Completable.defer(() -> {
+            Measurement measurement = new Measurement(tx, operation);
+            return completable
+                    .doOnError(measurement::failed)
+                    .doFinally(measurement::done);
+        });
+    }
+
+    <T> Single<T> single(PostgresTransaction tx, String operation, Single<T> single) {
+        return Single.defer(() -> {
+            Measurement measurement = new Measurement(tx, operation);
+            return single
+                    .doOnError(measurement::failed)
+                    .doFinally(measurement::done);
+        });
+    }
+
+    /**
+     * Executes and measures a statement. The statements of a batch are counted when the execution returns the
+     * update counts of a batch.
+     */
+    <T> T execute(PostgresTransaction tx, PreparedStatement statement, Execution<T> execution) throws SQLException {
+        long start = System.nanoTime();
+        T result = null;
+        boolean failed = true;
+        try {
+            result = execution.execute();
+            failed = false;
+            return result;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            int batched = result instanceof int[] ? ((int[]) result).length : 0;
+            tx.record("statements", 1);
+            tx.record("statement.micros", TimeUnit.NANOSECONDS.toMicros(nanos));
+            if (result instanceof int[]) {
+                tx.record("batches", 1);
+                tx.record("batch.statements", batched);
+            }
+            operation(STATEMENT).record(nanos, batched, 0, failed);
+            if (slowStatementNanos > 0 && nanos >= slowStatementNanos) {
+                logSlowStatement(statement, nanos, batched);
+            }
+        }
+    }
+
+    private void logSlowStatement(PreparedStatement statement, long nanos, int batched) {
+        String sql;
+        try {
+            // the driver renders its statements with the bound parameters, for batches those of the last statement
+            sql = statement.unwrap(PreparedStatement.class).toString();
+        } catch (SQLException e) {
+            sql = statement.toString();
+        }
+        if (batched > 0) {
+            LOG.warn("Slow statement batch of {} took {} ms, last statement: {}", batched, TimeUnit.NANOSECONDS.toMillis(nanos), sql);
+        } else {
+            LOG.warn("Slow statement took {} ms: {}", TimeUnit.NANOSECONDS.toMillis(nanos), sql);
+        }
+    }
+
+    private Operation operation(String name) {
+        return operations.computeIfAbsent(name, Operation::new);
+    }
+
+    void close() {
+        for (Operation operation : operations.values()) {
+            operation.unregister();
+        }
+    }
+
+    private class Measurement {
+        final PostgresTransaction tx;
+        final String operation;
+        final long start = System.nanoTime();
+        long fragments;
+        long bytes;
+        boolean failed;
+
+        Measurement(PostgresTransaction tx, String operation) {
+            this.tx = tx;
+            this.operation = operation;
+        }
+
+        void add(Fragment fragment) {
+            fragments++;
+            byte[] value = fragment.value();
+            if (value != null) {
+                bytes += value.length;
+            }
+        }
+
+        void failed(Throwable t) {
+            failed = true;
+        }
+
+        void done() {
+            long nanos = System.nanoTime() - start;
+            tx.record(operation, 1);
+            tx.record(operation + ".fragments", fragments);
+            tx.record(operation + ".bytes", bytes);
+            tx.record(operation + ".micros", TimeUnit.NANOSECONDS.toMicros(nanos));
+            if (failed) {
+                tx.record(operation + ".errors", 1);
+            }
+            operation(operation).record(nanos, fragments, bytes, failed);
+        }
+    }
+
+    private class Operation implements OperationMetricsMXBean {
+
+        private final ObjectName objectName; // null when not exported
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        Operation(String name) {
+            this.objectName = exported ? PoolMetrics.register(this, "type=Operation,pool=" + ObjectName.quote(poolName) + ",name=" + ObjectName.quote(name)) : null;
+        }
+
+        void unregister() {
+            if (objectName == null) {
+                return;
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+        }
+
+        void record(long elapsedNanos, long rowCount, long byteCount, boolean failed) {
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            rows.add(rowCount);
+            bytes.add(byteCount);
+            nanos.add(elapsedNanos);
+            maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+            long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public long getRows() {
+            return rows.sum();
+        }
+
+        @Override
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        @Override
+        public double getAverageMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : nanos.sum() / (n * 1_000_000.0);
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1_000_000.0;
+        }
+
+        @Override
+        public double getMedianMillis() {
+            return percentileMillis(0.5);
+        }
+
+        @Override
+        public double getPercentile99Millis() {
+            return percentileMillis(0.99);
+        }
+
+        private double percentileMillis(double quantile) {
+            long[] buckets = getLatencyHistogram();
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return (1L << i) / 1000.0;
+                }
+            }
+            return (1L << (BUCKETS - 1)) / 1000.0;
+        }
+
+        @Override
+        public long[] getLatencyHistogram() {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histogram.get(i);
+            }
+            return buckets;
+        }
+
+        @Override
+        public void resetStatistics() {
+            count.reset();
+            errors.reset();
+            rows.reset();
+            bytes.reset();
+            nanos.reset();
+            maxNanos.set(0);
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package no.ssb.lds.core.persistence.postgres;
+
+/**
+ * Latency and volume of one persistence operation, registered as
+ * no.ssb.lds.persistence.postgres:type=Operation,name=&lt;operation&gt;. Statement executions are registered under the
+ * name "statement", with rows counting the statements of executed batches.
+ */
+public interface OperationMetricsMXBean {
+
+    long getCount();
+
+    long getErrors();
+
+    /**
+     * @return the number of fragments read or written, or batched statements for "statement".
+     */
+    long getRows();
+
+    /**
+     * @return the number of fragment value bytes read or written.
+     */
+    long getBytes();
+
+    double getAverageMillis();
+
+    double getMaxMillis();
+
+    /**
+     * @return the upper bound of the histogram bucket holding the median latency, in milliseconds.
+     */
+    double getMedianMillis();
+
+    /**
+     * @return the upper bound of the histogram bucket holding the 99th percentile latency, in milliseconds.
+     */
+    double getPercentile99Millis();
+
+    /**
+     * @return the number of executions per latency bucket, where bucket i holds latencies below 2^i microseconds.
+     */
+    long[] getLatencyHistogram();
+
+    void resetStatistics();
+}
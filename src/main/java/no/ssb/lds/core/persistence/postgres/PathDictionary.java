@@ -0,0 +1,136 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps index-unaware paths to the integer ids stored in the namespace_v2 table. New paths are registered in a short
+ * transaction of their own on a separate connection, before the write that needs them proceeds. Registering in the
+ * writing transaction would hold the row lock of a new path until that transaction ends, so two writers registering
+ * the same new paths in a different order could deadlock. Several paths are registered in sorted order in one
+ * statement for the same reason. A path stays registered if the write that needed it is rolled back, which is
+ * harmless as paths are never removed.
+ */
+class PathDictionary {
+
+    static final String REGISTER_SQL = "INSERT INTO namespace_path(path) SELECT p FROM unnest(?::varchar[]) AS u(p) ORDER BY p " +
+            "ON CONFLICT (path) DO NOTHING";
+    static final String SELECT_SQL = "SELECT path, path_id FROM namespace_path WHERE path = ANY(?)";
+
+    private final DataSource dataSource;
+    private final ConcurrentHashMap<String, Integer> idByPath = new ConcurrentHashMap<>();
+
+    PathDictionary(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Loads all registered paths. Avoids a round-trip per distinct path after a restart.
+     */
+    void preload() {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement st = connection.createStatement(); ResultSet rs = st.executeQuery("SELECT path_id, path FROM namespace_path")) {
+                while (rs.next()) {
+                    idByPath.put(rs.getString(2), rs.getInt(1));
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * @return the id of the path, registering the path if it is not already known.
+     */
+    int idOf(String path) {
+        Integer id = idByPath.get(path);
+        if (id != null) {
+            return id;
+        }
+        return registerAll(List.of(path)).get(path);
+    }
+
+    /**
+     * @return the id of the path, or null if no fragment was ever written with that path.
+     */
+    Integer lookup(PostgresTransaction tx, String path) throws SQLException {
+        Integer id = idByPath.get(path);
+        if (id != null) {
+            return id;
+        }
+        try (PreparedStatement ps = tx.prepareStatement(SELECT_SQL)) {
+            ps.setArray(1, tx.connection.createArrayOf("varchar", new Object[]{path}));
+            try (ResultSet rs = tx.executeQuery(ps)) {
+                if (!rs.next()) {
+                    return null;
+                }
+                id = rs.getInt(2);
+            }
+        }
+        idByPath.putIfAbsent(path, id);
+        return id;
+    }
+
+    /**
+     * Registers the paths that are not already known, in a transaction of its own that is committed before returning.
+     *
+     * @return the ids of the given paths.
+     */
+    Map<String, Integer> registerAll(Collection<String> paths) {
+        Map<String, Integer> ids = new HashMap<>();
+        SortedSet<String> unknown = new TreeSet<>();
+        for (String path : paths) {
+            Integer id = idByPath.get(path);
+            if (id != null) {
+                ids.put(path, id);
+            } else {
+                unknown.add(path);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return ids;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            Array array = connection.createArrayOf("varchar", unknown.toArray());
+            try (PreparedStatement ps = connection.prepareStatement(REGISTER_SQL)) {
+                ps.setArray(1, array);
+                ps.executeUpdate();
+            }
+            // includes the paths registered concurrently by someone else
+            try (PreparedStatement ps = connection.prepareStatement(SELECT_SQL)) {
+                ps.setArray(1, array);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        ids.put(rs.getString(1), rs.getInt(2));
+                    }
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+        for (String path : unknown) {
+            Integer id = ids.get(path);
+            if (id == null) {
+                throw new PersistenceException("Path was neither registered nor found: " + path);
+            }
+            idByPath.putIfAbsent(path, id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,93 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Overlaps the production of fragments with the execution of write batches. Fragments are collected in chunks of the
+ * current batch-size, and each chunk is handed over to a {@link BatchFragmentWriter} running on a write thread while
+ * the next chunk is collected. A hand-over waits until the previous chunk is written, so at most two chunks are held
+ * in memory, chunks are written in the order they were produced, and the connection of the transaction is never used
+ * by more than one thread at a time.
+ */
+class PipelinedFragmentWriter {
+
+    private final BatchFragmentWriter writer;
+    private final WriteBatchSizer batchSizer;
+    private final Executor executor;
+    private List<Fragment> pending;
+    private CompletableFuture<Void> inFlight = CompletableFuture.completedFuture(null);
+
+    PipelinedFragmentWriter(BatchFragmentWriter writer, WriteBatchSizer batchSizer, Executor executor) {
+        this.writer = writer;
+        this.batchSizer = batchSizer;
+        this.executor = executor;
+        this.pending = new ArrayList<>(batchSizer.batchSize());
+    }
+
+    void write(Fragment fragment) throws SQLException {
+        pending.add(fragment);
+        if (pending.size() >= batchSizer.batchSize()) {
+            handOver();
+        }
+    }
+
+    private void handOver() throws SQLException {
+        await();
+        List<Fragment> chunk = pending;
+        pending = new ArrayList<>(batchSizer.batchSize());
+        inFlight = CompletableFuture.runAsync(() -> {
+            try {
+                for (Fragment fragment : chunk) {
+                    writer.write(fragment);
+                }
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Writes the remaining fragments and flushes the last batch on the calling thread.
+     */
+    void finish() throws SQLException {
+        if (!pending.isEmpty()) {
+            handOver();
+        }
+        await();
+        writer.finish();
+    }
+
+    /**
+     * Waits for the chunk being written, ignoring its outcome, so that the transaction can be safely cancelled.
+     */
+    void cancel() {
+        try {
+            inFlight.join();
+        } catch (CompletionException e) {
+            // failure is reported through the write that observed it
+        }
+    }
+
+    private void await() throws SQLException {
+        try {
+            inFlight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new PersistenceException(cause);
+        }
+    }
+}
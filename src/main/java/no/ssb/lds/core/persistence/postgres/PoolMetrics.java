@@ -0,0 +1,156 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes pool occupancy together with connection acquisition latency and usage times over JMX, for every pool
+ * created with this factory.
+ */
+class PoolMetrics implements MetricsTrackerFactory {
+
+    static final String DOMAIN = "no.ssb.lds.persistence.postgres";
+
+    /**
+     * Registers the bean in {@link #DOMAIN} with the given key properties. A bean registered under the same name by
+     * another provider instance is left alone, and an instance key property is added to the name of this bean instead.
+     *
+     * @return the name the bean was registered under.
+     */
+    static ObjectName register(Object bean, String keyProperties) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (int instance = 1; ; instance++) {
+                ObjectName name = new ObjectName(DOMAIN + ":" + keyProperties + (instance == 1 ? "" : ",instance=" + instance));
+                try {
+                    server.registerMBean(bean, name);
+                    return name;
+                } catch (InstanceAlreadyExistsException e) {
+                    // taken by another instance
+                }
+            }
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        return new Tracker(poolName, poolStats);
+    }
+
+    static class Tracker implements IMetricsTracker, PoolMetricsMXBean {
+
+        private final PoolStats poolStats;
+        private final ObjectName objectName;
+        private final LongAdder acquisitions = new LongAdder();
+        private final LongAdder acquisitionNanos = new LongAdder();
+        private final AtomicLong maxAcquisitionNanos = new AtomicLong();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder usages = new LongAdder();
+        private final LongAdder usageMillis = new LongAdder();
+
+        Tracker(String poolName, PoolStats poolStats) {
+            this.poolStats = poolStats;
+            this.objectName = register(this, "type=ConnectionPool,name=" + ObjectName.quote(poolName));
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquisitions.increment();
+            acquisitionNanos.add(elapsedAcquiredNanos);
+            maxAcquisitionNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+        }
+
+        @Override
+        public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+            usages.increment();
+            usageMillis.add(elapsedBorrowedMillis);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.increment();
+        }
+
+        @Override
+        public void close() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+        }
+
+        @Override
+        public int getActiveConnections() {
+            return poolStats.getActiveConnections();
+        }
+
+        @Override
+        public int getIdleConnections() {
+            return poolStats.getIdleConnections();
+        }
+
+        @Override
+        public int getTotalConnections() {
+            return poolStats.getTotalConnections();
+        }
+
+        @Override
+        public int getMaxConnections() {
+            return poolStats.getMaxConnections();
+        }
+
+        @Override
+        public int getPendingThreads() {
+            return poolStats.getPendingThreads();
+        }
+
+        @Override
+        public long getConnectionAcquisitions() {
+            return acquisitions.sum();
+        }
+
+        @Override
+        public double getAverageAcquisitionMillis() {
+            long count = acquisitions.sum();
+            return count == 0 ? 0 : acquisitionNanos.sum() / (count * 1_000_000.0);
+        }
+
+        @Override
+        public double getMaxAcquisitionMillis() {
+            return maxAcquisitionNanos.get() / 1_000_000.0;
+        }
+
+        @Override
+        public long getConnectionTimeouts() {
+            return timeouts.sum();
+        }
+
+        @Override
+        public double getAverageUsageMillis() {
+            long count = usages.sum();
+            return count == 0 ? 0 : (double) usageMillis.sum() / count;
+        }
+
+        @Override
+        public void resetStatistics() {
+            acquisitions.reset();
+            acquisitionNanos.reset();
+            maxAcquisitionNanos.set(0);
+            timeouts.reset();
+            usages.reset();
+            usageMillis.reset();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package no.ssb.lds.core.persistence.postgres;
+
+/**
+ * Connection pool metrics, registered as no.ssb.lds.persistence.postgres:type=ConnectionPool,name=&lt;pool-name&gt;.
+ */
+public interface PoolMetricsMXBean {
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    int getTotalConnections();
+
+    int getMaxConnections();
+
+    /**
+     * @return the number of threads currently waiting for a connection.
+     */
+    int getPendingThreads();
+
+    long getConnectionAcquisitions();
+
+    /**
+     * @return the mean time callers have waited for a connection, in milliseconds.
+     */
+    double getAverageAcquisitionMillis();
+
+    double getMaxAcquisitionMillis();
+
+    /**
+     * @return the number of connection requests that timed out waiting for a connection.
+     */
+    long getConnectionTimeouts();
+
+    /**
+     * @return the mean time connections were held before being returned to the pool, in milliseconds.
+     */
+    double getAverageUsageMillis();
+
+    void resetStatistics();
+}
@@ -2,16 +2,19 @@ package no.ssb.lds.core.persistence.postgres;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
-import no.ssb.lds.api.persistence.PersistenceInitializer;
 import no.ssb.lds.api.persistence.ProviderName;
 import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
 import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
 import no.ssb.lds.api.specification.Specification;
+import no.ssb.lds.core.persistence.postgres.api.PostgresPersistenceInitializer;
+import no.ssb.lds.core.persistence.postgres.api.PostgresRxPersistence;
 
-import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
@@ -21,7 +24,7 @@ import java.util.logging.Level;
 // https://jdbc.postgresql.org/documentation/head/index.html
 
 @ProviderName("postgres")
-public class PostgresDbInitializer implements PersistenceInitializer {
+public class PostgresDbInitializer implements PostgresPersistenceInitializer {
 
     static class JavaUtilLoggingInitializer {
         static {
@@ -45,13 +48,68 @@ public class PostgresDbInitializer implements PersistenceInitializer {
                 "postgres.driver.port",
                 "postgres.driver.user",
                 "postgres.driver.password",
-                "postgres.driver.database"
+                "postgres.driver.database",
+                "postgres.driver.reWriteBatchedInserts",
+                "postgres.driver.prepareThreshold",
+                "postgres.driver.preparedStatementCacheQueries",
+                "postgres.driver.preparedStatementCacheSizeMiB",
+                "postgres.driver.tcpKeepAlive",
+                "postgres.driver.defaultRowFetchSize",
+                "postgres.driver.binaryTransfer",
+                "postgres.pool.name",
+                "postgres.pool.max-size",
+                "postgres.pool.min-idle",
+                "postgres.pool.connection-timeout-ms",
+                "postgres.pool.idle-timeout-ms",
+                "postgres.pool.max-lifetime-ms",
+                "postgres.pool.leak-detection-threshold-ms",
+                "postgres.pool.metrics.enabled",
+                "postgres.schema.version",
+                "postgres.storage.mode",
+                "postgres.read.io-threads",
+                "postgres.read.prefetch",
+                "postgres.read.batch-size",
+                "postgres.read.page-size",
+                "postgres.read.fetch-size.point",
+                "postgres.read.fetch-size.scan",
+                "postgres.read.fetch-size.max",
+                "postgres.table-per-entity.enabled",
+                "postgres.partitioning.enabled",
+                "postgres.partitioning.version-interval",
+                "postgres.write.mode",
+                "postgres.write.batch.size",
+                "postgres.write.batch.adaptive",
+                "postgres.write.batch.min-size",
+                "postgres.write.batch.max-size",
+                "postgres.write.batch.max-bytes",
+                "postgres.write.batch.target-latency-ms",
+                "postgres.write.skip-unchanged",
+                "postgres.delete.chunk-size",
+                "postgres.cache.document.capacity",
+                "postgres.cache.document.max-fragments",
+                "postgres.index.paths",
+                "postgres.latest-version-table.enabled",
+                "postgres.latest-version-table.reconcile",
+                "postgres.transaction.executor",
+                "postgres.transaction.executor.threads",
+                "postgres.transaction.max-retries",
+                "postgres.transaction.retry-backoff-ms",
+                "postgres.replica.hosts",
+                "postgres.replica.user",
+                "postgres.replica.password",
+                "postgres.replica.routing",
+                "postgres.replica.health-check-interval-ms",
+                "postgres.replica.health-check-max-back-off-ms",
+                "postgres.replica.connection-timeout-ms",
+                "postgres.operation.metrics.enabled",
+                "postgres.operation.slow-statement-threshold-ms"
         );
     }
 
     private PostgresPersistence postgresPersistence;
 
-    public PostgresPersistence getPostgresPersistence() {
+    @Override
+    public PostgresRxPersistence getPostgresPersistence() {
         return postgresPersistence;
     }
 
@@ -60,24 +118,215 @@ public class PostgresDbInitializer implements PersistenceInitializer {
         int fragmentCapacityBytes = Integer.MAX_VALUE; // Postgres persistence-provider does not support fragmentation of document leaf-nodes.
         JavaUtilLoggingInitializer.initialize();
         HikariDataSource dataSource = openDataSource(configuration);
-        postgresPersistence = new PostgresPersistence(new PostgresTransactionFactory(dataSource));
+        PostgresPersistence.WriteMode writeMode = PostgresPersistence.WriteMode.valueOf(
+                configuration.getOrDefault("postgres.write.mode", "batch").toUpperCase());
+        WriteBatchSizer batchSizer = new WriteBatchSizer(
+                intProperty(configuration, "postgres.write.batch.size", 100),
+                booleanProperty(configuration, "postgres.write.batch.adaptive", false),
+                intProperty(configuration, "postgres.write.batch.min-size", 10),
+                intProperty(configuration, "postgres.write.batch.max-size", 10000),
+                longProperty(configuration, "postgres.write.batch.max-bytes", 4 * 1024 * 1024),
+                longProperty(configuration, "postgres.write.batch.target-latency-ms", 50)
+        );
+        ResultSetPublisherFactory publishers = new ResultSetPublisherFactory(
+                intProperty(configuration, "postgres.read.io-threads", 10),
+                intProperty(configuration, "postgres.read.prefetch", 256),
+                intProperty(configuration, "postgres.read.batch-size", 32),
+                intProperty(configuration, "postgres.read.fetch-size.point", 64),
+                intProperty(configuration, "postgres.read.fetch-size.scan", 256),
+                intProperty(configuration, "postgres.read.fetch-size.max", 4096)
+        );
+        String storageMode = configuration.getOrDefault("postgres.storage.mode", "fragment");
+        boolean skipUnchanged = booleanProperty(configuration, "postgres.write.skip-unchanged", false);
+        if (skipUnchanged && (writeMode == PostgresPersistence.WriteMode.COPY || "document".equalsIgnoreCase(storageMode))) {
+            throw new IllegalArgumentException("postgres.write.skip-unchanged requires fragment storage with the batch or pipelined write mode");
+        }
+        if ("document".equalsIgnoreCase(storageMode)) {
+            executeScript(dataSource, "postgres/init-document-storage.sql");
+            RxPersistence documentPersistence = new PostgresDocumentPersistence(transactionFactory(dataSource, configuration), publishers, batchSizer,
+                    intProperty(configuration, "postgres.delete.chunk-size", 1000));
+            return new RxJsonPersistenceBridge(documentPersistence, fragmentCapacityBytes);
+        }
+        if (!"fragment".equalsIgnoreCase(storageMode)) {
+            throw new IllegalArgumentException("Unsupported postgres.storage.mode: " + storageMode);
+        }
+        int schemaVersion = intProperty(configuration, "postgres.schema.version", 1);
+        FragmentLayout layout = fragmentLayout(dataSource, schemaVersion);
+        EntityTables.Mode entityTablesMode = entityTablesMode(configuration);
+        if (entityTablesMode == EntityTables.Mode.PARTITIONED) {
+            executeScript(dataSource, schemaVersion == 2 ? "postgres/init-partitioned-v2.sql" : "postgres/init-partitioned.sql");
+        }
+        EntityTables entityTables = new EntityTables(dataSource, layout.table, entityTablesMode,
+                EntityTables.VersionInterval.valueOf(configuration.getOrDefault("postgres.partitioning.version-interval", "none").toUpperCase()));
+        entityTables.createAll(managedDomains);
+        Set<String> specifiedDomains = specification != null ? specification.getManagedDomains() : managedDomains;
+        ValueIndexes valueIndexes = new ValueIndexes(dataSource, layout, entityTables, ValueIndexes.parse(configuration.get("postgres.index.paths"), specifiedDomains));
+        valueIndexes.createAll();
+        int documentCacheCapacity = intProperty(configuration, "postgres.cache.document.capacity", 0);
+        DocumentCache documentCache = documentCacheCapacity > 0 ? new DocumentCache(documentCacheCapacity,
+                intProperty(configuration, "postgres.cache.document.max-fragments", 1000)) : null;
+        if (skipUnchanged) {
+            executeScript(dataSource, "postgres/init-content-hash.sql");
+        }
+        boolean latestVersionTable = booleanProperty(configuration, "postgres.latest-version-table.enabled", false);
+        if (latestVersionTable) {
+            executeScript(dataSource, "postgres/init-latest-version-table.sql");
+            reconcileLatestVersionTable(dataSource, entityTables, managedDomains,
+                    booleanProperty(configuration, "postgres.latest-version-table.reconcile", false));
+        } else {
+            markLatestVersionTableOutOfSync(dataSource);
+        }
+        postgresPersistence = new PostgresPersistence(transactionFactory(dataSource, configuration), layout, entityTables, publishers, writeMode, batchSizer, documentCache, latestVersionTable,
+                intProperty(configuration, "postgres.read.page-size", 1000), skipUnchanged,
+                intProperty(configuration, "postgres.delete.chunk-size", 1000), valueIndexes);
         return new RxJsonPersistenceBridge(postgresPersistence, fragmentCapacityBytes);
     }
 
+    /**
+     * Operation latency and volume are published over JMX unless postgres.operation.metrics.enabled is false, and
+     * statements running longer than postgres.operation.slow-statement-threshold-ms are logged when it is set.
+     */
+    static PostgresTransactionFactory transactionFactory(HikariDataSource dataSource, Map<String, String> configuration) {
+        TransactionExecutor transactionExecutor = new TransactionExecutor(
+                TransactionExecutor.Mode.valueOf(configuration.getOrDefault("postgres.transaction.executor", "auto").toUpperCase()),
+                intProperty(configuration, "postgres.transaction.executor.threads", dataSource.getMaximumPoolSize()),
+                dataSource.getMaximumPoolSize(),
+                intProperty(configuration, "postgres.transaction.max-retries", 3),
+                longProperty(configuration, "postgres.transaction.retry-backoff-ms", 10)
+        );
+        OperationMetrics metrics = new OperationMetrics(
+                dataSource.getPoolName(),
+                booleanProperty(configuration, "postgres.operation.metrics.enabled", true),
+                longProperty(configuration, "postgres.operation.slow-statement-threshold-ms", 0)
+        );
+        return new PostgresTransactionFactory(dataSource, transactionExecutor, replicaRouter(configuration), metrics);
+    }
+
+    /**
+     * @return a router over the replicas listed in postgres.replica.hosts as comma-separated host[:port], or null when
+     * no replicas are configured. Replicas share database and driver settings with the primary, except for the
+     * connection timeout, which is postgres.replica.connection-timeout-ms so that reads fail over to another replica or
+     * the primary quickly when a replica is unreachable.
+     */
+    static ReplicaRouter replicaRouter(Map<String, String> configuration) {
+        String hosts = configuration.getOrDefault("postgres.replica.hosts", "").trim();
+        if (hosts.isEmpty()) {
+            return null;
+        }
+        List<HikariDataSource> replicas = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            String[] hostAndPort = host.trim().split(":");
+            Properties props = dataSourceProperties(
+                    hostAndPort[0],
+                    hostAndPort.length > 1 ? hostAndPort[1] : configuration.getOrDefault("postgres.driver.port", "5432"),
+                    configuration.getOrDefault("postgres.replica.user", configuration.get("postgres.driver.user")),
+                    configuration.getOrDefault("postgres.replica.password", configuration.get("postgres.driver.password")),
+                    configuration.get("postgres.driver.database"),
+                    driverProperties(configuration));
+            HikariConfig config = poolConfig(configuration, props, "postgres-replica-" + hostAndPort[0]);
+            config.setReadOnly(true);
+            config.setConnectionTimeout(longProperty(configuration, "postgres.replica.connection-timeout-ms", 1000));
+            config.setInitializationFailTimeout(-1); // an unreachable replica must not prevent startup
+            replicas.add(new HikariDataSource(config));
+        }
+        return new ReplicaRouter(replicas,
+                ReplicaRouter.Routing.valueOf(configuration.getOrDefault("postgres.replica.routing", "round_robin").toUpperCase().replace('-', '_')),
+                longProperty(configuration, "postgres.replica.health-check-interval-ms", 5000),
+                longProperty(configuration, "postgres.replica.health-check-max-back-off-ms", 60000));
+    }
+
+    static EntityTables.Mode entityTablesMode(Map<String, String> configuration) {
+        boolean tablePerEntity = booleanProperty(configuration, "postgres.table-per-entity.enabled", false);
+        boolean partitioned = booleanProperty(configuration, "postgres.partitioning.enabled", false);
+        if (tablePerEntity && partitioned) {
+            throw new IllegalArgumentException("postgres.table-per-entity.enabled and postgres.partitioning.enabled are mutually exclusive");
+        }
+        if (tablePerEntity) {
+            return EntityTables.Mode.TABLE_PER_ENTITY;
+        }
+        return partitioned ? EntityTables.Mode.PARTITIONED : EntityTables.Mode.SHARED;
+    }
+
+    static FragmentLayout fragmentLayout(HikariDataSource dataSource, int schemaVersion) {
+        switch (schemaVersion) {
+            case 1:
+                return FragmentLayout.v1();
+            case 2:
+                executeScript(dataSource, "postgres/init-schema-v2.sql");
+                PathDictionary pathDictionary = new PathDictionary(dataSource);
+                pathDictionary.preload();
+                return FragmentLayout.v2(pathDictionary);
+            default:
+                throw new IllegalArgumentException("Unsupported postgres.schema.version: " + schemaVersion);
+        }
+    }
+
+    static int intProperty(Map<String, String> configuration, String key, int defaultValue) {
+        String value = configuration.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    static long longProperty(Map<String, String> configuration, String key, long defaultValue) {
+        String value = configuration.get(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    static boolean booleanProperty(Map<String, String> configuration, String key, boolean defaultValue) {
+        String value = configuration.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
     public static HikariDataSource openDataSource(Map<String, String> configuration) {
-        String postgresDbDriverHost = configuration.get("postgres.driver.host");
-        String postgresDbDriverPort = configuration.get("postgres.driver.port");
-        HikariDataSource dataSource = PostgresDbInitializer.openDataSource(
-                postgresDbDriverHost,
-                postgresDbDriverPort,
+        Properties props = dataSourceProperties(
+                configuration.get("postgres.driver.host"),
+                configuration.get("postgres.driver.port"),
                 configuration.get("postgres.driver.user"),
                 configuration.get("postgres.driver.password"),
-                configuration.get("postgres.driver.database")
+                configuration.get("postgres.driver.database"),
+                driverProperties(configuration)
         );
-        return dataSource;
+        HikariDataSource datasource = new HikariDataSource(poolConfig(configuration, props, configuration.getOrDefault("postgres.pool.name", "postgres")));
+
+        dropOrCreateDatabase(datasource);
+
+        return datasource;
     }
 
-    static HikariDataSource openDataSource(String postgresDbDriverHost, String postgresDbDriverPort, String postgresDbDriverUser, String postgresDbDriverPassword, String postgresDbDriverDatabase) {
+    static Map<String, String> driverProperties(Map<String, String> configuration) {
+        return Map.of(
+                "reWriteBatchedInserts", String.valueOf(booleanProperty(configuration, "postgres.driver.reWriteBatchedInserts", true)),
+                // use server-side prepared statements from the first execution, statements are cached per connection
+                "prepareThreshold", String.valueOf(intProperty(configuration, "postgres.driver.prepareThreshold", 1)),
+                "preparedStatementCacheQueries", String.valueOf(intProperty(configuration, "postgres.driver.preparedStatementCacheQueries", 256)),
+                "preparedStatementCacheSizeMiB", String.valueOf(intProperty(configuration, "postgres.driver.preparedStatementCacheSizeMiB", 5)),
+                "tcpKeepAlive", String.valueOf(booleanProperty(configuration, "postgres.driver.tcpKeepAlive", false)),
+                "defaultRowFetchSize", String.valueOf(intProperty(configuration, "postgres.driver.defaultRowFetchSize", 0)),
+                "binaryTransfer", String.valueOf(booleanProperty(configuration, "postgres.driver.binaryTransfer", true))
+        );
+    }
+
+    /**
+     * Pool settings shared by the primary and replica pools. Pool occupancy and connection acquisition latency are
+     * published over JMX unless postgres.pool.metrics.enabled is false.
+     */
+    static HikariConfig poolConfig(Map<String, String> configuration, Properties props, String poolName) {
+        HikariConfig config = new HikariConfig(props);
+        config.setPoolName(poolName);
+        config.setAutoCommit(false);
+        int maximumPoolSize = intProperty(configuration, "postgres.pool.max-size", 10);
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setMinimumIdle(intProperty(configuration, "postgres.pool.min-idle", maximumPoolSize));
+        config.setConnectionTimeout(longProperty(configuration, "postgres.pool.connection-timeout-ms", 30000));
+        config.setIdleTimeout(longProperty(configuration, "postgres.pool.idle-timeout-ms", 600000));
+        config.setMaxLifetime(longProperty(configuration, "postgres.pool.max-lifetime-ms", 1800000));
+        config.setLeakDetectionThreshold(longProperty(configuration, "postgres.pool.leak-detection-threshold-ms", 0));
+        if (booleanProperty(configuration, "postgres.pool.metrics.enabled", true)) {
+            config.setMetricsTrackerFactory(new PoolMetrics());
+        }
+        return config;
+    }
+
+    static Properties dataSourceProperties(String postgresDbDriverHost, String postgresDbDriverPort, String postgresDbDriverUser, String postgresDbDriverPassword, String postgresDbDriverDatabase, Map<String, String> driverProperties) {
         Properties props = new Properties();
         props.setProperty("dataSourceClassName", "org.postgresql.ds.PGSimpleDataSource");
         props.setProperty("dataSource.serverName", postgresDbDriverHost);
@@ -85,22 +334,51 @@ public class PostgresDbInitializer implements PersistenceInitializer {
         props.setProperty("dataSource.user", postgresDbDriverUser);
         props.setProperty("dataSource.password", postgresDbDriverPassword);
         props.setProperty("dataSource.databaseName", postgresDbDriverDatabase);
-        props.put("dataSource.logWriter", new PrintWriter(System.out));
-
-        HikariConfig config = new HikariConfig(props);
-        config.setAutoCommit(false);
-        config.setMaximumPoolSize(10);
-        HikariDataSource datasource = new HikariDataSource(config);
+        driverProperties.forEach((key, value) -> props.setProperty("dataSource." + key, value));
+        return props;
+    }
 
-        dropOrCreateDatabase(datasource);
+    /**
+     * Reconciling scans the whole version history, so a scope is only reconciled when it is not recorded as in sync,
+     * which is the case when the table was just enabled or was disabled at some startup since, or for every scope when
+     * postgres.latest-version-table.reconcile is set. Entities without a table of their own are reconciled as one
+     * scope against the base table.
+     */
+    static void reconcileLatestVersionTable(HikariDataSource dataSource, EntityTables entityTables, Set<String> managedDomains, boolean always) {
+        try (Connection connection = dataSource.getConnection()) {
+            if (!entityTables.isTablePerEntity()) {
+                LatestVersionTable.reconcileUnlessInSync(connection, entityTables.sharedTable(), null, Set.of(), always);
+                return;
+            }
+            for (String entity : managedDomains) {
+                LatestVersionTable.reconcileUnlessInSync(connection, entityTables.of(entity), entity, Set.of(), always);
+            }
+            LatestVersionTable.reconcileUnlessInSync(connection, entityTables.sharedTable(), null, managedDomains, always);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        return datasource;
+    static void markLatestVersionTableOutOfSync(HikariDataSource dataSource) {
+        try (Connection connection = dataSource.getConnection()) {
+            LatestVersionTable.markOutOfSync(connection);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     static void dropOrCreateDatabase(HikariDataSource datasource) {
-        try {
-            String initSQL = FileAndClasspathReaderUtils.readFileOrClasspathResource("postgres/init-db.sql");
-            Connection conn = datasource.getConnection();
+        executeScript(datasource, "postgres/init-db.sql");
+    }
+
+    /**
+     * Runs the statements of an sql script in one transaction. Besides init-db.sql, which is run for every
+     * configuration, each optional mode has a script of its own that is only run when that mode is configured, so
+     * that no unused tables or indexes are created and maintained.
+     */
+    static void executeScript(HikariDataSource datasource, String resource) {
+        String initSQL = FileAndClasspathReaderUtils.readFileOrClasspathResource(resource);
+        try (Connection conn = datasource.getConnection()) {
             conn.beginRequest();
 
             try (Scanner s = new Scanner(initSQL)) {
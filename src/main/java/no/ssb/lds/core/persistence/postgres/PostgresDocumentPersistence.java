@@ -0,0 +1,253 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.util.Optional.ofNullable;
+
+/**
+ * Persistence storing every document version as a single row of the namespace_document table, with all fragments
+ * packed by {@link DocumentCodec}. Fragments are reconstructed in memory when read, so reading or writing a document
+ * costs one row and one index entry regardless of the number of leaf-nodes. Find is answered by jsonb containment on
+ * the GIN-indexed leaf-index column.
+ */
+class PostgresDocumentPersistence implements RxPersistence {
+
+    private static final ZonedDateTime BEGINNING_OF_TIME = ZonedDateTime.of(1, 1, 1, 0, 0, 0, 0, FragmentLayout.UTC);
+    private static final ZonedDateTime END_OF_TIME = ZonedDateTime.of(9999, 1, 1, 0, 0, 0, 0, FragmentLayout.UTC);
+
+    final PostgresTransactionFactory transactionFactory;
+    final ResultSetPublisherFactory publishers;
+    final WriteBatchSizer batchSizer;
+    final int deleteChunkSize;
+
+    PostgresDocumentPersistence(PostgresTransactionFactory transactionFactory, ResultSetPublisherFactory publishers, WriteBatchSizer batchSizer, int deleteChunkSize) {
+        this.transactionFactory = transactionFactory;
+        this.publishers = publishers;
+        this.batchSizer = batchSizer;
+        this.deleteChunkSize = deleteChunkSize;
+    }
+
+    @Override
+    public TransactionFactory transactionFactory() throws PersistenceException {
+        return transactionFactory;
+    }
+
+    @Override
+    public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+        return transactionFactory.createTransaction(readOnly);
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction transaction, Flowable<Fragment> fragments) {
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.write(tx, "createOrOverwrite", fragments, measuredFragments -> Single.fromCallable(() -> new DocumentWriter(tx, batchSizer))
+                .flatMapCompletable(writer -> measuredFragments
+                        .doOnNext(writer::write)
+                        .ignoreElements()
+                        .andThen(Completable.fromAction(writer::finish))));
+    }
+
+    private Flowable<Fragment> documents(ResultSet resultSet, String namespace, String entity) {
+        return publishers.flowable(resultSet, rs -> toFragments(rs, namespace, entity))
+                .concatMapIterable(batch -> batch)
+                .concatMapIterable(fragments -> fragments);
+    }
+
+    private static List<Fragment> toFragments(ResultSet resultSet, String namespace, String entity) throws SQLException {
+        String id = resultSet.getString(1);
+        ZonedDateTime version = FragmentLayout.toZonedDateTime(resultSet.getTimestamp(2));
+        return DocumentCodec.decode(resultSet.getBytes(3), namespace, entity, id, version);
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        final PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.read(tx, "read", Single.fromCallable(() -> {
+            PreparedStatement ps = tx.prepareStatement("SELECT id, version, fragments FROM namespace_document " +
+                    "WHERE entity = ? AND id = ? AND version <= ? ORDER BY version DESC LIMIT 1");
+            ps.setString(1, entity);
+            ps.setString(2, id);
+            ps.setTimestamp(3, new Timestamp(snapshot.toInstant().toEpochMilli()));
+            return tx.executeQuery(ps);
+        }).flatMapPublisher(resultSet -> documents(resultSet, namespace, entity)));
+    }
+
+    @Override
+    public Flowable<Fragment> readVersions(Transaction transaction, String namespace, String entity, String id, Range<ZonedDateTime> range) {
+        final PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.read(tx, "readVersions", Single.fromCallable(() -> {
+            Timestamp snapshotAfterVersion = new Timestamp(ofNullable(range.getAfter()).orElse(BEGINNING_OF_TIME).toInstant().toEpochMilli());
+            Timestamp snapshotBeforeVersion = new Timestamp(ofNullable(range.getBefore()).orElse(END_OF_TIME).toInstant().toEpochMilli());
+            PreparedStatement ps = tx.prepareStatement("SELECT id, version, fragments FROM namespace_document " +
+                    "WHERE entity = ? AND id = ? AND version < ? " +
+                    "AND version >= COALESCE((SELECT max(version) FROM namespace_document WHERE entity = ? AND id = ? AND version <= ?), '-infinity') " +
+                    "ORDER BY version");
+            ps.setString(1, entity);
+            ps.setString(2, id);
+            ps.setTimestamp(3, snapshotBeforeVersion);
+            ps.setString(4, entity);
+            ps.setString(5, id);
+            ps.setTimestamp(6, snapshotAfterVersion);
+            if (range.getLimit() != null) {
+                ps.setMaxRows(range.getLimit());
+            }
+            tx.stream(ps, publishers.scanFetchSize());
+            return tx.executeQuery(ps);
+        }).flatMapPublisher(resultSet -> documents(resultSet, namespace, entity)));
+    }
+
+    @Override
+    public Flowable<Fragment> readAll(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, Range<String> range) {
+        final PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.read(tx, "readAll", Single.fromCallable(() -> {
+            PreparedStatement ps = tx.prepareStatement("SELECT DISTINCT ON (id) id, version, fragments FROM namespace_document " +
+                    "WHERE entity = ? AND ? < id AND id < ? AND version <= ? " +
+                    "ORDER BY id, version DESC");
+            ps.setString(1, entity);
+            ps.setString(2, ofNullable(range.getAfter()).orElse(" "));
+            ps.setString(3, ofNullable(range.getBefore()).orElse("~"));
+            ps.setTimestamp(4, new Timestamp(snapshot.toInstant().toEpochMilli()));
+            if (range.getLimit() != null) {
+                ps.setMaxRows(range.getLimit());
+            }
+            tx.stream(ps, publishers.scanFetchSize());
+            return tx.executeQuery(ps);
+        }).flatMapPublisher(resultSet -> documents(resultSet, namespace, entity)));
+    }
+
+    @Override
+    public Completable delete(Transaction transaction, String namespace, String entity, String id, ZonedDateTime version, PersistenceDeletePolicy policy) {
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "delete", Completable.fromCallable(() -> {
+            checkDeletePolicy(tx, entity, id, policy);
+            try (PreparedStatement ps = tx.prepareStatement("DELETE FROM namespace_document WHERE entity = ? AND id = ? AND version = ?")) {
+                ps.setString(1, entity);
+                ps.setString(2, id);
+                ps.setTimestamp(3, new Timestamp(version.toInstant().toEpochMilli()));
+                tx.executeUpdate(ps);
+            }
+            return null;
+        }));
+    }
+
+    @Override
+    public Completable deleteAllVersions(Transaction transaction, String namespace, String entity, String id, PersistenceDeletePolicy policy) {
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "deleteAllVersions", Completable.fromCallable(() -> {
+            checkDeletePolicy(tx, entity, id, policy);
+            try (PreparedStatement ps = tx.prepareStatement("DELETE FROM namespace_document WHERE entity = ? AND id = ?")) {
+                ps.setString(1, entity);
+                ps.setString(2, id);
+                tx.executeUpdate(ps);
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Deletes in chunks of deleteChunkSize ids, each committed in a transaction of its own, like the fragment storage
+     * does, see {@link ChunkedDeletes#deleteAll(PostgresTransactionFactory, PostgresTransaction, List)}.
+     */
+    @Override
+    public Completable deleteAllEntities(Transaction transaction, String namespace, String entity, Iterable<String> paths) {
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "deleteAllEntities", Completable.fromCallable(() -> {
+            new ChunkedDeletes("namespace_document", entity, deleteChunkSize).deleteAll(transactionFactory, tx, List.of());
+            return null;
+        }));
+    }
+
+    private static void checkDeletePolicy(PostgresTransaction tx, String entity, String id, PersistenceDeletePolicy policy) throws SQLException {
+        IncomingLinks.checkDeletePolicy(policy, entity, id, () -> IncomingLinks.existInDocuments(tx, entity, id));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction transaction, String namespace, String entity, String id, ZonedDateTime timestamp, PersistenceDeletePolicy policy) {
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "markDeleted", Completable.fromCallable(() -> {
+            checkDeletePolicy(tx, entity, id, policy);
+            Fragment deleteMarker = new Fragment(namespace, entity, id, timestamp, "", FragmentType.DELETED, 0, null);
+            try (PreparedStatement ps = tx.prepareStatement(DocumentWriter.UPSERT_SQL)) {
+                ps.setString(1, entity);
+                ps.setString(2, id);
+                ps.setTimestamp(3, new Timestamp(timestamp.toInstant().toEpochMilli()));
+                ps.setBoolean(4, true);
+                ps.setBytes(5, DocumentCodec.encode(List.of(deleteMarker)).fragments);
+                ps.setString(6, "{}");
+                tx.executeUpdate(ps);
+            }
+            return null;
+        }));
+    }
+
+    @Override
+    public Flowable<Fragment> find(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, String path, byte[] value, Range<String> range) {
+        final PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.read(tx, "find", Single.fromCallable(() -> {
+            PreparedStatement ps = tx.prepareStatement("SELECT d.id, d.version, d.fragments FROM namespace_document d " +
+                    "JOIN (SELECT id, max(version) ver FROM namespace_document WHERE entity = ? AND leaves @> ?::jsonb AND version <= ? GROUP BY id ORDER BY id LIMIT ?) a " +
+                    "ON (d.id = a.id AND d.version = a.ver) " +
+                    "WHERE d.entity = ? " +
+                    "ORDER BY d.id");
+            ps.setString(1, entity);
+            ps.setString(2, DocumentCodec.leafProbe(path, value));
+            ps.setTimestamp(3, new Timestamp(snapshot.toInstant().toEpochMilli()));
+            ps.setInt(4, ofNullable(range.getLimit()).orElse(100));
+            ps.setString(5, entity);
+            tx.stream(ps, publishers.scanFetchSize());
+            return tx.executeQuery(ps);
+        }).flatMapPublisher(resultSet -> documents(resultSet, namespace, entity)));
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return exists((PostgresTransaction) tx, "hasPrevious", snapshot, entityName, " ", id);
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return exists((PostgresTransaction) tx, "hasNext", snapshot, entityName, id, "~");
+    }
+
+    /**
+     * Probes for a document with an id strictly between after and before that has a version at the snapshot. Answered
+     * from the primary-key index alone, and stops at the first match.
+     */
+    private Single<Boolean> exists(PostgresTransaction tx, String operation, ZonedDateTime snapshot, String entity, String after, String before) {
+        return tx.metrics.single(tx, operation, Single.fromCallable(() -> {
+            try (PreparedStatement ps = tx.prepareStatement("SELECT EXISTS (SELECT 1 FROM namespace_document WHERE entity = ? AND ? < id AND id < ? AND version <= ?)")) {
+                ps.setString(1, entity);
+                ps.setString(2, after);
+                ps.setString(3, before);
+                ps.setTimestamp(4, new Timestamp(snapshot.toInstant().toEpochMilli()));
+                try (ResultSet resultSet = tx.executeQuery(ps)) {
+                    resultSet.next();
+                    return resultSet.getBoolean(1);
+                }
+            }
+        }));
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        publishers.close();
+        transactionFactory.close();
+    }
+}
@@ -9,11 +9,14 @@ import no.ssb.lds.api.persistence.PersistenceException;
 import no.ssb.lds.api.persistence.Transaction;
 import no.ssb.lds.api.persistence.TransactionFactory;
 import no.ssb.lds.api.persistence.reactivex.Range;
-import no.ssb.lds.api.persistence.reactivex.RxPersistence;
 import no.ssb.lds.api.persistence.streaming.Fragment;
 import no.ssb.lds.api.persistence.streaming.FragmentType;
+import no.ssb.lds.core.persistence.postgres.api.BulkImportListener;
+import no.ssb.lds.core.persistence.postgres.api.BulkImportResult;
+import no.ssb.lds.core.persistence.postgres.api.PostgresRxPersistence;
+import no.ssb.lds.core.persistence.postgres.api.ValuePredicate;
+import org.postgresql.PGStatement;
 
-import java.sql.Array;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -21,23 +24,72 @@ import java.sql.Timestamp;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Optional.ofNullable;
 
-class PostgresPersistence implements RxPersistence {
+class PostgresPersistence implements PostgresRxPersistence {
 
     private static final ZonedDateTime BEGINNING_OF_TIME = ZonedDateTime.of(1, 1, 1, 0, 0, 0, 0, ZoneId.of("Etc/UTC"));
     private static final ZonedDateTime END_OF_TIME = ZonedDateTime.of(9999, 1, 1, 0, 0, 0, 0, ZoneId.of("Etc/UTC"));
 
+    /**
+     * Strategy used by createOrOverwrite to get fragments into the database.
+     */
+    enum WriteMode {
+        /**
+         * JDBC batches of INSERT statements.
+         */
+        BATCH,
+        /**
+         * Binary COPY into a staging table followed by a merge into the namespace table. Best suited for bulk loads.
+         */
+        COPY,
+        /**
+         * JDBC batches like {@link #BATCH}, executed on a write thread while the next batch is collected, so that
+         * producing fragments and executing batches overlap.
+         */
+        PIPELINED
+    }
+
+    private static final int COPY_REQUEST_BATCH_SIZE = 1024;
+
     final PostgresTransactionFactory transactionFactory;
+    final FragmentLayout layout;
+    final EntityTables entityTables;
+    final ResultSetPublisherFactory publishers;
+    final WriteMode writeMode;
+    final WriteBatchSizer batchSizer;
+    final DocumentCache documentCache; // null when caching is disabled
+    final boolean latestVersionTable;
+    final int readAllPageSize;
+    final boolean skipUnchanged;
+    final int deleteChunkSize;
+    final ValueIndexes valueIndexes;
+    final ExecutorService writeExecutor; // null unless writes are pipelined
 
-    PostgresPersistence(PostgresTransactionFactory transactionFactory) {
+    PostgresPersistence(PostgresTransactionFactory transactionFactory, FragmentLayout layout, EntityTables entityTables, ResultSetPublisherFactory publishers, WriteMode writeMode, WriteBatchSizer batchSizer, DocumentCache documentCache, boolean latestVersionTable, int readAllPageSize, boolean skipUnchanged, int deleteChunkSize, ValueIndexes valueIndexes) {
         this.transactionFactory = transactionFactory;
+        this.layout = layout;
+        this.entityTables = entityTables;
+        this.publishers = publishers;
+        this.writeMode = writeMode;
+        this.batchSizer = batchSizer;
+        this.documentCache = documentCache;
+        this.latestVersionTable = latestVersionTable;
+        this.readAllPageSize = readAllPageSize;
+        this.skipUnchanged = skipUnchanged;
+        this.deleteChunkSize = deleteChunkSize;
+        this.valueIndexes = valueIndexes;
+        this.writeExecutor = writeMode == WriteMode.PIPELINED ? Executors.newCachedThreadPool(new WriteThreadFactory()) : null;
     }
 
     @Override
@@ -50,132 +102,234 @@ class PostgresPersistence implements RxPersistence {
         return transactionFactory.createTransaction(readOnly);
     }
 
-    static class CreateSql {
-        final PreparedStatement ps;
-        final PreparedStatement deleteStatement;
+    @Override
+    public Completable createOrOverwrite(Transaction transaction, Flowable<Fragment> fragments) {
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.write(tx, "createOrOverwrite", fragments, measuredFragments -> {
+            Flowable<Fragment> invalidatingFragments = invalidateCachedDocuments(tx, measuredFragments);
+            if (writeMode == WriteMode.COPY) {
+                return copyCreateOrOverwrite(tx, invalidatingFragments);
+            }
+            if (writeMode == WriteMode.PIPELINED) {
+                return pipelinedCreateOrOverwrite(tx, invalidatingFragments);
+            }
+            return batchCreateOrOverwrite(tx, invalidatingFragments);
+        });
+    }
+
+    private Flowable<Fragment> invalidateCachedDocuments(PostgresTransaction tx, Flowable<Fragment> fragments) {
+        if (documentCache == null) {
+            return fragments;
+        }
+        return Flowable.defer(() -> {
+            Set<DocumentKey> documents = new HashSet<>();
+            return fragments.doOnNext(fragment -> {
+                if (documents.add(DocumentKey.from(fragment))) {
+                    long version = fragment.timestamp().toInstant().toEpochMilli();
+                    invalidateOnModification(tx, () -> documentCache.invalidate(fragment.namespace(), fragment.entity(), fragment.id(), version));
+                }
+            });
+        });
+    }
 
-        CreateSql(PreparedStatement ps, PreparedStatement deleteStatement) {
-            this.ps = ps;
-            this.deleteStatement = deleteStatement;
+    /**
+     * Invalidates cached documents immediately, and once more when the transaction completes so that reads from
+     * other transactions that ran concurrently with the write cannot leave stale entries behind.
+     */
+    private void invalidateOnModification(PostgresTransaction tx, Runnable invalidation) {
+        if (documentCache == null) {
+            return;
         }
+        invalidation.run();
+        tx.onModification(invalidation);
+    }
+
+    private Completable copyCreateOrOverwrite(PostgresTransaction tx, Flowable<Fragment> fragments) {
+        return Single.fromCallable(() -> new CopyFragmentWriter(tx, layout, entityTables, latestVersionTable))
+                .flatMapCompletable(writer -> fragments
+                        .rebatchRequests(COPY_REQUEST_BATCH_SIZE) // bounded demand keeps upstream from buffering ahead of the COPY stream
+                        .doOnNext(writer::write)
+                        .ignoreElements()
+                        .andThen(Completable.fromAction(writer::finish))
+                        .doOnError(t -> writer.cancel())
+                        .doOnDispose(writer::cancel));
+    }
+
+    private Completable batchCreateOrOverwrite(PostgresTransaction tx, Flowable<Fragment> fragments) {
+        return Single.fromCallable(() -> new BatchFragmentWriter(tx, layout, entityTables, batchSizer, latestVersionTable, skipUnchanged))
+                .flatMapCompletable(writer -> fragments
+                        .doOnNext(writer::write)
+                        .ignoreElements()
+                        .andThen(Completable.fromAction(writer::finish)));
+    }
+
+    private Completable pipelinedCreateOrOverwrite(PostgresTransaction tx, Flowable<Fragment> fragments) {
+        return Single.fromCallable(() -> new PipelinedFragmentWriter(new BatchFragmentWriter(tx, layout, entityTables, batchSizer, latestVersionTable, skipUnchanged), batchSizer, writeExecutor))
+                .flatMapCompletable(writer -> fragments
+                        .doOnNext(writer::write)
+                        .ignoreElements()
+                        .andThen(Completable.fromAction(writer::finish))
+                        .doOnError(t -> writer.cancel())
+                        .doOnDispose(writer::cancel));
     }
 
     @Override
-    public Completable createOrOverwrite(Transaction transaction, Flowable<Fragment> fragments) {
-        int batchSize = 100;
-        final AtomicReference<CreateSql> createSqlRef = new AtomicReference<>();
-        final AtomicInteger insertCount = new AtomicInteger();
-        final AtomicInteger deleteCount = new AtomicInteger();
-        final Set<DocumentKey> deletedDocuments = new LinkedHashSet<>();
-        final PostgresTransaction tx = (PostgresTransaction) transaction;
-        return Single.fromCallable(() -> new CreateSql(
-                tx.connection.prepareStatement("INSERT INTO namespace(entity, id, version, path, indices, type, value) values(?, ?, ?, ?, ?, ?, ?)"),
-                tx.connection.prepareStatement("DELETE FROM namespace WHERE entity = ? AND id = ? AND version = ?")))
-                .flatMapPublisher(createSql -> fragments.doOnNext(item -> {
-                    createSqlRef.set(createSql);
-                    PreparedStatement ps = createSql.ps;
-                    PreparedStatement deleteStatement = createSql.deleteStatement;
-                    if (item.offset() != 0) {
-                        throw new IllegalStateException("Postgres fragments must have offset == 0, illegal offset: " + item.offset());
-                    }
-                    try {
-                        Timestamp version = new Timestamp(item.timestamp().toInstant().toEpochMilli());
-                        if (deletedDocuments.add(DocumentKey.from(item))) {
-                            deleteStatement.setString(1, item.entity());
-                            deleteStatement.setString(2, item.id());
-                            deleteStatement.setTimestamp(3, version);
-                            deleteStatement.addBatch();
-                            deleteCount.incrementAndGet();
-                        }
-                        ps.setString(1, item.entity());
-                        ps.setString(2, item.id());
-                        ps.setTimestamp(3, version);
-                        ArrayList<Integer> indices = new ArrayList<>();
-                        String indexUnawarePath = Fragment.computeIndexUnawarePath(item.path(), indices);
-                        ps.setString(4, indexUnawarePath);
-                        Integer[] elements = indices.toArray(new Integer[indices.size()]);
-                        Array pathIndices = tx.connection.createArrayOf("integer", elements);
-                        ps.setArray(5, pathIndices);
-                        ps.setShort(6, (short) item.fragmentType().ordinal());
-                        ps.setBytes(7, item.value());
-                        ps.addBatch();
-                        if (insertCount.incrementAndGet() % batchSize == 0) {
-                            if (deleteCount.get() > 0) {
-                                deleteStatement.executeBatch();
-                                deleteStatement.clearBatch();
-                                deleteCount.set(0);
-                            }
-                            ps.executeBatch();
-                            ps.clearBatch();
-                        }
-                    } catch (SQLException e) {
-                        throw new PersistenceException(e);
-                    }
-                }))
-                .ignoreElements()
-                .doOnComplete(() -> {
-                    if (insertCount.get() % batchSize == 0) {
-                        return; // batch was run by the very last fragment
-                    }
-                    if (createSqlRef.get() == null) {
-                        return; // no fragments was processed
-                    }
-                    if (deleteCount.get() > 0) {
-                        PreparedStatement deleteStatement = createSqlRef.get().deleteStatement;
-                        deleteStatement.executeBatch();
-                        deleteStatement.clearBatch();
-                        deleteCount.set(0);
-                    }
-                    PreparedStatement ps = createSqlRef.get().ps;
-                    ps.executeBatch();
-                    ps.clearBatch();
-                });
+    public Single<BulkImportResult> bulkImport(Flowable<Fragment> fragments, int workers, int documentsPerTransaction, BulkImportListener listener) {
+        return Single.fromCallable(() -> new BulkImport(this, workers, documentsPerTransaction, listener).run(fragments));
     }
 
     @Override
     public Flowable<Fragment> read(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, String id) {
         final PostgresTransaction tx = (PostgresTransaction) transaction;
-        return Single.fromCallable(() -> {
+        if (documentCache != null) {
+            return tx.metrics.read(tx, "read", cachedRead(tx, snapshot, namespace, entity, id));
+        }
+        return tx.metrics.read(tx, "read", Single.fromCallable(() -> {
+            String table = entityTables.of(entity);
             Timestamp snapshotVersion = new Timestamp(snapshot.toInstant().toEpochMilli());
-            PreparedStatement ps = tx.connection.prepareStatement(
-                    "SELECT id, version, path, indices, type, value " +
-                            "FROM namespace " +
-                            "WHERE entity = ? AND id = ? AND version = (SELECT max(version) FROM namespace WHERE entity = ? AND id = ? AND version <= ?) " +
-                            "ORDER BY version, path, indices, type");
+            PreparedStatement ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                    "WHERE n.entity = ? AND n.id = ? AND n.version = " + versionAtSnapshotSql(table) + " " +
+                    "ORDER BY " + layout.pathColumn() + ", n.indices, n.type");
+            ps.setString(1, entity);
+            ps.setString(2, id);
+            setVersionAtSnapshotParameters(ps, 3, entity, id, snapshotVersion);
+            tx.stream(ps, publishers.pointFetchSize());
+            ResultSet resultSet = tx.executeQuery(ps);
+            return resultSet;
+        }).flatMapPublisher(resultSet -> fragments(resultSet, namespace, entity)));
+    }
+
+    private Flowable<Fragment> fragments(ResultSet resultSet, String namespace, String entity) {
+        return publishers.flowable(resultSet, rs -> layout.decode(rs, namespace, entity))
+                .concatMapIterable(batch -> batch);
+    }
+
+    private String versionAtSnapshotSql(String table) {
+        if (latestVersionTable) {
+            return LatestVersionTable.versionAtSnapshotSql(table);
+        }
+        return "(SELECT max(version) FROM " + table + " WHERE entity = ? AND id = ? AND version <= ?)";
+    }
+
+    private int setVersionAtSnapshotParameters(PreparedStatement ps, int index, String entity, String id, Timestamp snapshot) throws SQLException {
+        if (latestVersionTable) {
+            return LatestVersionTable.setVersionAtSnapshotParameters(ps, index, entity, id, snapshot);
+        }
+        ps.setString(index++, entity);
+        ps.setString(index++, id);
+        ps.setTimestamp(index++, snapshot);
+        return index;
+    }
+
+    /**
+     * Resolves the version visible at the snapshot using the primary-key index only, and serves the fragments of that
+     * version from the cache when present.
+     */
+    private Flowable<Fragment> cachedRead(PostgresTransaction tx, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        return Single.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            try (PreparedStatement ps = tx.prepareStatement("SELECT " + versionAtSnapshotSql(table))) {
+                setVersionAtSnapshotParameters(ps, 1, entity, id, new Timestamp(snapshot.toInstant().toEpochMilli()));
+                try (ResultSet resultSet = tx.executeQuery(ps)) {
+                    resultSet.next();
+                    return Optional.ofNullable(resultSet.getTimestamp(1));
+                }
+            }
+        }).flatMapPublisher(version -> {
+            if (version.isEmpty()) {
+                return Flowable.empty();
+            }
+            DocumentCache.Key key = new DocumentCache.Key(namespace, entity, id, version.get().getTime());
+            List<Fragment> cachedFragments = documentCache.get(key);
+            if (cachedFragments != null) {
+                return Flowable.fromIterable(cachedFragments);
+            }
+            Flowable<Fragment> fragments = readVersion(tx, namespace, entity, id, version.get());
+            if (tx.isModified()) {
+                return fragments; // uncommitted writes must not be visible to other transactions
+            }
+            long generation = documentCache.generation();
+            int maxFragments = documentCache.maxFragmentsPerDocument();
+            return Flowable.defer(() -> {
+                List<Fragment> collected = new ArrayList<>();
+                return fragments
+                        .doOnNext(fragment -> {
+                            if (collected.size() <= maxFragments) {
+                                collected.add(fragment);
+                            }
+                        })
+                        .doOnComplete(() -> documentCache.put(key, collected, generation));
+            });
+        });
+    }
+
+    private Flowable<Fragment> readVersion(PostgresTransaction tx, String namespace, String entity, String id, Timestamp version) {
+        return Single.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            PreparedStatement ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                    "WHERE n.entity = ? AND n.id = ? AND n.version = ? " +
+                    "ORDER BY " + layout.pathColumn() + ", n.indices, n.type");
             ps.setString(1, entity);
             ps.setString(2, id);
-            ps.setString(3, entity);
-            ps.setString(4, id);
-            ps.setTimestamp(5, snapshotVersion);
-            ps.setFetchSize(10);
-            ResultSet resultSet = ps.executeQuery();
+            ps.setTimestamp(3, version);
+            tx.stream(ps, publishers.pointFetchSize());
+            ResultSet resultSet = tx.executeQuery(ps);
             return resultSet;
-        }).flatMapPublisher(resultSet -> Flowable.fromPublisher(new ResultSetPublisher(resultSet)).map(rs -> toFragment(rs, namespace, entity)));
+        }).flatMapPublisher(resultSet -> fragments(resultSet, namespace, entity));
     }
 
-    private Fragment toFragment(ResultSet resultSet, String namespace, String entity) throws SQLException {
-        String id = resultSet.getString(1);
-        Timestamp version = resultSet.getTimestamp(2);
-        ZonedDateTime timestamp = ZonedDateTime.ofInstant(version.toInstant(), ZoneId.of("Etc/UTC"));
-        String indexUnawarePath = resultSet.getString(3);
-        Array arrayIndices = resultSet.getArray(4);
-        Integer[] integerArray = (Integer[]) arrayIndices.getArray();
-        List<Integer> indices = List.of(integerArray);
-        String path = Fragment.computePathFromIndexUnawarePathAndIndices(indexUnawarePath, indices);
-        short type = resultSet.getShort(5);
-        byte[] value = resultSet.getBytes(6);
-        return new Fragment(namespace, entity, id, timestamp, path, FragmentType.fromTypeCode((byte) type), 0, value);
+    @Override
+    public Flowable<Fragment> readDocuments(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return Flowable.empty();
+        }
+        final PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.read(tx, "readDocuments", Single.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            Timestamp snapshotVersion = new Timestamp(snapshot.toInstant().toEpochMilli());
+            PreparedStatement ps;
+            if (latestVersionTable) {
+                ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                        // driven by the requested ids, so that documents without a row in namespace_latest are still read
+                        "JOIN (SELECT i.id, " + LatestVersionTable.latestVersionAtSnapshotColumnSql(table, "i.id") + " AS version " +
+                        "FROM (SELECT DISTINCT u.id COLLATE \"POSIX\" AS id FROM unnest(?::varchar[]) AS u(id)) i " +
+                        "LEFT JOIN namespace_latest l ON (l.entity = ? AND l.id = i.id)) a " +
+                        "ON (n.id = a.id AND n.version = a.version) " +
+                        "WHERE n.entity = ? " +
+                        "ORDER BY n.id, " + layout.pathColumn() + ", n.indices, n.type");
+                ps.setTimestamp(1, snapshotVersion);
+                ps.setString(2, entity);
+                ps.setTimestamp(3, snapshotVersion);
+                ps.setArray(4, tx.connection.createArrayOf("varchar", ids.toArray()));
+                ps.setString(5, entity);
+                ps.setString(6, entity);
+            } else {
+                ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                        "JOIN (SELECT DISTINCT ON (id) id, version FROM " + table + " WHERE entity = ? AND id = ANY(?) AND version <= ? ORDER BY id, version DESC) a " +
+                        "ON (n.id = a.id AND n.version = a.version) " +
+                        "WHERE n.entity = ? " +
+                        "ORDER BY n.id, " + layout.pathColumn() + ", n.indices, n.type");
+                ps.setString(1, entity);
+                ps.setArray(2, tx.connection.createArrayOf("varchar", ids.toArray()));
+                ps.setTimestamp(3, snapshotVersion);
+                ps.setString(4, entity);
+            }
+            tx.stream(ps, publishers.scanFetchSize());
+            ResultSet resultSet = tx.executeQuery(ps);
+            return resultSet;
+        }).flatMapPublisher(resultSet -> fragments(resultSet, namespace, entity)));
     }
 
     @Override
     public Flowable<Fragment> readVersions(Transaction transaction, String namespace, String entity, String id, Range<ZonedDateTime> range) {
         final PostgresTransaction tx = (PostgresTransaction) transaction;
-        return Single.fromCallable(() -> {
+        return tx.metrics.read(tx, "readVersions", Single.fromCallable(() -> {
+            String table = entityTables.of(entity);
             Timestamp snapshotAfterVersion = new Timestamp(ofNullable(range.getAfter()).orElse(BEGINNING_OF_TIME).toInstant().toEpochMilli());
             Timestamp snapshotBeforeVersion = new Timestamp(ofNullable(range.getBefore()).orElse(END_OF_TIME).toInstant().toEpochMilli());
-            PreparedStatement ps = tx.connection.prepareStatement("SELECT id, version, path, indices, type, value FROM namespace, " +
-                    "(SELECT max(version) v FROM namespace WHERE entity = ? AND id = ? AND version <= ? LIMIT 1) a " +
-                    "WHERE entity = ? AND id = ? AND version < ? AND (a.v IS NULL OR version >= a.v)");
+            PreparedStatement ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                    "CROSS JOIN (SELECT max(version) v FROM " + table + " WHERE entity = ? AND id = ? AND version <= ? LIMIT 1) a " +
+                    "WHERE n.entity = ? AND n.id = ? AND n.version < ? AND (a.v IS NULL OR n.version >= a.v)");
             ps.setString(1, entity);
             ps.setString(2, id);
             ps.setTimestamp(3, snapshotAfterVersion);
@@ -185,130 +339,315 @@ class PostgresPersistence implements RxPersistence {
             if (range.getLimit() != null) {
                 ps.setMaxRows(range.getLimit());
             }
-            ps.setFetchSize(10);
-            ResultSet resultSet = ps.executeQuery();
+            tx.stream(ps, publishers.scanFetchSize());
+            ResultSet resultSet = tx.executeQuery(ps);
             return resultSet;
-        }).flatMapPublisher(resultSet -> Flowable.fromPublisher(new ResultSetPublisher(resultSet)).map(rs -> toFragment(rs, namespace, entity)));
+        }).flatMapPublisher(resultSet -> fragments(resultSet, namespace, entity)));
     }
 
+    /**
+     * Reads all documents in the id range as a sequence of keyset pages of at most readAllPageSize documents each.
+     * Every page resolves the visible versions of the next ids after the last id of the previous page, so the limit
+     * counts documents rather than fragments, and no query ever aggregates over the whole range.
+     */
     @Override
     public Flowable<Fragment> readAll(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, Range<String> range) {
         final PostgresTransaction tx = (PostgresTransaction) transaction;
-        return Single.fromCallable(() -> {
-            Timestamp snapshotVersion = new Timestamp(snapshot.toInstant().toEpochMilli());
-            PreparedStatement ps = tx.connection.prepareStatement("SELECT n.id, n.version, n.path, n.indices, n.type, n.value FROM namespace n " +
-                    "JOIN (SELECT id, max(version) as version FROM namespace WHERE entity = ? AND ? < id AND id < ? AND version <= ? GROUP BY id) a " +
+        String after = ofNullable(range.getAfter()).orElse(" ");
+        String before = ofNullable(range.getBefore()).orElse("~");
+        int limit = ofNullable(range.getLimit()).orElse(Integer.MAX_VALUE);
+        return tx.metrics.read(tx, "readAll", readAllPages(tx, new Timestamp(snapshot.toInstant().toEpochMilli()), namespace, entity, after, before, limit));
+    }
+
+    private Flowable<Fragment> readAllPages(PostgresTransaction tx, Timestamp snapshot, String namespace, String entity, String after, String before, int remaining) {
+        int pageSize = Math.min(readAllPageSize, remaining);
+        KeysetPage page = new KeysetPage();
+        return Single.fromCallable(() -> readAllPage(tx, snapshot, entity, after, before, pageSize))
+                .flatMapPublisher(resultSet -> fragments(resultSet, namespace, entity))
+                .doOnNext(page::add)
+                .concatWith(Flowable.defer(() -> page.documents < pageSize || page.documents == remaining
+                        ? Flowable.empty()
+                        : readAllPages(tx, snapshot, namespace, entity, page.lastId, before, remaining - page.documents)));
+    }
+
+    private ResultSet readAllPage(PostgresTransaction tx, Timestamp snapshot, String entity, String after, String before, int pageSize) throws SQLException {
+        String table = entityTables.of(entity);
+        PreparedStatement ps;
+        if (latestVersionTable) {
+            ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                    // ids come from the version history, so that documents without a row in namespace_latest are still read
+                    "JOIN (SELECT id, version FROM (SELECT i.id, " + LatestVersionTable.latestVersionAtSnapshotColumnSql(table, "i.id") + " AS version " +
+                    "FROM (SELECT id FROM " + table + " WHERE entity = ? AND ? < id AND id < ? GROUP BY id) i " +
+                    "LEFT JOIN namespace_latest l ON (l.entity = ? AND l.id = i.id)) v " +
+                    "WHERE version IS NOT NULL ORDER BY id LIMIT ?) a " +
+                    "ON (n.id = a.id AND n.version = a.version) " +
+                    "WHERE n.entity = ? " +
+                    "ORDER BY n.id, " + layout.pathColumn() + ", n.indices, n.type");
+            ps.setTimestamp(1, snapshot);
+            ps.setString(2, entity);
+            ps.setTimestamp(3, snapshot);
+            ps.setString(4, entity);
+            ps.setString(5, after);
+            ps.setString(6, before);
+            ps.setString(7, entity);
+            ps.setInt(8, pageSize);
+            ps.setString(9, entity);
+        } else {
+            // grouping in primary-key order lets the aggregate stream from an index-only scan and stop at the limit
+            ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                    "JOIN (SELECT id, max(version) as version FROM " + table + " WHERE entity = ? AND ? < id AND id < ? AND version <= ? GROUP BY id ORDER BY id LIMIT ?) a " +
                     "ON (n.id = a.id AND n.version = a.version) " +
-                    "WHERE entity = ? " +
-                    "ORDER BY n.id, n.version, n.path, n.indices, n.type");
+                    "WHERE n.entity = ? " +
+                    "ORDER BY n.id, " + layout.pathColumn() + ", n.indices, n.type");
             ps.setString(1, entity);
-            ps.setString(2, ofNullable(range.getAfter()).orElse(" "));
-            ps.setString(3, ofNullable(range.getBefore()).orElse("~"));
-            ps.setTimestamp(4, snapshotVersion);
-            ps.setString(5, entity);
-            if (range.getLimit() != null) {
-                ps.setMaxRows(range.getLimit());
+            ps.setString(2, after);
+            ps.setString(3, before);
+            ps.setTimestamp(4, snapshot);
+            ps.setInt(5, pageSize);
+            ps.setString(6, entity);
+        }
+        tx.stream(ps, publishers.scanFetchSize());
+        return tx.executeQuery(ps);
+    }
+
+    /**
+     * Tracks the documents seen in a keyset page, the last id is the cursor of the next page.
+     */
+    private static class KeysetPage {
+        int documents;
+        String lastId;
+
+        void add(Fragment fragment) {
+            if (!fragment.id().equals(lastId)) {
+                documents++;
+                lastId = fragment.id();
             }
-            ps.setFetchSize(10);
-            ResultSet resultSet = ps.executeQuery();
-            return resultSet;
-        }).flatMapPublisher(resultSet -> Flowable.fromPublisher(new ResultSetPublisher(resultSet)).map(rs -> toFragment(rs, namespace, entity)));
+        }
     }
 
     @Override
     public Completable delete(Transaction transaction, String namespace, String entity, String id, ZonedDateTime version, PersistenceDeletePolicy policy) {
-        return Completable.fromCallable(() -> {
-            PostgresTransaction tx = (PostgresTransaction) transaction;
-            PreparedStatement ps = tx.connection.prepareStatement("DELETE FROM namespace WHERE entity = ? AND id = ? AND version = ?");
-            ps.setString(1, entity);
-            ps.setString(2, id);
-            ps.setTimestamp(3, new Timestamp(version.toInstant().toEpochMilli()));
-            ps.executeUpdate();
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "delete", Completable.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            checkDeletePolicy(tx, entity, id, policy);
+            long versionMillis = version.toInstant().toEpochMilli();
+            invalidateOnModification(tx, () -> documentCache.invalidate(namespace, entity, id, versionMillis));
+            try (PreparedStatement ps = tx.prepareStatement("DELETE FROM " + table + " WHERE entity = ? AND id = ? AND version = ?")) {
+                ps.setString(1, entity);
+                ps.setString(2, id);
+                ps.setTimestamp(3, new Timestamp(version.toInstant().toEpochMilli()));
+                tx.executeUpdate(ps);
+            }
+            if (latestVersionTable) {
+                LatestVersionTable.refresh(tx, table, entity, id);
+            }
+            if (skipUnchanged) {
+                ContentHashes.delete(tx, entity, id, new Timestamp(versionMillis));
+            }
             return null;
-        });
+        }));
     }
 
     @Override
     public Completable deleteAllVersions(Transaction transaction, String namespace, String entity, String id, PersistenceDeletePolicy policy) {
-        return Completable.fromCallable(() -> {
-            PostgresTransaction tx = (PostgresTransaction) transaction;
-            PreparedStatement ps = tx.connection.prepareStatement("DELETE FROM namespace WHERE entity = ? AND id = ?");
-            ps.setString(1, entity);
-            ps.setString(2, id);
-            ps.executeUpdate();
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "deleteAllVersions", Completable.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            checkDeletePolicy(tx, entity, id, policy);
+            invalidateOnModification(tx, () -> documentCache.invalidateAllVersions(namespace, entity, id));
+            try (PreparedStatement ps = tx.prepareStatement("DELETE FROM " + table + " WHERE entity = ? AND id = ?")) {
+                ps.setString(1, entity);
+                ps.setString(2, id);
+                tx.executeUpdate(ps);
+            }
+            if (latestVersionTable) {
+                LatestVersionTable.deleteDocument(tx, entity, id);
+            }
+            if (skipUnchanged) {
+                ContentHashes.deleteDocument(tx, entity, id);
+            }
             return null;
-        });
+        }));
     }
 
+    /**
+     * Deletes all documents of the entity with row-level DELETEs in chunks of deleteChunkSize ids, also when the
+     * entity has a table or partition of its own, as TRUNCATE would hold an ACCESS EXCLUSIVE lock that blocks every
+     * reader of the table until the transaction completes. Every chunk is committed in a transaction of its own, so
+     * that the row locks and WAL held at any time are bounded by a chunk, and the delete is not undone by cancelling
+     * the given transaction. Only the rows the given transaction wrote or locked are deleted in it, see
+     * {@link ChunkedDeletes#deleteAll(PostgresTransactionFactory, PostgresTransaction, List)}. The paths are ignored,
+     * as every fragment of the entity is deleted regardless of its path.
+     */
     @Override
     public Completable deleteAllEntities(Transaction transaction, String namespace, String entity, Iterable<String> paths) {
-        return Completable.fromCallable(() -> {
-            PostgresTransaction tx = (PostgresTransaction) transaction;
-            PreparedStatement ps = tx.connection.prepareStatement("DELETE FROM namespace WHERE entity = ?");
-            ps.setString(1, entity);
-            ps.executeUpdate();
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "deleteAllEntities", Completable.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            invalidateOnModification(tx, () -> documentCache.invalidateEntity(namespace, entity));
+            List<String> documentTables = new ArrayList<>();
+            if (latestVersionTable) {
+                documentTables.add("namespace_latest");
+            }
+            if (skipUnchanged) {
+                documentTables.add("namespace_content_hash");
+            }
+            try {
+                new ChunkedDeletes(table, entity, deleteChunkSize).deleteAll(transactionFactory, tx, documentTables);
+            } finally {
+                if (documentCache != null) {
+                    documentCache.invalidateEntity(namespace, entity);
+                }
+            }
             return null;
-        });
+        }));
+    }
+
+    @Override
+    public long purgeVersions(String namespace, String entity, int keepLatest, ZonedDateTime keepNewerThan) {
+        String table = entityTables.of(entity);
+        Timestamp keepFrom = keepNewerThan == null ? null : new Timestamp(keepNewerThan.toInstant().toEpochMilli());
+        try {
+            return new ChunkedDeletes(table, entity, deleteChunkSize).purgeVersions(transactionFactory, keepLatest, keepFrom, skipUnchanged);
+        } finally {
+            if (documentCache != null) {
+                documentCache.invalidateEntity(namespace, entity);
+            }
+        }
+    }
+
+    @Override
+    public void createVersionPartitions(String entity, ZonedDateTime from, ZonedDateTime to) {
+        entityTables.createVersionPartitions(entity, from, to);
+    }
+
+    /**
+     * See {@link IncomingLinks} for how each policy is enforced.
+     */
+    private void checkDeletePolicy(PostgresTransaction tx, String entity, String id, PersistenceDeletePolicy policy) throws SQLException {
+        IncomingLinks.checkDeletePolicy(policy, entity, id, () -> IncomingLinks.exist(tx, entityTables.allTables(), entity, id));
     }
 
     @Override
     public Completable markDeleted(Transaction transaction, String namespace, String entity, String id, ZonedDateTime timestamp, PersistenceDeletePolicy policy) {
-        return Completable.fromCallable(() -> {
-            PostgresTransaction tx = (PostgresTransaction) transaction;
+        PostgresTransaction tx = (PostgresTransaction) transaction;
+        return tx.metrics.completable(tx, "markDeleted", Completable.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            checkDeletePolicy(tx, entity, id, policy);
             Timestamp version = new Timestamp(timestamp.toInstant().toEpochMilli());
-            PreparedStatement deleteStatement = tx.connection.prepareStatement("DELETE FROM namespace WHERE entity = ? AND id = ? AND version = ?");
-            deleteStatement.setString(1, entity);
-            deleteStatement.setString(2, id);
-            deleteStatement.setTimestamp(3, version);
-            deleteStatement.executeUpdate();
-            PreparedStatement ps = tx.connection.prepareStatement("INSERT INTO namespace(entity, id, version, path, indices, type) values(?, ?, ?, ?, ?, ?)");
-            ps.setString(1, entity);
-            ps.setString(2, id);
-            ps.setTimestamp(3, version);
-            ps.setString(4, "");
-            Array pathIndices = tx.connection.createArrayOf("integer", new Integer[0]);
-            ps.setArray(5, pathIndices);
-            ps.setShort(6, (short) FragmentType.DELETED.ordinal());
-            ps.executeUpdate();
+            invalidateOnModification(tx, () -> documentCache.invalidate(namespace, entity, id, version.getTime()));
+            try (PreparedStatement deleteStatement = tx.prepareStatement("DELETE FROM " + table + " WHERE entity = ? AND id = ? AND version = ?")) {
+                deleteStatement.setString(1, entity);
+                deleteStatement.setString(2, id);
+                deleteStatement.setTimestamp(3, version);
+                tx.executeUpdate(deleteStatement);
+            }
+            try (PreparedStatement ps = tx.prepareStatement(layout.insertSql(table))) {
+                ps.setString(1, entity);
+                ps.setString(2, id);
+                ps.setTimestamp(3, version);
+                layout.setPathAndIndices(ps, 4, tx, "", List.of());
+                ps.setShort(6, (short) FragmentType.DELETED.ordinal());
+                ps.setBytes(7, null);
+                tx.executeUpdate(ps);
+            }
+            if (latestVersionTable) {
+                LatestVersionTable.markDeleted(tx, entity, id, version);
+            }
+            if (skipUnchanged) {
+                ContentHashes.delete(tx, entity, id, version);
+            }
             return null;
-        });
+        }));
     }
 
     @Override
     public Flowable<Fragment> find(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, String path, byte[] value, Range<String> range) {
+        return find(transaction, snapshot, namespace, entity, ValueCondition.equalTo(path, value), range);
+    }
+
+    @Override
+    public Flowable<Fragment> find(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, ValuePredicate predicate, Range<String> range) {
+        return find(transaction, snapshot, namespace, entity, ValueCondition.of(predicate), range);
+    }
+
+    /**
+     * When {@link ValueIndexes} has a partial index on the entity and path, the statement is planned for the bound
+     * values on every execution so that the index can be used. Otherwise the cached generic plan is reused.
+     */
+    private Flowable<Fragment> find(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, ValueCondition predicate, Range<String> range) {
         final PostgresTransaction tx = (PostgresTransaction) transaction;
-        return Single.fromCallable(() -> {
-            PreparedStatement ps = tx.connection.prepareStatement("SELECT n.id, n.version, n.path, n.indices, n.type, n.value FROM namespace n " +
-                    "JOIN (SELECT id, max(version) ver FROM namespace WHERE entity = ? AND path = ? AND value = ? AND version <= ? GROUP BY id ORDER BY id LIMIT ?) a ON (n.id = a.id AND n.version = a.ver) " +
-                    "WHERE entity = ?");
-            ps.setString(1, entity);
-            ps.setString(2, path);
-            ps.setBytes(3, value);
+        return tx.metrics.read(tx, "find", Single.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            PreparedStatement ps = tx.prepareStatement(layout.selectFrom(table) + " " +
+                    "JOIN (SELECT id, max(version) ver FROM " + table + " WHERE entity = ? AND " + layout.pathKeyColumn() + " = ? AND " + predicate.condition() + " AND version <= ? GROUP BY id ORDER BY id LIMIT ?) a ON (n.id = a.id AND n.version = a.ver) " +
+                    "WHERE n.entity = ?");
+            if (valueIndexes.covers(entity, predicate.path)) {
+                ps.unwrap(PGStatement.class).setPrepareThreshold(0);
+            }
+            int index = 1;
+            ps.setString(index++, entity);
+            layout.setPath(ps, index++, tx, predicate.path);
+            index = predicate.bind(ps, index);
             Timestamp snapshotTime = new Timestamp(snapshot.toInstant().toEpochMilli());
-            ps.setTimestamp(4, snapshotTime);
-            ps.setInt(5, ofNullable(range.getLimit()).orElse(100));
-            ps.setString(6, entity);
+            ps.setTimestamp(index++, snapshotTime);
+            ps.setInt(index++, ofNullable(range.getLimit()).orElse(100));
+            ps.setString(index, entity);
             ps.setMaxRows(0); // number of resources returned limited by inner query
-            ps.setFetchSize(10);
-            ResultSet resultSet = ps.executeQuery();
+            tx.stream(ps, publishers.scanFetchSize());
+            ResultSet resultSet = tx.executeQuery(ps);
             return resultSet;
-        }).flatMapPublisher(resultSet -> Flowable.fromPublisher(new ResultSetPublisher(resultSet)).map(rs -> toFragment(rs, namespace, entity)));
+        }).flatMapPublisher(resultSet -> fragments(resultSet, namespace, entity)));
     }
 
     @Override
     public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
-        return readAll(tx, snapshot, namespace, entityName, Range.lastBefore(1, id)).isEmpty()
-                .map(wasEmpty -> !wasEmpty);
+        return exists((PostgresTransaction) tx, "hasPrevious", snapshot, entityName, " ", id);
     }
 
     @Override
     public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
-        return readAll(tx, snapshot, namespace, entityName, Range.firstAfter(1, id)).isEmpty()
-                .map(wasEmpty -> !wasEmpty);
+        return exists((PostgresTransaction) tx, "hasNext", snapshot, entityName, id, "~");
+    }
+
+    /**
+     * Probes for a document with an id strictly between after and before that has a version at the snapshot. Answered
+     * from the primary-key index alone, and stops at the first match.
+     */
+    private Single<Boolean> exists(PostgresTransaction tx, String operation, ZonedDateTime snapshot, String entity, String after, String before) {
+        return tx.metrics.single(tx, operation, Single.fromCallable(() -> {
+            String table = entityTables.of(entity);
+            try (PreparedStatement ps = tx.prepareStatement("SELECT EXISTS (SELECT 1 FROM " + table + " WHERE entity = ? AND ? < id AND id < ? AND version <= ?)")) {
+                ps.setString(1, entity);
+                ps.setString(2, after);
+                ps.setString(3, before);
+                ps.setTimestamp(4, new Timestamp(snapshot.toInstant().toEpochMilli()));
+                try (ResultSet resultSet = tx.executeQuery(ps)) {
+                    resultSet.next();
+                    return resultSet.getBoolean(1);
+                }
+            }
+        }));
     }
 
     @Override
     public void close() throws PersistenceException {
+        if (writeExecutor != null) {
+            writeExecutor.shutdown();
+        }
+        publishers.close();
         transactionFactory.close();
     }
-}
\ No newline at end of file
+
+    private static class WriteThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "postgres-write-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.postgresql.PostgresqlConnectionConfiguration;
+import io.r2dbc.postgresql.PostgresqlConnectionFactory;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.ProviderName;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.specification.Specification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+
+import static no.ssb.lds.core.persistence.postgres.PostgresDbInitializer.intProperty;
+import static no.ssb.lds.core.persistence.postgres.PostgresDbInitializer.longProperty;
+
+/**
+ * Initializes the non-blocking {@link PostgresR2dbcPersistence}. Shares schema and driver configuration with the
+ * "postgres" provider, the fragment-mode options of that provider are not available here.
+ */
+@ProviderName("postgres-r2dbc")
+public class PostgresR2dbcInitializer implements PersistenceInitializer {
+
+    @Override
+    public String persistenceProviderId() {
+        return "postgres-r2dbc";
+    }
+
+    @Override
+    public Set<String> configurationKeys() {
+        return Set.of(
+                "postgres.driver.host",
+                "postgres.driver.port",
+                "postgres.driver.user",
+                "postgres.driver.password",
+                "postgres.driver.database",
+                "postgres.r2dbc.pool.initial-size",
+                "postgres.r2dbc.pool.max-size",
+                "postgres.write.batch.size",
+                "postgres.transaction.executor",
+                "postgres.transaction.executor.threads",
+                "postgres.transaction.max-retries",
+                "postgres.transaction.retry-backoff-ms"
+        );
+    }
+
+    @Override
+    public RxJsonPersistence initialize(String defaultNamespace, Map<String, String> configuration, Set<String> managedDomains, Specification specification) {
+        int fragmentCapacityBytes = Integer.MAX_VALUE; // Postgres persistence-provider does not support fragmentation of document leaf-nodes.
+        PostgresDbInitializer.JavaUtilLoggingInitializer.initialize();
+        ConnectionPool connectionPool = openConnectionPool(configuration);
+        dropOrCreateDatabase(connectionPool);
+        int maxPoolSize = intProperty(configuration, "postgres.r2dbc.pool.max-size", 10);
+        TransactionExecutor transactionExecutor = new TransactionExecutor(
+                TransactionExecutor.Mode.valueOf(configuration.getOrDefault("postgres.transaction.executor", "auto").toUpperCase()),
+                intProperty(configuration, "postgres.transaction.executor.threads", maxPoolSize),
+                maxPoolSize,
+                intProperty(configuration, "postgres.transaction.max-retries", 3),
+                longProperty(configuration, "postgres.transaction.retry-backoff-ms", 10)
+        );
+        PostgresR2dbcPersistence persistence = new PostgresR2dbcPersistence(new R2dbcTransactionFactory(connectionPool, transactionExecutor),
+                intProperty(configuration, "postgres.write.batch.size", 100));
+        return new RxJsonPersistenceBridge(persistence, fragmentCapacityBytes);
+    }
+
+    static ConnectionPool openConnectionPool(Map<String, String> configuration) {
+        PostgresqlConnectionFactory connectionFactory = new PostgresqlConnectionFactory(PostgresqlConnectionConfiguration.builder()
+                .host(configuration.get("postgres.driver.host"))
+                .port(intProperty(configuration, "postgres.driver.port", 5432))
+                .username(configuration.get("postgres.driver.user"))
+                .password(configuration.get("postgres.driver.password"))
+                .database(configuration.get("postgres.driver.database"))
+                .applicationName("lds-persistence-postgres-r2dbc")
+                .build());
+        return new ConnectionPool(ConnectionPoolConfiguration.builder(connectionFactory)
+                .initialSize(intProperty(configuration, "postgres.r2dbc.pool.initial-size", 2))
+                .maxSize(intProperty(configuration, "postgres.r2dbc.pool.max-size", 10))
+                .build());
+    }
+
+    /**
+     * Runs the same init-db.sql as the JDBC provider, blocking until the schema is in place.
+     */
+    static void dropOrCreateDatabase(ConnectionFactory connectionFactory) {
+        String initSQL = FileAndClasspathReaderUtils.readFileOrClasspathResource("postgres/init-db.sql");
+        List<String> statements = new ArrayList<>();
+        try (Scanner s = new Scanner(initSQL)) {
+            s.useDelimiter("(;(\r)?\n)|(--\n)");
+            while (s.hasNext()) {
+                String line = s.next();
+                if (line.startsWith("/*!") && line.endsWith("*/")) {
+                    int i = line.indexOf(' ');
+                    line = line.substring(i + 1, line.length() - " */".length());
+                }
+                if (line.trim().length() > 0) {
+                    statements.add(line);
+                }
+            }
+        }
+        Single.<Connection>fromPublisher(connectionFactory.create())
+                .flatMapCompletable(connection -> Completable.fromPublisher(connection.beginTransaction())
+                        .andThen(Flowable.fromIterable(statements)
+                                .concatMapCompletable(sql -> Flowable.fromPublisher(connection.createStatement(sql).execute())
+                                        .concatMap(result -> Flowable.fromPublisher(result.getRowsUpdated()))
+                                        .ignoreElements()))
+                        .andThen(Completable.fromPublisher(connection.commitTransaction()))
+                        .doFinally(() -> Completable.fromPublisher(connection.close()).onErrorComplete().subscribe()))
+                .blockingAwait();
+    }
+}
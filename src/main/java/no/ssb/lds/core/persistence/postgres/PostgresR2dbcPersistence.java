@@ -0,0 +1,272 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.Statement;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import static java.util.Optional.ofNullable;
+
+/**
+ * Non-blocking persistence on the R2DBC Postgres driver. Uses the same namespace table and queries as
+ * {@link PostgresPersistence} in its default configuration, but no thread is blocked while waiting for the database:
+ * statements are executed and rows are streamed by the driver's event-loop, with backpressure propagated through the
+ * returned publishers.
+ */
+class PostgresR2dbcPersistence implements RxPersistence {
+
+    private static final OffsetDateTime BEGINNING_OF_TIME = OffsetDateTime.of(1, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final OffsetDateTime END_OF_TIME = OffsetDateTime.of(9999, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    private static final String SELECT_FRAGMENTS = "SELECT id, version, path, indices, type, value FROM namespace ";
+
+    final R2dbcTransactionFactory transactionFactory;
+    final int writeBatchSize;
+
+    PostgresR2dbcPersistence(R2dbcTransactionFactory transactionFactory, int writeBatchSize) {
+        this.transactionFactory = transactionFactory;
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    @Override
+    public TransactionFactory transactionFactory() throws PersistenceException {
+        return transactionFactory;
+    }
+
+    @Override
+    public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+        return transactionFactory.createTransaction(readOnly);
+    }
+
+    private static OffsetDateTime toOffsetDateTime(ZonedDateTime timestamp) {
+        return timestamp.toOffsetDateTime().withOffsetSameInstant(ZoneOffset.UTC);
+    }
+
+    private static Fragment toFragment(Row row, String namespace, String entity) {
+        String id = row.get(0, String.class);
+        ZonedDateTime version = row.get(1, OffsetDateTime.class).atZoneSameInstant(FragmentLayout.UTC);
+        Integer[] indices = row.get(3, Integer[].class);
+        String path = Fragment.computePathFromIndexUnawarePathAndIndices(row.get(2, String.class), List.of(indices));
+        Short type = row.get(4, Short.class);
+        byte[] value = row.get(5, byte[].class);
+        return new Fragment(namespace, entity, id, version, path, FragmentType.fromTypeCode(type.byteValue()), 0, value);
+    }
+
+    private static Completable execute(Statement statement) {
+        return Flowable.fromPublisher(statement.execute())
+                .concatMap(result -> Flowable.fromPublisher(result.getRowsUpdated()))
+                .ignoreElements();
+    }
+
+    private Flowable<Fragment> query(Transaction transaction, String namespace, String entity, Function<Connection, Statement> statement) {
+        return ((R2dbcTransaction) transaction).connection()
+                .flatMapPublisher(connection -> Flowable.fromPublisher(statement.apply(connection).execute())
+                        .concatMap(result -> Flowable.fromPublisher(result.map((row, metadata) -> toFragment(row, namespace, entity)))));
+    }
+
+    private Completable update(Transaction transaction, Function<Connection, Statement> statement) {
+        return ((R2dbcTransaction) transaction).connection()
+                .flatMapCompletable(connection -> execute(statement.apply(connection)));
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction transaction, Flowable<Fragment> fragments) {
+        R2dbcTransaction tx = (R2dbcTransaction) transaction;
+        return Completable.defer(() -> {
+            Set<DocumentKey> overwrittenDocuments = new HashSet<>();
+            return fragments
+                    .buffer(writeBatchSize)
+                    .concatMapCompletable(batch -> tx.connection().flatMapCompletable(connection -> writeBatch(connection, batch, overwrittenDocuments)));
+        });
+    }
+
+    /**
+     * Deletes existing versions of documents seen for the first time in the batch, then inserts the batch. Each
+     * statement is executed once with all its bindings, which the driver pipelines.
+     */
+    private Completable writeBatch(Connection connection, List<Fragment> batch, Set<DocumentKey> overwrittenDocuments) {
+        List<Fragment> firstOfDocument = new ArrayList<>();
+        for (Fragment fragment : batch) {
+            if (fragment.offset() != 0) {
+                return Completable.error(new IllegalStateException("Postgres fragments must have offset == 0, illegal offset: " + fragment.offset()));
+            }
+            if (overwrittenDocuments.add(DocumentKey.from(fragment))) {
+                firstOfDocument.add(fragment);
+            }
+        }
+        Completable deletes = Completable.complete();
+        if (!firstOfDocument.isEmpty()) {
+            Statement delete = connection.createStatement("DELETE FROM namespace WHERE entity = $1 AND id = $2 AND version = $3");
+            for (int i = 0; i < firstOfDocument.size(); i++) {
+                Fragment fragment = firstOfDocument.get(i);
+                if (i > 0) {
+                    delete.add();
+                }
+                delete.bind(0, fragment.entity())
+                        .bind(1, fragment.id())
+                        .bind(2, toOffsetDateTime(fragment.timestamp()));
+            }
+            deletes = execute(delete);
+        }
+        Statement insert = connection.createStatement("INSERT INTO namespace(entity, id, version, path, indices, type, value) VALUES ($1, $2, $3, $4, $5, $6, $7)");
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Fragment fragment = batch.get(i);
+            if (i > 0) {
+                insert.add();
+            }
+            indices.clear();
+            String indexUnawarePath = Fragment.computeIndexUnawarePath(fragment.path(), indices);
+            insert.bind(0, fragment.entity())
+                    .bind(1, fragment.id())
+                    .bind(2, toOffsetDateTime(fragment.timestamp()))
+                    .bind(3, indexUnawarePath)
+                    .bind(4, indices.toArray(new Integer[indices.size()]))
+                    .bind(5, (short) fragment.fragmentType().ordinal());
+            if (fragment.value() == null) {
+                insert.bindNull(6, byte[].class);
+            } else {
+                insert.bind(6, fragment.value());
+            }
+        }
+        return deletes.andThen(execute(insert));
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        return query(transaction, namespace, entity, connection -> connection.createStatement(SELECT_FRAGMENTS +
+                "WHERE entity = $1 AND id = $2 AND version = (SELECT max(version) FROM namespace WHERE entity = $1 AND id = $2 AND version <= $3) " +
+                "ORDER BY path, indices, type")
+                .bind(0, entity)
+                .bind(1, id)
+                .bind(2, toOffsetDateTime(snapshot)));
+    }
+
+    @Override
+    public Flowable<Fragment> readVersions(Transaction transaction, String namespace, String entity, String id, Range<ZonedDateTime> range) {
+        OffsetDateTime snapshotAfterVersion = ofNullable(range.getAfter()).map(PostgresR2dbcPersistence::toOffsetDateTime).orElse(BEGINNING_OF_TIME);
+        OffsetDateTime snapshotBeforeVersion = ofNullable(range.getBefore()).map(PostgresR2dbcPersistence::toOffsetDateTime).orElse(END_OF_TIME);
+        return query(transaction, namespace, entity, connection -> bindLimit(connection.createStatement("SELECT n.id, n.version, n.path, n.indices, n.type, n.value FROM namespace n, " +
+                "(SELECT max(version) v FROM namespace WHERE entity = $1 AND id = $2 AND version <= $3 LIMIT 1) a " +
+                "WHERE n.entity = $1 AND n.id = $2 AND n.version < $4 AND (a.v IS NULL OR n.version >= a.v) " +
+                "LIMIT $5")
+                .bind(0, entity)
+                .bind(1, id)
+                .bind(2, snapshotAfterVersion)
+                .bind(3, snapshotBeforeVersion), 4, range.getLimit()));
+    }
+
+    /**
+     * Binds the row limit, or NULL which in Postgres means no limit.
+     */
+    private static Statement bindLimit(Statement statement, int index, Integer limit) {
+        return limit == null ? statement.bindNull(index, Integer.class) : statement.bind(index, limit);
+    }
+
+    @Override
+    public Flowable<Fragment> readAll(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, Range<String> range) {
+        return query(transaction, namespace, entity, connection -> bindLimit(connection.createStatement("SELECT n.id, n.version, n.path, n.indices, n.type, n.value FROM namespace n " +
+                "JOIN (SELECT id, max(version) as version FROM namespace WHERE entity = $1 AND $2 < id AND id < $3 AND version <= $4 GROUP BY id ORDER BY id LIMIT $5) a " +
+                "ON (n.id = a.id AND n.version = a.version) " +
+                "WHERE n.entity = $1 " +
+                "ORDER BY n.id, n.path, n.indices, n.type")
+                .bind(0, entity)
+                .bind(1, ofNullable(range.getAfter()).orElse(" "))
+                .bind(2, ofNullable(range.getBefore()).orElse("~"))
+                .bind(3, toOffsetDateTime(snapshot)), 4, range.getLimit()));
+    }
+
+    @Override
+    public Completable delete(Transaction transaction, String namespace, String entity, String id, ZonedDateTime version, PersistenceDeletePolicy policy) {
+        return update(transaction, connection -> connection.createStatement("DELETE FROM namespace WHERE entity = $1 AND id = $2 AND version = $3")
+                .bind(0, entity)
+                .bind(1, id)
+                .bind(2, toOffsetDateTime(version)));
+    }
+
+    @Override
+    public Completable deleteAllVersions(Transaction transaction, String namespace, String entity, String id, PersistenceDeletePolicy policy) {
+        return update(transaction, connection -> connection.createStatement("DELETE FROM namespace WHERE entity = $1 AND id = $2")
+                .bind(0, entity)
+                .bind(1, id));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction transaction, String namespace, String entity, Iterable<String> paths) {
+        return update(transaction, connection -> connection.createStatement("DELETE FROM namespace WHERE entity = $1")
+                .bind(0, entity));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction transaction, String namespace, String entity, String id, ZonedDateTime timestamp, PersistenceDeletePolicy policy) {
+        OffsetDateTime version = toOffsetDateTime(timestamp);
+        return delete(transaction, namespace, entity, id, timestamp, policy)
+                .andThen(update(transaction, connection -> connection.createStatement("INSERT INTO namespace(entity, id, version, path, indices, type) VALUES ($1, $2, $3, $4, $5, $6)")
+                        .bind(0, entity)
+                        .bind(1, id)
+                        .bind(2, version)
+                        .bind(3, "")
+                        .bind(4, new Integer[0])
+                        .bind(5, (short) FragmentType.DELETED.ordinal())));
+    }
+
+    @Override
+    public Flowable<Fragment> find(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, String path, byte[] value, Range<String> range) {
+        return query(transaction, namespace, entity, connection -> connection.createStatement("SELECT n.id, n.version, n.path, n.indices, n.type, n.value FROM namespace n " +
+                "JOIN (SELECT id, max(version) ver FROM namespace WHERE entity = $1 AND path = $2 AND md5(value) = md5($3) AND value = $3 AND version <= $4 GROUP BY id ORDER BY id LIMIT $5) a " +
+                "ON (n.id = a.id AND n.version = a.ver) " +
+                "WHERE n.entity = $1")
+                .bind(0, entity)
+                .bind(1, path)
+                .bind(2, value)
+                .bind(3, toOffsetDateTime(snapshot))
+                .bind(4, ofNullable(range.getLimit()).orElse(100)));
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return exists(tx, snapshot, entityName, " ", id);
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return exists(tx, snapshot, entityName, id, "~");
+    }
+
+    private Single<Boolean> exists(Transaction transaction, ZonedDateTime snapshot, String entity, String after, String before) {
+        return ((R2dbcTransaction) transaction).connection()
+                .flatMap(connection -> Flowable.fromPublisher(connection.createStatement("SELECT EXISTS (SELECT 1 FROM namespace WHERE entity = $1 AND $2 < id AND id < $3 AND version <= $4)")
+                        .bind(0, entity)
+                        .bind(1, after)
+                        .bind(2, before)
+                        .bind(3, toOffsetDateTime(snapshot))
+                        .execute())
+                        .concatMap(result -> Flowable.fromPublisher(result.map((row, metadata) -> row.get(0, Boolean.class))))
+                        .first(false));
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        transactionFactory.close();
+    }
+}
@@ -5,25 +5,144 @@ import no.ssb.lds.api.persistence.Transaction;
 import no.ssb.lds.api.persistence.TransactionStatistics;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 class PostgresTransaction implements Transaction {
 
+    private static final int STATEMENT_PRUNE_THRESHOLD = 64;
+
     final Connection connection;
     final TransactionStatistics statistics = new TransactionStatistics();
+    final OperationMetrics metrics;
+    private final List<Statement> statements = new ArrayList<>();
+    private final List<Runnable> completionCallbacks = new CopyOnWriteArrayList<>();
+    private volatile boolean modified;
 
     public PostgresTransaction(Connection connection) throws SQLException {
+        this(connection, OperationMetrics.UNEXPORTED);
+    }
+
+    PostgresTransaction(Connection connection, OperationMetrics metrics) throws SQLException {
         this.connection = connection;
+        this.metrics = metrics;
         connection.beginRequest();
     }
 
+    /**
+     * Prepares a statement that is closed automatically when its result-set is closed, or at the latest when this
+     * transaction completes. The driver keeps server-side prepared statements in a per-connection cache keyed by sql,
+     * so closing statements returns them to that cache rather than discarding the parsed and planned statement.
+     */
+    PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(sql);
+        ps.closeOnCompletion();
+        synchronized (statements) {
+            if (statements.size() >= STATEMENT_PRUNE_THRESHOLD) {
+                statements.removeIf(PostgresTransaction::isClosed);
+            }
+            statements.add(ps);
+        }
+        return ps;
+    }
+
+    /**
+     * Makes the result-set of a query stream through a named server-side portal, fetching fetchSize rows per
+     * round-trip. The driver only fetches incrementally when auto-commit is off, so that is enforced here instead of
+     * silently materializing the whole result in memory.
+     */
+    void stream(PreparedStatement ps, int fetchSize) throws SQLException {
+        if (connection.getAutoCommit()) {
+            throw new IllegalStateException("Streaming requires a transaction with auto-commit disabled");
+        }
+        ps.setFetchDirection(ResultSet.FETCH_FORWARD);
+        ps.setFetchSize(fetchSize);
+    }
+
+    ResultSet executeQuery(PreparedStatement ps) throws SQLException {
+        return metrics.execute(this, ps, ps::executeQuery);
+    }
+
+    int executeUpdate(PreparedStatement ps) throws SQLException {
+        return metrics.execute(this, ps, ps::executeUpdate);
+    }
+
+    int[] executeBatch(PreparedStatement ps) throws SQLException {
+        return metrics.execute(this, ps, ps::executeBatch);
+    }
+
+    /**
+     * Adds to the statistics returned on commit and cancel. Operations of a transaction may complete on different
+     * threads, so additions are serialized here.
+     */
+    void record(String statistic, long increment) {
+        synchronized (statistics) {
+            statistics.add(statistic, (int) Math.min(increment, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Marks this transaction as having written to the database and registers a callback that is run after the
+     * transaction has been committed or cancelled.
+     */
+    void onModification(Runnable completionCallback) {
+        modified = true;
+        completionCallbacks.add(completionCallback);
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    private void runCompletionCallbacks() {
+        for (Runnable callback : completionCallbacks) {
+            callback.run();
+        }
+        completionCallbacks.clear();
+    }
+
+    private static boolean isClosed(Statement statement) {
+        try {
+            return statement.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void closeStatements() {
+        SQLException failure = null;
+        synchronized (statements) {
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            statements.clear();
+        }
+        if (failure != null) {
+            throw new PersistenceException(failure);
+        }
+    }
+
     @Override
     public CompletableFuture<TransactionStatistics> commit() throws PersistenceException {
         try {
             return CompletableFuture.completedFuture(statistics);
         } finally {
             try {
+                closeStatements();
                 connection.commit();
                 connection.endRequest();
             } catch (SQLException e) {
@@ -33,6 +152,8 @@ class PostgresTransaction implements Transaction {
                     connection.close();
                 } catch (SQLException e) {
                     throw new PersistenceException(e);
+                } finally {
+                    runCompletionCallbacks();
                 }
             }
         }
@@ -44,6 +165,7 @@ class PostgresTransaction implements Transaction {
             return CompletableFuture.completedFuture(statistics);
         } finally {
             try {
+                closeStatements();
                 connection.rollback();
                 connection.endRequest();
             } catch (SQLException e) {
@@ -53,6 +175,8 @@ class PostgresTransaction implements Transaction {
                     connection.close();
                 } catch (SQLException e) {
                     throw new PersistenceException(e);
+                } finally {
+                    runCompletionCallbacks();
                 }
             }
         }
@@ -13,22 +13,65 @@ import java.util.function.Function;
 public class PostgresTransactionFactory implements TransactionFactory {
 
     final HikariDataSource dataSource;
+    final TransactionExecutor transactionExecutor;
+    final ReplicaRouter replicaRouter;
+    final OperationMetrics metrics;
 
     public PostgresTransactionFactory(HikariDataSource dataSource) {
+        this(dataSource, new TransactionExecutor(TransactionExecutor.Mode.AUTO, dataSource.getMaximumPoolSize(),
+                dataSource.getMaximumPoolSize(), 3, 10), null, OperationMetrics.UNEXPORTED);
+    }
+
+    /**
+     * @param replicaRouter routes read-only transactions to replicas, or null to run all transactions on the primary.
+     */
+    PostgresTransactionFactory(HikariDataSource dataSource, TransactionExecutor transactionExecutor, ReplicaRouter replicaRouter, OperationMetrics metrics) {
         this.dataSource = dataSource;
+        this.transactionExecutor = transactionExecutor;
+        this.replicaRouter = replicaRouter;
+        this.metrics = metrics;
     }
 
+    /**
+     * Runs the retryable in a transaction on the transaction executor. The transaction is committed when the retryable
+     * returns and cancelled when it throws. Serialization failures and deadlocks are retried in a new transaction up to
+     * the configured number of times.
+     */
     @Override
     public <T> CompletableFuture<T> runAsyncInIsolatedTransaction(Function<? super Transaction, ? extends T> retryable, boolean readOnly) {
-        return CompletableFuture.supplyAsync(() -> retryable.apply(createTransaction(readOnly)));
+        return transactionExecutor.submit(() -> runInTransaction(retryable, readOnly));
     }
 
+    private <T> T runInTransaction(Function<? super Transaction, ? extends T> retryable, boolean readOnly) {
+        PostgresTransaction tx = createTransaction(readOnly);
+        T result;
+        try {
+            result = retryable.apply(tx);
+        } catch (RuntimeException | Error e) {
+            try {
+                tx.cancel();
+            } catch (RuntimeException cancelFailure) {
+                e.addSuppressed(cancelFailure);
+            }
+            throw e;
+        }
+        tx.commit();
+        return result;
+    }
+
+    /**
+     * Read-only transactions are served by a replica when replicas are configured and one is healthy, and by the
+     * primary otherwise.
+     */
     @Override
     public PostgresTransaction createTransaction(boolean readOnly) throws PersistenceException {
         try {
-            Connection connection = dataSource.getConnection();
+            Connection connection = readOnly && replicaRouter != null ? replicaRouter.getConnection() : null;
+            if (connection == null) {
+                connection = dataSource.getConnection();
+            }
             connection.setAutoCommit(false);
-            return new PostgresTransaction(connection);
+            return new PostgresTransaction(connection, metrics);
         } catch (SQLException e) {
             throw new PersistenceException(e);
         }
@@ -36,6 +79,11 @@ public class PostgresTransactionFactory implements TransactionFactory {
 
     @Override
     public void close() {
+        transactionExecutor.close();
+        metrics.close();
+        if (replicaRouter != null) {
+            replicaRouter.close();
+        }
         dataSource.close();
     }
 }
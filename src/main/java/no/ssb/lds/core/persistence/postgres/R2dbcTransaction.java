@@ -0,0 +1,61 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import org.reactivestreams.Publisher;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Transaction on a connection that is acquired from the pool, and the database transaction begun, when the first
+ * operation subscribes. Commit and cancel complete asynchronously once the connection has been returned to the pool.
+ */
+class R2dbcTransaction implements Transaction {
+
+    final TransactionStatistics statistics = new TransactionStatistics();
+    private final Single<Connection> connection;
+    private final AtomicBoolean acquired = new AtomicBoolean();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    R2dbcTransaction(ConnectionFactory connectionFactory) {
+        this.connection = Single.defer(() -> {
+            acquired.set(true);
+            return Single.<Connection>fromPublisher(connectionFactory.create());
+        }).flatMap(c -> Completable.fromPublisher(c.beginTransaction()).toSingleDefault(c)).cache();
+    }
+
+    /**
+     * @return the connection of this transaction, shared by all operations.
+     */
+    Single<Connection> connection() {
+        return connection;
+    }
+
+    @Override
+    public CompletableFuture<TransactionStatistics> commit() {
+        return complete(Connection::commitTransaction);
+    }
+
+    @Override
+    public CompletableFuture<TransactionStatistics> cancel() {
+        return complete(Connection::rollbackTransaction);
+    }
+
+    private CompletableFuture<TransactionStatistics> complete(Function<Connection, Publisher<Void>> completion) {
+        if (!completed.compareAndSet(false, true) || !acquired.get()) {
+            return CompletableFuture.completedFuture(statistics);
+        }
+        CompletableFuture<TransactionStatistics> future = new CompletableFuture<>();
+        connection.flatMapCompletable(c -> Completable.fromPublisher(completion.apply(c))
+                .onErrorResumeNext(t -> Completable.fromPublisher(c.close()).onErrorComplete().andThen(Completable.error(t)))
+                .andThen(Completable.fromPublisher(c.close())))
+                .subscribe(() -> future.complete(statistics), future::completeExceptionally);
+        return future;
+    }
+}
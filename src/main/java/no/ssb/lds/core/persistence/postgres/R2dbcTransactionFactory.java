@@ -0,0 +1,62 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.r2dbc.pool.ConnectionPool;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+public class R2dbcTransactionFactory implements TransactionFactory {
+
+    final ConnectionPool connectionPool;
+    final TransactionExecutor transactionExecutor;
+
+    public R2dbcTransactionFactory(ConnectionPool connectionPool) {
+        this(connectionPool, new TransactionExecutor(TransactionExecutor.Mode.AUTO, 10, 10, 3, 10));
+    }
+
+    R2dbcTransactionFactory(ConnectionPool connectionPool, TransactionExecutor transactionExecutor) {
+        this.connectionPool = connectionPool;
+        this.transactionExecutor = transactionExecutor;
+    }
+
+    /**
+     * Runs the retryable in a transaction on the transaction executor, as the retryable blocks on the result of the
+     * operations it runs. The transaction is committed when the retryable returns and cancelled when it throws.
+     * Serialization failures and deadlocks are retried in a new transaction up to the configured number of times.
+     */
+    @Override
+    public <T> CompletableFuture<T> runAsyncInIsolatedTransaction(Function<? super Transaction, ? extends T> retryable, boolean readOnly) {
+        return transactionExecutor.submit(() -> runInTransaction(retryable, readOnly));
+    }
+
+    private <T> T runInTransaction(Function<? super Transaction, ? extends T> retryable, boolean readOnly) {
+        R2dbcTransaction tx = createTransaction(readOnly);
+        T result;
+        try {
+            result = retryable.apply(tx);
+        } catch (RuntimeException | Error e) {
+            try {
+                tx.cancel().join();
+            } catch (RuntimeException cancelFailure) {
+                e.addSuppressed(cancelFailure);
+            }
+            throw e;
+        }
+        tx.commit().join();
+        return result;
+    }
+
+    @Override
+    public R2dbcTransaction createTransaction(boolean readOnly) throws PersistenceException {
+        return new R2dbcTransaction(connectionPool);
+    }
+
+    @Override
+    public void close() {
+        transactionExecutor.close();
+        connectionPool.dispose();
+    }
+}
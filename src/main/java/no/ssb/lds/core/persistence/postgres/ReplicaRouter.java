@@ -0,0 +1,166 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Routes read-only transactions to replica data sources. A replica that fails to hand out a connection is taken out
+ * of rotation until a periodic health check succeeds again. When no replica is healthy, reads fall back to the primary.
+ * <p>
+ * Replica pools are expected to have a short connection timeout, so that an unreachable replica delays a read by that
+ * timeout once before it is taken out of rotation. The health check of a replica that keeps failing is backed off
+ * exponentially from the check interval up to a maximum, so that an unreachable replica is not probed on every check.
+ */
+class ReplicaRouter {
+
+    enum Routing {
+        ROUND_ROBIN, LEAST_CONNECTIONS
+    }
+
+    private static final int HEALTH_CHECK_TIMEOUT_SECONDS = 2;
+
+    private final List<Replica> replicas;
+    private final Routing routing;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long healthCheckIntervalMs;
+    private final long maxBackOffMs;
+    private final ScheduledExecutorService healthChecker;
+
+    ReplicaRouter(List<HikariDataSource> dataSources, Routing routing, long healthCheckIntervalMs, long maxBackOffMs) {
+        this.replicas = dataSources.stream().map(Replica::new).collect(Collectors.toUnmodifiableList());
+        this.routing = routing;
+        this.healthCheckIntervalMs = healthCheckIntervalMs;
+        this.maxBackOffMs = Math.max(maxBackOffMs, healthCheckIntervalMs);
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "postgres-replica-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, healthCheckIntervalMs, healthCheckIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a read-only connection from a healthy replica, or null when no replica is available.
+     */
+    Connection getConnection() {
+        for (int attempt = 0; attempt < replicas.size(); attempt++) {
+            Replica replica = select();
+            if (replica == null) {
+                return null;
+            }
+            Connection connection = null;
+            try {
+                connection = replica.dataSource.getConnection();
+                connection.setReadOnly(true);
+                return connection;
+            } catch (SQLException e) {
+                closeQuietly(connection);
+                failed(replica);
+            }
+        }
+        return null;
+    }
+
+    private Replica select() {
+        if (routing == Routing.LEAST_CONNECTIONS) {
+            Replica least = null;
+            int leastActive = Integer.MAX_VALUE;
+            for (Replica replica : replicas) {
+                if (replica.healthy) {
+                    int active = replica.activeConnections();
+                    if (active < leastActive) {
+                        least = replica;
+                        leastActive = active;
+                    }
+                }
+            }
+            return least;
+        }
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.healthy) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    void checkHealth() {
+        long now = System.currentTimeMillis();
+        for (Replica replica : replicas) {
+            if (!replica.healthy && now < replica.nextCheckAt) {
+                continue;
+            }
+            boolean valid;
+            try (Connection connection = replica.dataSource.getConnection()) {
+                valid = connection.isValid(HEALTH_CHECK_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                valid = false;
+            }
+            if (valid) {
+                synchronized (replica) {
+                    replica.failures = 0;
+                    replica.healthy = true;
+                }
+            } else {
+                failed(replica);
+            }
+        }
+    }
+
+    /**
+     * Takes the replica out of rotation, and backs off its next health check by twice the previous back-off.
+     */
+    private void failed(Replica replica) {
+        synchronized (replica) {
+            long backOff = healthCheckIntervalMs << Math.min(replica.failures, 20);
+            replica.failures++;
+            replica.nextCheckAt = System.currentTimeMillis() + Math.min(backOff, maxBackOffMs);
+            replica.healthy = false;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // the connection is evicted by the pool
+        }
+    }
+
+    void close() {
+        healthChecker.shutdown();
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    private static class Replica {
+        final HikariDataSource dataSource;
+        volatile boolean healthy = true;
+        volatile long nextCheckAt;
+        int failures;
+
+        Replica(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        int activeConnections() {
+            HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+            return pool == null ? 0 : pool.getActiveConnections();
+        }
+    }
+}
@@ -5,123 +5,273 @@ import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 
-public class ResultSetPublisher implements Publisher<ResultSet> {
+/**
+ * Publishes the rows of a result-set in batches. Rows are read from JDBC on the given executor only, never on the
+ * thread that requests, in chunks of prefetch rows rounded up to whole batches. Each row is mapped while the cursor
+ * is positioned on it, and mapped rows are grouped into batches of up to batchSize rows that are queued until
+ * requested. Queued batches are emitted in bursts on whichever thread requests or completes a chunk, and a new chunk
+ * is read when the queue has been drained below half of the prefetch.
+ * <p>
+ * Demand is counted in batches. The result-set is closed when it is exhausted, on error, and on cancellation.
+ * <p>
+ * When a maximum fetch size is given, the fetch size of the result-set is doubled after every chunk until it reaches
+ * that maximum, so that short reads stay cheap while long scans converge on few round-trips.
+ */
+public class ResultSetPublisher<T> implements Publisher<List<T>> {
+
+    /**
+     * Maps the row the result-set is currently positioned on.
+     */
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(ResultSet resultSet) throws SQLException;
+    }
+
     final ResultSet resultSet;
+    final RowMapper<T> rowMapper;
+    final Executor executor;
+    final int prefetch;
+    final int batchSize;
+    final int maxFetchSize;
+
+    public ResultSetPublisher(ResultSet resultSet, RowMapper<T> rowMapper, Executor executor, int prefetch, int batchSize) {
+        this(resultSet, rowMapper, executor, prefetch, batchSize, 0);
+    }
 
-    public ResultSetPublisher(ResultSet resultSet) {
+    public ResultSetPublisher(ResultSet resultSet, RowMapper<T> rowMapper, Executor executor, int prefetch, int batchSize, int maxFetchSize) {
+        if (prefetch < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("prefetch and batchSize must be > 0");
+        }
         this.resultSet = resultSet;
+        this.rowMapper = rowMapper;
+        this.executor = executor;
+        this.prefetch = prefetch;
+        this.batchSize = batchSize;
+        this.maxFetchSize = maxFetchSize;
     }
 
     @Override
-    public void subscribe(Subscriber<? super ResultSet> subscriber) {
-        subscriber.onSubscribe(new ResultSetSubscription(subscriber));
+    public void subscribe(Subscriber<? super List<T>> subscriber) {
         if (resultSet == null) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
             subscriber.onError(new NullPointerException("resultSet"));
+            return;
         }
+        subscriber.onSubscribe(new ResultSetSubscription(subscriber));
     }
 
-    class ResultSetSubscription implements Subscription {
+    class ResultSetSubscription implements Subscription, Runnable {
+        final Subscriber<? super List<T>> subscriber;
+        final Queue<List<T>> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queuedRows = new AtomicInteger();
         final AtomicLong requested = new AtomicLong();
-        final AtomicLong published = new AtomicLong();
-        final AtomicBoolean cancelled = new AtomicBoolean();
-        final AtomicReference<Subscriber<? super ResultSet>> subscriber = new AtomicReference<>();
-        final AtomicBoolean publicationPending = new AtomicBoolean();
+        final AtomicInteger wip = new AtomicInteger();
+        final AtomicBoolean fetching = new AtomicBoolean(); // also held while closing, guards all access to the result-set
+
+        volatile boolean cancelled;
+        volatile boolean done;
+        volatile Throwable error;
+        volatile boolean badRequest;
 
-        ResultSetSubscription(Subscriber<? super ResultSet> subscriber) {
-            this.subscriber.set(subscriber);
+        ResultSetSubscription(Subscriber<? super List<T>> subscriber) {
+            this.subscriber = subscriber;
         }
 
         @Override
         public void request(long n) {
-            try {
-                if (n <= 0) {
-                    throw new IllegalArgumentException("requested amount must be > 0");
-                }
-                if (cancelled.get()) {
-                    return;
-                }
-                long r, newRequestedValue;
+            if (n <= 0) {
+                badRequest = true;
+            } else {
+                long r, u;
                 do {
                     r = requested.get();
-                    if (Long.MAX_VALUE - r < n) {
-                        // overflow
-                        newRequestedValue = Long.MAX_VALUE;
-                    } else {
-                        newRequestedValue = r + n;
+                    u = r + n < 0 ? Long.MAX_VALUE : r + n;
+                } while (!requested.compareAndSet(r, u));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            closeUnlessFetching();
+        }
+
+        /**
+         * Reads the next chunk of rows. Runs on the executor, and never concurrently with another chunk or with
+         * closing the result-set.
+         */
+        @Override
+        public void run() {
+            boolean exhausted = false;
+            try {
+                List<T> batch = new ArrayList<>(batchSize);
+                int rows = 0;
+                while ((rows < prefetch || !batch.isEmpty()) && !cancelled) { // only the last batch may be partial
+                    if (!resultSet.next()) {
+                        exhausted = true;
+                        break;
+                    }
+                    batch.add(rowMapper.map(resultSet));
+                    rows++;
+                    if (batch.size() == batchSize) {
+                        queue.offer(batch);
+                        queuedRows.addAndGet(batch.size());
+                        batch = new ArrayList<>(batchSize);
                     }
-                } while (!requested.compareAndSet(r, newRequestedValue));
-                queuePublicationRequest(() -> iterate());
-            } catch (Throwable t) {
-                Subscriber<? super ResultSet> subscriber = this.subscriber.get();
-                if (subscriber == null) {
-                    // asynchronously cancelled
-                    return;
                 }
-                subscriber.onError(t);
+                if (!batch.isEmpty()) {
+                    queue.offer(batch);
+                    queuedRows.addAndGet(batch.size());
+                }
+                if (!exhausted) {
+                    growFetchSize();
+                }
+            } catch (Throwable t) {
+                error = t;
+                exhausted = true;
+            }
+            done = exhausted; // set after all rows are queued, so that drain cannot complete before emitting them
+            if (done || cancelled) {
+                closeResultSet();
             }
+            fetching.set(false);
+            if (cancelled) {
+                closeUnlessFetching();
+                return;
+            }
+            drain();
         }
 
-        private void iterate() {
-            Subscriber<? super ResultSet> subscriber = this.subscriber.get();
-            if (subscriber == null) {
-                // asynchronously cancelled
-                return;
+        private void growFetchSize() throws SQLException {
+            int fetchSize = resultSet.getFetchSize();
+            if (fetchSize > 0 && fetchSize < maxFetchSize) {
+                resultSet.setFetchSize((int) Math.min(maxFetchSize, 2L * fetchSize));
             }
-            boolean next;
-            try {
-                next = resultSet.next();
-            } catch (Throwable t) {
-                subscriber.onError(t);
+        }
+
+        private void fetchIfNeeded() {
+            if (done || cancelled || queuedRows.get() > prefetch / 2) {
                 return;
             }
-            if (next) {
+            if (fetching.compareAndSet(false, true)) {
+                if (done || cancelled) {
+                    fetching.set(false);
+                    return;
+                }
                 try {
-                    subscriber.onNext(resultSet);
-                    published.incrementAndGet();
+                    executor.execute(this);
                 } catch (Throwable t) {
-                    subscriber.onError(t);
-                } finally {
-                    publicationPending.set(false);
+                    error = t;
+                    done = true;
+                    closeResultSet();
+                    fetching.set(false);
                 }
-                queuePublicationRequest(() -> iterate());
-            } else {
-                subscriber.onComplete();
             }
         }
 
-        @Override
-        public void cancel() {
-            cancelled.set(true);
-            subscriber.set(null);
-        }
-
-        public void queuePublicationRequest(Runnable runnable) {
-            if (cancelled.get()) {
+        /**
+         * Emits queued batches while there is demand, and signals termination once the queue is drained. Serialized
+         * by the work-in-progress counter, so that at most one thread emits at a time and request from within onNext
+         * does not recurse.
+         */
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
                 return;
             }
-            // loop until stable. Instability is caused by concurrency
+            int missed = 1;
             for (; ; ) {
-                if (!publicationPending.compareAndSet(false, true)) {
-                    return; // a publication is already pending
+                if (cancelled) {
+                    queue.clear();
+                    return;
                 }
-                long p = published.get();
-                long r = requested.get();
-                if (r > p) {
-                    // available budget
-                    runnable.run(); // runnable should eventually cause onNext publication
+                if (badRequest) {
+                    cancel();
+                    subscriber.onError(new IllegalArgumentException("requested amount must be > 0"));
                     return;
-                } else {
-                    publicationPending.set(false);
-                    // re-check whether requested count has increased while publicationPending flag was set
-                    if (r == requested.get()) {
-                        // requested count has not changed
+                }
+                long r = requested.get();
+                long emitted = 0;
+                while (emitted != r) {
+                    boolean terminated = done;
+                    List<T> batch = queue.poll();
+                    if (batch == null) {
+                        if (terminated && terminate()) {
+                            return;
+                        }
+                        break;
+                    }
+                    queuedRows.addAndGet(-batch.size());
+                    subscriber.onNext(batch);
+                    emitted++;
+                    if (cancelled) {
+                        queue.clear();
                         return;
                     }
                 }
+                if (emitted == r && done && queue.isEmpty() && terminate()) {
+                    return;
+                }
+                if (emitted != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                fetchIfNeeded();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private boolean terminate() {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+            cancelled = true;
+            Throwable t = error;
+            if (t != null) {
+                subscriber.onError(t);
+            } else {
+                subscriber.onComplete();
+            }
+            return true;
+        }
+
+        private void closeUnlessFetching() {
+            if (fetching.compareAndSet(false, true)) {
+                closeResultSet();
+            }
+        }
+
+        /**
+         * Closing the result-set also closes statements that were marked with closeOnCompletion.
+         */
+        private void closeResultSet() {
+            if (resultSet == null) {
+                return;
+            }
+            try {
+                resultSet.close();
+            } catch (SQLException e) {
+                // the statement is closed by the owning transaction at the latest
             }
         }
     }
@@ -0,0 +1,84 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates {@link ResultSetPublisher}s that share a bounded pool of I/O threads, so that blocking JDBC reads never run
+ * on the threads that consume the published rows. Rows are handed off to RxJava io threads before reaching
+ * subscribers, see {@link #flowable(ResultSet, ResultSetPublisher.RowMapper)}.
+ */
+class ResultSetPublisherFactory {
+
+    private final ExecutorService executor;
+    private final int prefetch;
+    private final int batchSize;
+    private final int pointFetchSize;
+    private final int scanFetchSize;
+    private final int maxFetchSize;
+
+    ResultSetPublisherFactory(int ioThreads, int prefetch, int batchSize) {
+        this(ioThreads, prefetch, batchSize, prefetch, prefetch, prefetch);
+    }
+
+    ResultSetPublisherFactory(int ioThreads, int prefetch, int batchSize, int pointFetchSize, int scanFetchSize, int maxFetchSize) {
+        this.executor = Executors.newFixedThreadPool(ioThreads, new IoThreadFactory());
+        this.prefetch = prefetch;
+        this.batchSize = batchSize;
+        this.pointFetchSize = pointFetchSize;
+        this.scanFetchSize = scanFetchSize;
+        this.maxFetchSize = maxFetchSize;
+    }
+
+    <T> ResultSetPublisher<T> publisher(ResultSet resultSet, ResultSetPublisher.RowMapper<T> rowMapper) {
+        return new ResultSetPublisher<>(resultSet, rowMapper, executor, prefetch, batchSize, maxFetchSize);
+    }
+
+    /**
+     * @return the batches of rows of the result-set, emitted on RxJava io threads. A publisher emits on the I/O thread
+     * that read a chunk, and subscribers commonly block, e.g. readAll runs the query of its next page from onNext.
+     * Emitting on the bounded I/O pool would then let a few slow subscribers starve the reads of every other
+     * result-set, or deadlock once all I/O threads wait for reads that need an I/O thread themselves. The hand-off
+     * buffers up to about prefetch rows.
+     */
+    <T> Flowable<List<T>> flowable(ResultSet resultSet, ResultSetPublisher.RowMapper<T> rowMapper) {
+        return Flowable.fromPublisher(publisher(resultSet, rowMapper))
+                .observeOn(Schedulers.io(), true, Math.max(1, prefetch / batchSize));
+    }
+
+    /**
+     * @return the initial number of rows to fetch per round-trip when reading a single document version.
+     */
+    int pointFetchSize() {
+        return pointFetchSize;
+    }
+
+    /**
+     * @return the initial number of rows to fetch per round-trip when scanning documents or versions.
+     */
+    int scanFetchSize() {
+        return scanFetchSize;
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    private static class IoThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "postgres-io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.r2dbc.spi.R2dbcException;
+import no.ssb.lds.api.persistence.PersistenceException;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs isolated transactions off the common pool, for both the JDBC and the R2DBC provider. Uses a virtual thread
+ * per transaction when the JDK supports it and a bounded pool of platform threads otherwise. Admission is limited to
+ * the number of connections in the pool, so tasks wait for a permit instead of holding a thread while blocked on
+ * connection checkout.
+ */
+class TransactionExecutor {
+
+    /**
+     * serialization_failure and deadlock_detected, the transaction can be retried as is.
+     */
+    private static final Set<String> RETRYABLE_SQL_STATES = Set.of("40001", "40P01");
+
+    enum Mode {
+        AUTO, VIRTUAL, PLATFORM
+    }
+
+    final ExecutorService executor;
+    final Semaphore admission;
+    final int maxRetries;
+    final long retryBackoffMs;
+
+    TransactionExecutor(Mode mode, int platformThreads, int maxConcurrentTransactions, int maxRetries, long retryBackoffMs) {
+        this.executor = createExecutor(mode, platformThreads);
+        this.admission = new Semaphore(maxConcurrentTransactions, true);
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    static ExecutorService createExecutor(Mode mode, int platformThreads) {
+        if (mode != Mode.PLATFORM) {
+            ExecutorService virtualThreadExecutor = virtualThreadPerTaskExecutor();
+            if (virtualThreadExecutor != null) {
+                return virtualThreadExecutor;
+            }
+            if (mode == Mode.VIRTUAL) {
+                throw new IllegalArgumentException("Virtual threads are not supported by java " + Runtime.version());
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, new TransactionThreadFactory());
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor() when running on a JDK that has it, otherwise null.
+     */
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the attempt on the executor once admitted, and runs it again after a randomized exponential backoff when it
+     * fails with a serialization failure or deadlock, up to maxRetries times. Each attempt must run and complete a
+     * transaction of its own.
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> attempt) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                admission.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException(e);
+            }
+            try {
+                for (int i = 0; ; i++) {
+                    try {
+                        return attempt.get();
+                    } catch (RuntimeException e) {
+                        if (i >= maxRetries || !isRetryable(e)) {
+                            throw e;
+                        }
+                    }
+                    backoff(i);
+                }
+            } finally {
+                admission.release();
+            }
+        }, executor);
+    }
+
+    private void backoff(int attempt) {
+        long maxSleepMs = retryBackoffMs << Math.min(attempt, 10);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxSleepMs + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException(e);
+        }
+    }
+
+    static boolean isRetryable(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof R2dbcException && RETRYABLE_SQL_STATES.contains(((R2dbcException) cause).getSqlState())) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                for (SQLException e = (SQLException) cause; e != null; e = e.getNextException()) {
+                    if (RETRYABLE_SQL_STATES.contains(e.getSQLState())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    private static class TransactionThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "postgres-tx-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
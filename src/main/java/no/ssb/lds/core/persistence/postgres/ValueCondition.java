@@ -0,0 +1,83 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.core.persistence.postgres.api.ValuePredicate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SQL condition of a {@link ValuePredicate}, used by find. Range and prefix predicates are written on the same
+ * expressions as the typed {@link ValueIndexes}, so that a configured index on the path serves them.
+ */
+class ValueCondition {
+
+    final String path;
+    private final String condition;
+    private final List<Object> parameters;
+
+    private ValueCondition(String path, String condition, List<Object> parameters) {
+        this.path = path;
+        this.condition = condition;
+        this.parameters = parameters;
+    }
+
+    static ValueCondition of(ValuePredicate predicate) {
+        if (predicate.type() == null) {
+            return equalTo(predicate.path(), predicate.value());
+        }
+        return range(predicate.path(), ValueIndexes.Type.valueOf(predicate.type().name()), predicate.lowerInclusive(), predicate.upperExclusive());
+    }
+
+    /**
+     * Equality on the raw value, served by the md5 index of the fragment table or by a hash index on the path.
+     */
+    static ValueCondition equalTo(String path, byte[] value) {
+        return new ValueCondition(path, "md5(value) = md5(?) AND value = ?", List.of(value, value));
+    }
+
+    /**
+     * Values from lower inclusive to upper exclusive, interpreted as the given type. A null bound leaves the range
+     * open at that end.
+     */
+    static ValueCondition range(String path, ValueIndexes.Type type, String lowerInclusive, String upperExclusive) {
+        if (type == ValueIndexes.Type.HASH) {
+            throw new IllegalArgumentException("Range predicates require a numeric, date or text type");
+        }
+        StringBuilder condition = new StringBuilder(type.expression()).append(" IS NOT NULL");
+        List<Object> parameters = new ArrayList<>();
+        if (lowerInclusive != null) {
+            condition.append(" AND ").append(type.expression()).append(" >= ").append(type.parameter());
+            parameters.add(lowerInclusive);
+        }
+        if (upperExclusive != null) {
+            condition.append(" AND ").append(type.expression()).append(" < ").append(type.parameter());
+            parameters.add(upperExclusive);
+        }
+        return new ValueCondition(path, condition.toString(), parameters);
+    }
+
+    /**
+     * @return the condition on the unqualified value column.
+     */
+    String condition() {
+        return condition;
+    }
+
+    /**
+     * Binds the parameters of the condition from index.
+     *
+     * @return the index of the next parameter.
+     */
+    int bind(PreparedStatement ps, int index) throws SQLException {
+        for (Object parameter : parameters) {
+            if (parameter instanceof byte[]) {
+                ps.setBytes(index++, (byte[]) parameter);
+            } else {
+                ps.setString(index++, (String) parameter);
+            }
+        }
+        return index;
+    }
+}
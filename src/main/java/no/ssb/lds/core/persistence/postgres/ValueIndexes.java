@@ -0,0 +1,183 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Per-path value indexes on the fragment tables, configured with postgres.index.paths as a comma-separated list of
+ * entity:path:type, e.g. "Person:$.email:hash,Person:$.born:date". Each index is a partial index covering the rows of
+ * one entity and path only, so that indexes stay small and typed expressions are evaluated on values of that path only:
+ * <ul>
+ * <li>{@link Type#HASH}: hash index on the raw value, for equality on values of any size.</li>
+ * <li>{@link Type#NUMERIC}, {@link Type#DATE} and {@link Type#TEXT}: B-tree on the value converted to numeric,
+ * timestamp with time zone or text in "C" collation, for range and prefix predicates. Values that do not convert are
+ * indexed as NULL.</li>
+ * </ul>
+ * Every fragment table also has an equality index on md5 of the value, used when no per-path index applies.
+ * <p>
+ * Indexes are built with CREATE INDEX CONCURRENTLY, so that adding an index to a live table does not block writes
+ * while it is built. Postgres does not support that on partitioned tables, which are indexed with a plain CREATE INDEX.
+ */
+class ValueIndexes {
+
+    enum Type {
+        HASH,
+        NUMERIC,
+        DATE,
+        TEXT;
+
+        /**
+         * @return the expression that an index of this type is built on, and that predicates must use to be served by
+         * the index.
+         */
+        String expression() {
+            switch (this) {
+                case NUMERIC:
+                    return "lds_numeric(value)";
+                case DATE:
+                    return "lds_timestamp(value)";
+                case TEXT:
+                    return "(lds_text(value) COLLATE \"C\")";
+                default:
+                    return "value";
+            }
+        }
+
+        /**
+         * @return the cast applied to bound predicate values.
+         */
+        String parameter() {
+            switch (this) {
+                case NUMERIC:
+                    return "CAST(? AS numeric)";
+                case DATE:
+                    return "CAST(? AS timestamp with time zone)";
+                default:
+                    return "?";
+            }
+        }
+    }
+
+    static class Definition {
+        final String entity;
+        final String path;
+        final Type type;
+
+        Definition(String entity, String path, Type type) {
+            this.entity = entity;
+            this.path = path;
+            this.type = type;
+        }
+    }
+
+    private final DataSource dataSource;
+    private final FragmentLayout layout;
+    private final EntityTables entityTables;
+    private final List<Definition> definitions;
+
+    ValueIndexes(DataSource dataSource, FragmentLayout layout, EntityTables entityTables, List<Definition> definitions) {
+        this.dataSource = dataSource;
+        this.layout = layout;
+        this.entityTables = entityTables;
+        this.definitions = definitions;
+    }
+
+    /**
+     * @param managedDomains the entities of the specification, configured indexes must refer to one of them.
+     */
+    static List<Definition> parse(String configuration, Set<String> managedDomains) {
+        List<Definition> definitions = new ArrayList<>();
+        if (configuration == null || configuration.isBlank()) {
+            return definitions;
+        }
+        for (String entry : configuration.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("postgres.index.paths entries must be entity:path:type, was: " + entry);
+            }
+            String entity = parts[0].trim();
+            if (managedDomains != null && !managedDomains.isEmpty() && !managedDomains.contains(entity)) {
+                throw new IllegalArgumentException("postgres.index.paths refers to unmanaged domain: " + entity);
+            }
+            definitions.add(new Definition(entity, parts[1].trim(), Type.valueOf(parts[2].trim().toUpperCase(Locale.ROOT))));
+        }
+        return definitions;
+    }
+
+    /**
+     * @return true if an index is defined on the path of the entity, so that queries on it benefit from being planned
+     * for the bound values.
+     */
+    boolean covers(String entity, String path) {
+        for (Definition definition : definitions) {
+            if (definition.entity.equals(entity) && definition.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void createAll() {
+        for (Definition definition : definitions) {
+            create(definition);
+        }
+    }
+
+    private void create(Definition definition) {
+        String table = entityTables.of(definition.entity);
+        String name = layout.table + "_" + Integer.toHexString((table + ":" + definition.entity + ":" + definition.path).hashCode())
+                + "_" + definition.type.name().toLowerCase(Locale.ROOT) + "_idx";
+        String predicate = "entity = '" + definition.entity.replace("'", "''") + "' AND "
+                + layout.pathKeyColumn() + " = " + layout.pathKeyLiteral(definition.path);
+        String create = entityTables.isPartitioned() ? "CREATE INDEX IF NOT EXISTS " : "CREATE INDEX CONCURRENTLY IF NOT EXISTS ";
+        String ddl = definition.type == Type.HASH
+                ? create + name + " ON " + table + " USING hash (value) WHERE " + predicate
+                : create + name + " ON " + table + " (" + definition.type.expression() + ") WHERE " + predicate;
+        execute(name, ddl);
+    }
+
+    /**
+     * Runs the DDL in auto-commit mode, as CREATE INDEX CONCURRENTLY cannot run in a transaction block. A concurrent
+     * build that failed leaves an invalid index behind, which IF NOT EXISTS would keep forever, so it is dropped and
+     * built again.
+     */
+    private void execute(String name, String ddl) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            try (Statement st = connection.createStatement()) {
+                if (isInvalid(connection, name)) {
+                    st.execute("DROP INDEX CONCURRENTLY IF EXISTS " + name);
+                }
+                st.execute(ddl);
+            } catch (SQLException e) {
+                if (!"42P07".equals(e.getSQLState()) && !"23505".equals(e.getSQLState())) {
+                    throw e;
+                }
+                // created concurrently by another instance
+            } finally {
+                connection.setAutoCommit(false);
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    private static boolean isInvalid(Connection connection, String name) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT NOT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?)")) {
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when a pending JDBC write batch should be flushed. A batch is flushed when it holds the current batch-size
+ * number of fragments, or when its payload reaches the configured byte limit, whichever comes first.
+ * <p>
+ * In adaptive mode the batch-size is doubled when a size-limited batch completes in less than half the target
+ * latency, and halved when a batch takes longer than the target latency. The size is shared by all writers of the
+ * persistence instance so that what is learned carries over between documents.
+ */
+class WriteBatchSizer {
+
+    private final boolean adaptive;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxBytes;
+    private final long targetLatencyNanos;
+    private final AtomicInteger size;
+
+    WriteBatchSizer(int initialSize, boolean adaptive, int minSize, int maxSize, long maxBytes, long targetLatencyMillis) {
+        if (initialSize < 1 || minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Illegal batch size, initial: " + initialSize + ", min: " + minSize + ", max: " + maxSize);
+        }
+        this.adaptive = adaptive;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.size = new AtomicInteger(adaptive ? Math.max(minSize, Math.min(maxSize, initialSize)) : initialSize);
+    }
+
+    int batchSize() {
+        return size.get();
+    }
+
+    boolean isFull(int pendingFragments, long pendingBytes) {
+        return pendingFragments >= size.get() || pendingBytes >= maxBytes;
+    }
+
+    void onFlushed(int fragments, long bytes, long elapsedNanos) {
+        if (!adaptive) {
+            return;
+        }
+        int current = size.get();
+        if (elapsedNanos > targetLatencyNanos) {
+            size.compareAndSet(current, Math.max(minSize, current / 2));
+        } else if (elapsedNanos < targetLatencyNanos / 2 && fragments >= current && bytes < maxBytes) {
+            // only grow on batches that were limited by size, not by payload or end of stream
+            size.compareAndSet(current, (int) Math.min(maxSize, 2L * current));
+        }
+    }
+}
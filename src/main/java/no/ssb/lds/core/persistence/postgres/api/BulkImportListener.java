@@ -0,0 +1,21 @@
+package no.ssb.lds.core.persistence.postgres.api;
+
+import no.ssb.lds.api.persistence.DocumentKey;
+
+/**
+ * Receives progress and failures of a bulk import from its worker threads, implementations must be thread-safe.
+ */
+public interface BulkImportListener {
+
+    /**
+     * Called after every committed transaction, with totals for the import so far.
+     */
+    default void onProgress(long documentsWritten, long documentsFailed) {
+    }
+
+    /**
+     * Called for every document that could not be written, also when written in a transaction of its own.
+     */
+    default void onFailure(DocumentKey document, Throwable cause) {
+    }
+}
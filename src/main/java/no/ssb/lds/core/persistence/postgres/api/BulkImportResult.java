@@ -0,0 +1,38 @@
+package no.ssb.lds.core.persistence.postgres.api;
+
+/**
+ * Totals of a completed bulk import.
+ */
+public final class BulkImportResult {
+
+    private final long documentsWritten;
+    private final long documentsFailed;
+    private final long elapsedMillis;
+
+    public BulkImportResult(long documentsWritten, long documentsFailed, long elapsedMillis) {
+        this.documentsWritten = documentsWritten;
+        this.documentsFailed = documentsFailed;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long documentsWritten() {
+        return documentsWritten;
+    }
+
+    public long documentsFailed() {
+        return documentsFailed;
+    }
+
+    public long elapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkImportResult{" +
+                "documentsWritten=" + documentsWritten +
+                ", documentsFailed=" + documentsFailed +
+                ", elapsedMillis=" + elapsedMillis +
+                '}';
+    }
+}
@@ -0,0 +1,16 @@
+package no.ssb.lds.core.persistence.postgres.api;
+
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+
+/**
+ * Implemented by the "postgres" provider, so that an initializer found through the service loader can be cast to it
+ * to reach the {@link PostgresRxPersistence} behind the persistence it initialized.
+ */
+public interface PostgresPersistenceInitializer extends PersistenceInitializer {
+
+    /**
+     * @return the fragment-per-row persistence, or null when postgres.storage.mode is document or the initializer has
+     * not been initialized.
+     */
+    PostgresRxPersistence getPostgresPersistence();
+}
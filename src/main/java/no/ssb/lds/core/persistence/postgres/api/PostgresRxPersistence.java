@@ -0,0 +1,74 @@
+package no.ssb.lds.core.persistence.postgres.api;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.time.ZonedDateTime;
+import java.util.Collection;
+
+/**
+ * The operations of the postgres provider beyond {@link RxPersistence}. The persistence storing a fragment per row
+ * implements it, and is returned by PostgresDbInitializer.getPostgresPersistence() once initialized.
+ */
+public interface PostgresRxPersistence extends RxPersistence {
+
+    /**
+     * Writes a stream of many documents using parallel workers, each writing its share of the documents in
+     * transactions of up to documentsPerTransaction documents on a connection of its own. All versions of a document
+     * are written by the same worker in stream order, and the fragments of a document version are expected to arrive
+     * contiguously. A document that fails is written again on its own and reported to the listener, which may be null,
+     * without failing the documents it shared a transaction with.
+     * <p>
+     * Each worker holds a connection of the pool while the import runs, so workers must be fewer than the pool
+     * max-size.
+     *
+     * @return the totals of the import, emitted when every document is written or has failed.
+     */
+    Single<BulkImportResult> bulkImport(Flowable<Fragment> fragments, int workers, int documentsPerTransaction, BulkImportListener listener);
+
+    /**
+     * Reads the versions visible at the snapshot of all the given documents using a single query. The fragments of a
+     * document are emitted contiguously, and documents are emitted in id order. Ids that do not exist at the snapshot
+     * are silently skipped.
+     */
+    Flowable<Fragment> readDocuments(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, Collection<String> ids);
+
+    /**
+     * Deletes the history of every document of the entity, keeping the keepLatest latest versions of each document
+     * and any version at or after keepNewerThan. The latest version of a document, including a delete-marker, is
+     * always kept, so what reads at the current time return is not changed.
+     * <p>
+     * This is a maintenance operation that runs outside of any caller transaction: documents are purged in chunks of
+     * postgres.delete.chunk-size ids, and every chunk is committed in a transaction of its own, so that the locks and
+     * WAL held at any time are bounded by a chunk. If a chunk fails, the chunks before it stay purged and the purge
+     * can be run again.
+     *
+     * @param keepLatest    the number of versions to keep per document, at least 1.
+     * @param keepNewerThan versions at or after this time are kept regardless of keepLatest, or null to keep versions
+     *                      by count only.
+     * @return the number of fragments deleted.
+     */
+    long purgeVersions(String namespace, String entity, int keepLatest, ZonedDateTime keepNewerThan);
+
+    /**
+     * Creates the version partitions of the entity covering from to to, so that those versions are no longer stored
+     * in the DEFAULT partition of the entity. Partitions are never created while reading or writing, and only for the
+     * current and next interval at startup, so this is to be called ahead of time when versions outside those
+     * intervals are written. The DDL is run and committed on a connection of its own.
+     *
+     * @throws IllegalStateException if postgres.partitioning.version-interval is not set, or the entity is not one of
+     *                               the managed domains.
+     */
+    void createVersionPartitions(String entity, ZonedDateTime from, ZonedDateTime to);
+
+    /**
+     * Finds the documents that have a version at the snapshot with a fragment at the predicate path matching the
+     * predicate, and emits the fragments of those versions. At most the limit of the range documents are found, 100
+     * when it has none.
+     */
+    Flowable<Fragment> find(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity, ValuePredicate predicate, Range<String> range);
+}
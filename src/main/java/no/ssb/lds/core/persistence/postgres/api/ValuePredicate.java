@@ -0,0 +1,102 @@
+package no.ssb.lds.core.persistence.postgres.api;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Condition on the value of the fragments at a path, matched by the find of {@link PostgresRxPersistence}. Range and
+ * prefix predicates interpret the value as the given type in the same way as the typed value indexes of
+ * postgres.index.paths, so that an index of that type on the path serves them.
+ */
+public final class ValuePredicate {
+
+    /**
+     * How the value is interpreted by a range predicate. Values that cannot be interpreted as the type never match.
+     */
+    public enum Type {
+        NUMERIC,
+        DATE,
+        TEXT
+    }
+
+    private final String path;
+    private final byte[] value;
+    private final Type type;
+    private final String lowerInclusive;
+    private final String upperExclusive;
+
+    private ValuePredicate(String path, byte[] value, Type type, String lowerInclusive, String upperExclusive) {
+        this.path = path;
+        this.value = value;
+        this.type = type;
+        this.lowerInclusive = lowerInclusive;
+        this.upperExclusive = upperExclusive;
+    }
+
+    /**
+     * Equality on the raw value.
+     */
+    public static ValuePredicate equalTo(String path, byte[] value) {
+        return new ValuePredicate(path, value.clone(), null, null, null);
+    }
+
+    /**
+     * Values from lower inclusive to upper exclusive, interpreted as the given type. A null bound leaves the range
+     * open at that end. Dates are ISO-8601 timestamps.
+     */
+    public static ValuePredicate range(String path, Type type, String lowerInclusive, String upperExclusive) {
+        if (type == null) {
+            throw new IllegalArgumentException("Range predicates require a type");
+        }
+        return new ValuePredicate(path, null, type, lowerInclusive, upperExclusive);
+    }
+
+    /**
+     * Text values starting with the prefix, as a range in "C" collation.
+     */
+    public static ValuePredicate startsWith(String path, String prefix) {
+        return range(path, Type.TEXT, prefix, prefixUpperBound(prefix));
+    }
+
+    /**
+     * @return the smallest string greater than every string starting with the prefix in "C" collation, or null if
+     * there is none.
+     */
+    static String prefixUpperBound(String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if ((bytes[i] & 0xff) < 0x7f) {
+                byte[] upper = new byte[i + 1];
+                System.arraycopy(bytes, 0, upper, 0, i);
+                upper[i] = (byte) (bytes[i] + 1);
+                return new String(upper, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    /**
+     * @return the value of an equality predicate, or null for a range predicate.
+     */
+    public byte[] value() {
+        return value == null ? null : value.clone();
+    }
+
+    /**
+     * @return the type of a range predicate, or null for an equality predicate.
+     */
+    public Type type() {
+        return type;
+    }
+
+    public String lowerInclusive() {
+        return lowerInclusive;
+    }
+
+    public String upperExclusive() {
+        return upperExclusive;
+    }
+}
@@ -0,0 +1,8 @@
+CREATE TABLE IF NOT EXISTS namespace_content_hash
+(
+  entity  varchar COLLATE "POSIX"     NOT NULL,
+  id      varchar COLLATE "POSIX"     NOT NULL,
+  version timestamp(3) with time zone NOT NULL,
+  hash    bytea                       NOT NULL,
+  PRIMARY KEY (entity, id, version)
+);
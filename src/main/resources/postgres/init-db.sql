@@ -1,3 +1,9 @@
+CREATE OR REPLACE FUNCTION lds_text(value bytea) RETURNS text IMMUTABLE STRICT PARALLEL SAFE LANGUAGE plpgsql AS $$ BEGIN RETURN convert_from(value, 'UTF8'); EXCEPTION WHEN OTHERS THEN RETURN NULL; END $$;
+
+CREATE OR REPLACE FUNCTION lds_numeric(value bytea) RETURNS numeric IMMUTABLE STRICT PARALLEL SAFE LANGUAGE plpgsql AS $$ BEGIN RETURN CAST(convert_from(value, 'UTF8') AS numeric); EXCEPTION WHEN OTHERS THEN RETURN NULL; END $$;
+
+CREATE OR REPLACE FUNCTION lds_timestamp(value bytea) RETURNS timestamp with time zone IMMUTABLE STRICT PARALLEL SAFE LANGUAGE plpgsql SET TimeZone = 'UTC' AS $$ BEGIN RETURN CAST(convert_from(value, 'UTF8') AS timestamp with time zone); EXCEPTION WHEN OTHERS THEN RETURN NULL; END $$;
+
 CREATE TABLE IF NOT EXISTS namespace
 (
   entity  varchar COLLATE "POSIX"     NOT NULL,
@@ -10,4 +16,6 @@ CREATE TABLE IF NOT EXISTS namespace
   PRIMARY KEY (entity, id, version, path, indices)
 );
 
-CREATE INDEX IF NOT EXISTS namespace_path_value_idx ON namespace(entity, path, value);
\ No newline at end of file
+CREATE INDEX IF NOT EXISTS namespace_path_value_hash_idx ON namespace(entity, path, md5(value));
+
+CREATE INDEX IF NOT EXISTS namespace_link_idx ON namespace(md5(value)) WHERE substring(value FROM 1 FOR 1) = '\x2f'::bytea;
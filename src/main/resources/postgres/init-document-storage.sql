@@ -0,0 +1,16 @@
+CREATE TABLE IF NOT EXISTS namespace_document
+(
+  entity    varchar COLLATE "POSIX"     NOT NULL,
+  id        varchar COLLATE "POSIX"     NOT NULL,
+  version   timestamp(3) with time zone NOT NULL,
+  deleted   boolean                     NOT NULL,
+  fragments bytea                       NOT NULL,
+  leaves    jsonb                       NOT NULL,
+  PRIMARY KEY (entity, id, version)
+);
+
+CREATE INDEX IF NOT EXISTS namespace_document_leaves_idx ON namespace_document USING GIN (leaves jsonb_path_ops);
+
+CREATE OR REPLACE FUNCTION lds_link_values(leaves jsonb) RETURNS text[] IMMUTABLE STRICT PARALLEL SAFE LANGUAGE sql AS $$ SELECT coalesce(array_agg(v.hex), '{}') FROM jsonb_each(leaves) e, jsonb_array_elements_text(e.value) AS v(hex) WHERE v.hex LIKE '2f%' $$;
+
+CREATE INDEX IF NOT EXISTS namespace_document_links_idx ON namespace_document USING GIN (lds_link_values(leaves));
@@ -0,0 +1,13 @@
+CREATE TABLE IF NOT EXISTS namespace_latest
+(
+  entity  varchar COLLATE "POSIX"     NOT NULL,
+  id      varchar COLLATE "POSIX"     NOT NULL,
+  version timestamp(3) with time zone NOT NULL,
+  deleted boolean                     NOT NULL,
+  PRIMARY KEY (entity, id) INCLUDE (version, deleted)
+);
+
+CREATE TABLE IF NOT EXISTS namespace_latest_sync
+(
+  scope varchar COLLATE "POSIX" NOT NULL PRIMARY KEY
+);
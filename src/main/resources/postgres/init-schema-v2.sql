@@ -0,0 +1,21 @@
+CREATE TABLE IF NOT EXISTS namespace_path
+(
+  path_id integer GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+  path    varchar NOT NULL UNIQUE
+);
+
+CREATE TABLE IF NOT EXISTS namespace_v2
+(
+  entity  varchar COLLATE "POSIX"     NOT NULL,
+  id      varchar COLLATE "POSIX"     NOT NULL,
+  version timestamp(3) with time zone NOT NULL,
+  path_id integer                     NOT NULL,
+  indices bytea                       NOT NULL,
+  type    smallint                    NOT NULL,
+  value   bytea NULL,
+  PRIMARY KEY (entity, id, version, path_id, indices)
+);
+
+CREATE INDEX IF NOT EXISTS namespace_v2_path_value_hash_idx ON namespace_v2(entity, path_id, md5(value));
+
+CREATE INDEX IF NOT EXISTS namespace_v2_link_idx ON namespace_v2(md5(value)) WHERE substring(value FROM 1 FOR 1) = '\x2f'::bytea;
@@ -0,0 +1,72 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+import no.ssb.lds.core.persistence.postgres.api.BulkImportListener;
+import no.ssb.lds.core.persistence.postgres.api.BulkImportResult;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresBulkImportIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-bulk-import-integration-test";
+    static final String ENTITY = "ImportedPerson";
+    static final int DOCUMENTS = 5000;
+
+    public PostgresBulkImportIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of());
+    }
+
+    static String id(int i) {
+        return String.format("%08d", i);
+    }
+
+    static Flowable<Fragment> document(int i) {
+        // fragments with a non-zero offset are rejected by the writer, which makes document 42 fail
+        int offset = i == 42 ? 1 : 0;
+        return Flowable.just(
+                new Fragment(NAMESPACE, ENTITY, id(i), VERSION, "$.name", FragmentType.STRING, offset, ("name-" + i).getBytes(StandardCharsets.UTF_8)),
+                new Fragment(NAMESPACE, ENTITY, id(i), VERSION, "$.email", FragmentType.STRING, offset, ("email-" + i).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void thatBulkImportWritesAllDocumentsAndReportsFailingDocuments() {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+        tx.commit().join();
+
+        List<DocumentKey> failed = new CopyOnWriteArrayList<>();
+        BulkImportResult result = persistence.bulkImport(Flowable.range(0, DOCUMENTS).concatMap(PostgresBulkImportIntegrationTest::document), 4, 500,
+                new BulkImportListener() {
+                    @Override
+                    public void onFailure(DocumentKey document, Throwable cause) {
+                        failed.add(document);
+                    }
+                }).blockingGet();
+
+        assertEquals(result.documentsWritten(), DOCUMENTS - 1);
+        assertEquals(result.documentsFailed(), 1);
+        assertEquals(failed.size(), 1);
+        assertEquals(failed.get(0).id(), id(42));
+
+        tx = persistence.createTransaction(true);
+        try {
+            long documents = persistence.readAll(tx, VERSION.plusDays(1), NAMESPACE, ENTITY, Range.unbounded())
+                    .map(Fragment::id).distinct().count().blockingGet();
+            assertEquals(documents, DOCUMENTS - 1);
+        } finally {
+            tx.cancel();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+
+public class PostgresChunkedDeleteIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-chunked-delete-integration-test";
+    static final String PERSON = "ChunkedPerson";
+    static final String ADDRESS = "ChunkedAddress";
+    static final ZonedDateTime V1 = VERSION;
+    static final ZonedDateTime V2 = V1.plusDays(1);
+    static final ZonedDateTime V3 = V1.plusDays(2);
+    static final ZonedDateTime V4 = V1.plusDays(3);
+
+    public PostgresChunkedDeleteIntegrationTest() {
+        super(NAMESPACE, Set.of(PERSON, ADDRESS), Map.of(
+                "postgres.latest-version-table.enabled", "true",
+                "postgres.write.skip-unchanged", "true",
+                "postgres.delete.chunk-size", "3"));
+    }
+
+    static Flowable<Fragment> person(String id, ZonedDateTime version, String name) {
+        return Flowable.just(
+                fragment(NAMESPACE, PERSON, id, version, "$.name", name),
+                fragment(NAMESPACE, PERSON, id, version, "$.address", "/" + ADDRESS + "/" + id));
+    }
+
+    static Flowable<Fragment> address(String id, ZonedDateTime version) {
+        return Flowable.just(
+                fragment(NAMESPACE, ADDRESS, id, version, "$.street", "Main street"));
+    }
+
+    List<ZonedDateTime> versions(Transaction tx, String id) {
+        return persistence.readVersions(tx, NAMESPACE, PERSON, id, Range.unbounded())
+                .map(fragment -> fragment.timestamp().withZoneSameInstant(V1.getZone())).distinct().sorted().toList().blockingGet();
+    }
+
+    long documents(Transaction tx, String entity) {
+        return persistence.readAll(tx, V4, NAMESPACE, entity, Range.unbounded())
+                .map(Fragment::id).distinct().count().blockingGet();
+    }
+
+    void committed(Consumer<Transaction> work) {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            work.accept(tx);
+        } catch (RuntimeException e) {
+            tx.cancel();
+            throw e;
+        }
+        tx.commit();
+    }
+
+    void assertVersionsOfEveryDocument(List<ZonedDateTime> expected) {
+        committed(tx -> {
+            for (int i = 1; i <= 7; i++) {
+                assertEquals(versions(tx, String.valueOf(i)), expected);
+            }
+        });
+    }
+
+    @Test
+    public void thatPurgeKeepsLatestVersionsOfEveryDocument() {
+        committed(tx -> {
+            persistence.deleteAllEntities(tx, NAMESPACE, PERSON, List.of()).blockingAwait();
+            for (int i = 1; i <= 7; i++) {
+                String id = String.valueOf(i);
+                persistence.createOrOverwrite(tx, Flowable.concat(person(id, V1, "a"), person(id, V2, "b"), person(id, V3, "c"), person(id, V4, "d"))).blockingAwait();
+            }
+        });
+        try {
+            // every chunk is committed by the purge itself, not by a transaction of the caller
+            assertEquals(persistence.purgeVersions(NAMESPACE, PERSON, 3, null), 7 * 2);
+            assertVersionsOfEveryDocument(List.of(V2, V3, V4));
+
+            assertEquals(persistence.purgeVersions(NAMESPACE, PERSON, 1, V3), 7 * 2);
+            assertVersionsOfEveryDocument(List.of(V3, V4));
+
+            persistence.purgeVersions(NAMESPACE, PERSON, 1, null);
+            committed(tx -> {
+                assertEquals(versions(tx, "1"), List.of(V4));
+                assertEquals(persistence.read(tx, V4, NAMESPACE, PERSON, "1").count().blockingGet().longValue(), 2);
+            });
+        } finally {
+            committed(tx -> persistence.deleteAllEntities(tx, NAMESPACE, PERSON, List.of()).blockingAwait());
+        }
+    }
+
+    @Test
+    public void thatDeleteAllEntitiesDeletesEveryChunk() {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            for (int i = 1; i <= 10; i++) {
+                persistence.createOrOverwrite(tx, Flowable.concat(person(String.valueOf(i), V1, "a"), person(String.valueOf(i), V2, "b"))).blockingAwait();
+            }
+            assertEquals(documents(tx, PERSON), 10);
+
+            persistence.deleteAllEntities(tx, NAMESPACE, PERSON, List.of()).blockingAwait();
+            assertEquals(documents(tx, PERSON), 0);
+            assertEquals(versions(tx, "10"), List.of());
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatDeleteAllEntitiesCommitsEveryChunk() {
+        committed(tx -> {
+            persistence.deleteAllEntities(tx, NAMESPACE, PERSON, List.of()).blockingAwait();
+            for (int i = 1; i <= 10; i++) {
+                persistence.createOrOverwrite(tx, Flowable.concat(person(String.valueOf(i), V1, "a"), person(String.valueOf(i), V2, "b"))).blockingAwait();
+            }
+        });
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            // the rows of document 1 locked by the transaction are deleted in it rather than by a chunk
+            persistence.delete(tx, NAMESPACE, PERSON, "1", V1, null).blockingAwait();
+            persistence.createOrOverwrite(tx, person("11", V1, "a")).blockingAwait();
+            persistence.deleteAllEntities(tx, NAMESPACE, PERSON, List.of()).blockingAwait();
+            assertEquals(documents(tx, PERSON), 0);
+        } finally {
+            tx.cancel();
+        }
+        committed(tx2 -> {
+            assertEquals(documents(tx2, PERSON), 1);
+            assertEquals(versions(tx2, "1"), List.of(V1, V2));
+        });
+        committed(tx2 -> persistence.deleteAllEntities(tx2, NAMESPACE, PERSON, List.of()).blockingAwait());
+    }
+
+    @Test
+    public void thatDeleteFailsOnIncomingLinksWhenPolicyRequiresIt() {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, PERSON, List.of()).blockingAwait();
+            persistence.deleteAllEntities(tx, NAMESPACE, ADDRESS, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, address("1", V1)).blockingAwait();
+            persistence.createOrOverwrite(tx, address("2", V1)).blockingAwait();
+            persistence.createOrOverwrite(tx, person("1", V1, "a")).blockingAwait();
+
+            assertThrows(PersistenceException.class, () -> persistence.markDeleted(tx, NAMESPACE, ADDRESS, "1", V2, PersistenceDeletePolicy.FAIL_IF_INCOMING_LINKS).blockingAwait());
+            assertThrows(PersistenceException.class, () -> persistence.deleteAllVersions(tx, NAMESPACE, ADDRESS, "1", PersistenceDeletePolicy.FAIL_IF_INCOMING_LINKS).blockingAwait());
+            assertThrows(PersistenceException.class, () -> persistence.delete(tx, NAMESPACE, ADDRESS, "1", V1, PersistenceDeletePolicy.FAIL_IF_INCOMING_LINKS).blockingAwait());
+            // removing or cascading to the links is not supported, so those policies fail rather than leave them dangling
+            assertThrows(PersistenceException.class, () -> persistence.deleteAllVersions(tx, NAMESPACE, ADDRESS, "1", PersistenceDeletePolicy.DELETE_INCOMING_LINKS).blockingAwait());
+            assertThrows(PersistenceException.class, () -> persistence.markDeleted(tx, NAMESPACE, ADDRESS, "1", V2, PersistenceDeletePolicy.CASCADE_DELETE_ALL_INCOMING_LINKS_AND_NODES).blockingAwait());
+            persistence.deleteAllVersions(tx, NAMESPACE, ADDRESS, "2", PersistenceDeletePolicy.DELETE_INCOMING_LINKS).blockingAwait();
+
+            persistence.markDeleted(tx, NAMESPACE, PERSON, "1", V2, null).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(
+                    fragment(NAMESPACE, PERSON, "1", V3, "$.name", "a"))).blockingAwait();
+            persistence.deleteAllVersions(tx, NAMESPACE, ADDRESS, "1", PersistenceDeletePolicy.FAIL_IF_INCOMING_LINKS).blockingAwait();
+            assertEquals(documents(tx, ADDRESS), 0);
+        } finally {
+            tx.cancel();
+        }
+    }
+}
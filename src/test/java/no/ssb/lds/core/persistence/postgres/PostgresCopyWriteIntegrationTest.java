@@ -0,0 +1,42 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import io.reactivex.observers.TestObserver;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresCopyWriteIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-copy-write-integration-test";
+    static final String ENTITY = "CopiedPerson";
+
+    public PostgresCopyWriteIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of("postgres.write.mode", "copy"));
+    }
+
+    @Test
+    public void thatDisposingWriteMidStreamLeavesTransactionRollbackable() {
+        Flowable<Fragment> neverEndingStream = Flowable.concat(
+                Flowable.range(0, 10000).map(i -> fragment(NAMESPACE, ENTITY, "disposed-" + i, VERSION, "$.name", "name-" + i)),
+                Flowable.never());
+
+        Transaction tx = persistence.createTransaction(false);
+        TestObserver<Void> write = persistence.createOrOverwrite(tx, neverEndingStream).test();
+        write.assertNotTerminated();
+        write.dispose();
+        tx.cancel().join();
+
+        Transaction readTx = persistence.createTransaction(true);
+        try {
+            assertEquals(persistence.read(readTx, VERSION, NAMESPACE, ENTITY, "disposed-0").count().blockingGet().longValue(), 0);
+        } finally {
+            readTx.cancel();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+public class PostgresDocumentCacheIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-document-cache-integration-test";
+    static final String ENTITY = "CachedPerson";
+    static final ZonedDateTime SNAPSHOT = VERSION.plusDays(1);
+
+    public PostgresDocumentCacheIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of("postgres.cache.document.capacity", "100"));
+    }
+
+    static Flowable<Fragment> person(String name) {
+        return Flowable.just(fragment(NAMESPACE, ENTITY, "1", VERSION, "$.name", name));
+    }
+
+    void write(Flowable<Fragment> fragments) {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.createOrOverwrite(tx, fragments).blockingAwait();
+        tx.commit().join();
+    }
+
+    /**
+     * @return the name read, and the number of statements the read executed.
+     */
+    List<Object> readName() {
+        Transaction tx = persistence.createTransaction(true);
+        List<String> names = persistence.read(tx, SNAPSHOT, NAMESPACE, ENTITY, "1")
+                .map(fragment -> new String(fragment.value(), StandardCharsets.UTF_8)).toList().blockingGet();
+        TransactionStatistics statistics = tx.commit().join();
+        return List.of(names, statistics.map().get("statements"));
+    }
+
+    DocumentCache.Key key() {
+        return new DocumentCache.Key(NAMESPACE, ENTITY, "1", VERSION.toInstant().toEpochMilli());
+    }
+
+    @Test
+    public void thatReadsAreServedFromCacheUntilDocumentIsModified() {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+        tx.commit().join();
+        write(person("John"));
+
+        assertEquals(readName(), List.of(List.of("John"), 2)); // version lookup and fragment query
+        assertNotNull(persistence.documentCache.get(key()));
+        assertEquals(readName(), List.of(List.of("John"), 1)); // version lookup only
+
+        write(person("Johnny"));
+        assertNull(persistence.documentCache.get(key()));
+        assertEquals(readName(), List.of(List.of("Johnny"), 2));
+        assertEquals(readName(), List.of(List.of("Johnny"), 1));
+
+        tx = persistence.createTransaction(false);
+        persistence.delete(tx, NAMESPACE, ENTITY, "1", VERSION, null).blockingAwait();
+        tx.commit().join();
+        assertNull(persistence.documentCache.get(key()));
+        assertEquals(readName(), List.of(List.of(), 1));
+    }
+}
@@ -0,0 +1,49 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base of the integration tests of a single feature of the provider. Every test class opens a persistence of its own,
+ * in a namespace of its own and with the provider configuration of the feature under test.
+ */
+abstract class PostgresFeatureIntegrationTest {
+
+    static final ZonedDateTime VERSION = ZonedDateTime.of(2018, 1, 1, 0, 0, 0, 0, ZoneId.of("Etc/UTC"));
+
+    private final String namespace;
+    private final Set<String> entities;
+    private final Map<String, String> configuration;
+
+    PostgresPersistence persistence;
+
+    PostgresFeatureIntegrationTest(String namespace, Set<String> entities, Map<String, String> configuration) {
+        this.namespace = namespace;
+        this.entities = entities;
+        this.configuration = configuration;
+    }
+
+    @BeforeClass
+    public void openPersistence() {
+        persistence = TestDatabase.open(namespace, entities, configuration);
+    }
+
+    @AfterClass
+    public void closePersistence() {
+        if (persistence != null) {
+            persistence.close();
+        }
+    }
+
+    static Fragment fragment(String namespace, String entity, String id, ZonedDateTime version, String path, String value) {
+        return new Fragment(namespace, entity, id, version, path, FragmentType.STRING, 0, value.getBytes(StandardCharsets.UTF_8));
+    }
+}
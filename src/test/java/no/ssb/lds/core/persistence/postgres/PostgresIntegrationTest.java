@@ -1,28 +1,57 @@
 package no.ssb.lds.core.persistence.postgres;
 
 import no.ssb.lds.core.persistence.test.PersistenceIntegrationTest;
+import org.testng.ITest;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Factory;
 
 import java.util.Map;
 import java.util.Set;
 
-public class PostgresIntegrationTest extends PersistenceIntegrationTest {
+/**
+ * Runs the persistence compliance tests against every storage, schema and write configuration of the provider. The
+ * behaviour of each configuration is tested in a test class of its own.
+ */
+public class PostgresIntegrationTest extends PersistenceIntegrationTest implements ITest {
 
-    public PostgresIntegrationTest() {
+    @Factory
+    public static Object[] configurations() {
+        return new Object[]{
+                new PostgresIntegrationTest("default", Map.of()),
+                new PostgresIntegrationTest("copy-write", Map.of("postgres.write.mode", "copy")),
+                new PostgresIntegrationTest("pipelined-write", Map.of("postgres.write.mode", "pipelined", "postgres.write.batch.size", "4")),
+                new PostgresIntegrationTest("document-cache", Map.of("postgres.cache.document.capacity", "100")),
+                new PostgresIntegrationTest("latest-version-table", Map.of("postgres.latest-version-table.enabled", "true")),
+                new PostgresIntegrationTest("schema-v2", Map.of("postgres.schema.version", "2")),
+                new PostgresIntegrationTest("document-storage", Map.of("postgres.storage.mode", "document")),
+                new PostgresIntegrationTest("table-per-entity", Map.of("postgres.table-per-entity.enabled", "true")),
+                new PostgresIntegrationTest("partitioned", Map.of("postgres.partitioning.enabled", "true", "postgres.partitioning.version-interval", "year"))
+        };
+    }
+
+    final String configurationName;
+    final Map<String, String> configuration;
+
+    PostgresIntegrationTest(String configurationName, Map<String, String> configuration) {
         super("lds-provider-postgres-integration-test");
+        this.configurationName = configurationName;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public String getTestName() {
+        return configurationName;
     }
 
     @BeforeClass
     public void setup() {
-        persistence = new PostgresDbInitializer().initialize(namespace,
-                Map.of("postgres.driver.host", "postgresdb",
-                        "postgres.driver.port", "5432",
-                        "postgres.driver.user", "lds",
-                        "postgres.driver.password", "lds",
-                        "postgres.driver.database", "lds",
-                        "persistence.fragment.capacity", String.valueOf(Integer.MAX_VALUE)
-                ),
+        Map<String, String> configuration = TestDatabase.configuration(Map.of(
+                "postgres.pool.max-size", "4", // every configuration holds a pool while the suite runs
+                "persistence.fragment.capacity", String.valueOf(Integer.MAX_VALUE)
+        ));
+        configuration.putAll(this.configuration);
+        persistence = new PostgresDbInitializer().initialize(namespace, configuration,
                 Set.of("Person", "Address", "FunkyLongAddress"),
                 null);
     }
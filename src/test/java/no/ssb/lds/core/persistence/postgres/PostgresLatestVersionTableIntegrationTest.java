@@ -0,0 +1,120 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresLatestVersionTableIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-latest-version-table-integration-test";
+    static final String ENTITY = "LatestPerson";
+    static final ZonedDateTime V1 = VERSION;
+    static final ZonedDateTime V2 = V1.plusDays(1);
+    static final ZonedDateTime SNAPSHOT = V1.plusDays(2);
+
+    public PostgresLatestVersionTableIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of("postgres.latest-version-table.enabled", "true"));
+    }
+
+    static Flowable<Fragment> person(String id, ZonedDateTime version, String name) {
+        return Flowable.just(fragment(NAMESPACE, ENTITY, id, version, "$.name", name));
+    }
+
+    List<String> names(Flowable<Fragment> fragments) {
+        return fragments.map(fragment -> new String(fragment.value(), StandardCharsets.UTF_8)).toList().blockingGet();
+    }
+
+    static Timestamp latestVersion(Transaction tx, String id) throws SQLException {
+        try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement("SELECT version FROM namespace_latest WHERE entity = ? AND id = ?")) {
+            ps.setString(1, ENTITY);
+            ps.setString(2, id);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                return resultSet.next() ? resultSet.getTimestamp(1) : null;
+            }
+        }
+    }
+
+    static void pointLatestVersionAt(Transaction tx, String id, ZonedDateTime version) throws SQLException {
+        try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement("UPDATE namespace_latest SET version = ? WHERE entity = ? AND id = ?")) {
+            ps.setTimestamp(1, new Timestamp(version.toInstant().toEpochMilli()));
+            ps.setString(2, ENTITY);
+            ps.setString(3, id);
+            ps.executeUpdate();
+        }
+    }
+
+    static void removeLatestVersion(Transaction tx, String id) throws SQLException {
+        try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement("DELETE FROM namespace_latest WHERE entity = ? AND id = ?")) {
+            ps.setString(1, ENTITY);
+            ps.setString(2, id);
+            ps.executeUpdate();
+        }
+    }
+
+    @Test
+    public void thatReadsResolveVersionThroughLatestVersionTable() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, person("1", V1, "John")).blockingAwait();
+            persistence.createOrOverwrite(tx, person("1", V2, "Johnny")).blockingAwait();
+            assertEquals(latestVersion(tx, "1"), new Timestamp(V2.toInstant().toEpochMilli()));
+            assertEquals(names(persistence.read(tx, SNAPSHOT, NAMESPACE, ENTITY, "1")), List.of("Johnny"));
+
+            // a pointer to an older version is only visible to reads that use the table
+            pointLatestVersionAt(tx, "1", V1);
+            assertEquals(names(persistence.read(tx, SNAPSHOT, NAMESPACE, ENTITY, "1")), List.of("John"));
+            assertEquals(names(persistence.readDocuments(tx, SNAPSHOT, NAMESPACE, ENTITY, List.of("1"))), List.of("John"));
+            assertEquals(names(persistence.readAll(tx, SNAPSHOT, NAMESPACE, ENTITY, Range.unbounded())), List.of("John"));
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatSeveralVersionsOfDocumentCanBeWrittenInOneBatch() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.concat(person("1", V2, "Johnny"), person("1", V1, "John"), person("2", V1, "Jane"))).blockingAwait();
+
+            assertEquals(latestVersion(tx, "1"), new Timestamp(V2.toInstant().toEpochMilli()));
+            assertEquals(latestVersion(tx, "2"), new Timestamp(V1.toInstant().toEpochMilli()));
+            assertEquals(names(persistence.read(tx, SNAPSHOT, NAMESPACE, ENTITY, "1")), List.of("Johnny"));
+            assertEquals(names(persistence.read(tx, V1, NAMESPACE, ENTITY, "1")), List.of("John"));
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatDocumentsWithoutLatestVersionAreReadFromVersionHistory() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.concat(person("1", V1, "John"), person("1", V2, "Johnny"), person("2", V1, "Jane"))).blockingAwait();
+            removeLatestVersion(tx, "1");
+
+            assertEquals(names(persistence.read(tx, SNAPSHOT, NAMESPACE, ENTITY, "1")), List.of("Johnny"));
+            assertEquals(names(persistence.readDocuments(tx, SNAPSHOT, NAMESPACE, ENTITY, List.of("1", "2", "1"))), List.of("Johnny", "Jane"));
+            assertEquals(names(persistence.readAll(tx, SNAPSHOT, NAMESPACE, ENTITY, Range.unbounded())), List.of("Johnny", "Jane"));
+            assertEquals(names(persistence.readAll(tx, V1, NAMESPACE, ENTITY, Range.unbounded())), List.of("John", "Jane"));
+        } finally {
+            tx.cancel();
+        }
+    }
+}
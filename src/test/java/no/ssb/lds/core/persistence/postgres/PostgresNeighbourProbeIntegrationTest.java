@@ -0,0 +1,52 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Checks that the hasNext/hasPrevious existence probes answer like the readAll based implementation they replaced.
+ * Their latency is compared by NeighbourProbeBenchmark.
+ */
+public class PostgresNeighbourProbeIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-neighbour-probe-integration-test";
+    static final String ENTITY = "ProbedPerson";
+
+    public PostgresNeighbourProbeIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of());
+    }
+
+    static Fragment fragment(String id, ZonedDateTime version) {
+        return fragment(NAMESPACE, ENTITY, id, version, "$.name", "name-" + id);
+    }
+
+    @Test
+    public void thatExistenceProbesAnswerLikeReadAll() {
+        ZonedDateTime snapshot = VERSION.plusDays(1);
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment("b", VERSION), fragment("d", VERSION), fragment("f", VERSION))).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment("h", snapshot.plusDays(1)))).blockingAwait(); // not visible at snapshot
+
+            for (String id : List.of("a", "b", "c", "d", "e", "f", "g", "h", "i")) {
+                boolean readAllHasNext = !persistence.readAll(tx, snapshot, NAMESPACE, ENTITY, Range.firstAfter(1, id)).isEmpty().blockingGet();
+                boolean readAllHasPrevious = !persistence.readAll(tx, snapshot, NAMESPACE, ENTITY, Range.lastBefore(1, id)).isEmpty().blockingGet();
+                assertEquals(persistence.hasNext(tx, snapshot, NAMESPACE, ENTITY, id).blockingGet().booleanValue(), readAllHasNext, "hasNext " + id);
+                assertEquals(persistence.hasPrevious(tx, snapshot, NAMESPACE, ENTITY, id).blockingGet().booleanValue(), readAllHasPrevious, "hasPrevious " + id);
+            }
+        } finally {
+            tx.cancel();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class PostgresOperationMetricsIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-operation-metrics-integration-test";
+    static final String ENTITY = "MeasuredPerson";
+    static final String POOL = "postgres-operation-metrics-test";
+
+    public PostgresOperationMetricsIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of(
+                "postgres.operation.slow-statement-threshold-ms", "1",
+                "postgres.pool.name", POOL));
+    }
+
+    static Fragment fragment(String id, String path, String value) {
+        return fragment(NAMESPACE, ENTITY, id, VERSION, path, value);
+    }
+
+    @Test
+    public void thatOperationsAreRecordedInTransactionStatisticsAndExported() throws Exception {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+        persistence.createOrOverwrite(tx, Flowable.just(fragment("1", "$.name", "Alice"), fragment("1", "$.email", "alice@example.com"))).blockingAwait();
+        assertEquals(persistence.read(tx, VERSION.plusDays(1), NAMESPACE, ENTITY, "1").count().blockingGet().longValue(), 2);
+        TransactionStatistics statistics = tx.commit().join();
+
+        Map<String, Integer> map = statistics.map();
+        assertEquals(map.get("deleteAllEntities"), Integer.valueOf(1));
+        assertEquals(map.get("createOrOverwrite"), Integer.valueOf(1));
+        assertEquals(map.get("createOrOverwrite.fragments"), Integer.valueOf(2));
+        assertEquals(map.get("createOrOverwrite.bytes"), Integer.valueOf("Alice".length() + "alice@example.com".length()));
+        assertEquals(map.get("read"), Integer.valueOf(1));
+        assertEquals(map.get("read.fragments"), Integer.valueOf(2));
+        assertTrue(map.get("statements") >= 3);
+        assertTrue(map.get("batches") >= 1);
+
+        ObjectName read = new ObjectName(PoolMetrics.DOMAIN + ":type=Operation,pool=" + ObjectName.quote(POOL) + ",name=" + ObjectName.quote("read"));
+        assertTrue((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(read, "Count") >= 1);
+    }
+
+    @Test
+    public void thatBeansOfOtherInstancesAreNotReplaced() throws Exception {
+        ObjectName pool = new ObjectName(PoolMetrics.DOMAIN + ":type=ConnectionPool,name=" + ObjectName.quote(POOL));
+        PoolMetrics.Tracker tracker = new PoolMetrics.Tracker(POOL, null);
+        try {
+            // the tracker without pool stats would fail to answer if it had replaced the bean of the pool
+            assertTrue((Integer) ManagementFactory.getPlatformMBeanServer().getAttribute(pool, "MaxConnections") > 0);
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(pool + ",instance=2")));
+        } finally {
+            tracker.close();
+        }
+    }
+}
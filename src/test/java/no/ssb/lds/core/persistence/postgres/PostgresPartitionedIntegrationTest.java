@@ -0,0 +1,112 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresPartitionedIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-partitioned-integration-test";
+    static final String ENTITY = "PartitionedPerson";
+    static final String UNMANAGED_ENTITY = "UnpartitionedPerson";
+    static final ZonedDateTime V2018 = ZonedDateTime.of(2018, 6, 1, 0, 0, 0, 0, ZoneId.of("Etc/UTC"));
+    static final ZonedDateTime V2019 = V2018.plusYears(1);
+    static final ZonedDateTime V2010 = V2018.minusYears(8);
+
+    public PostgresPartitionedIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of(
+                "postgres.partitioning.enabled", "true",
+                "postgres.partitioning.version-interval", "year"));
+    }
+
+    @BeforeClass
+    public void setup() {
+        persistence.createVersionPartitions(ENTITY, V2018, V2019);
+    }
+
+    static Flowable<Fragment> person(String id, ZonedDateTime version) {
+        return person(ENTITY, id, version);
+    }
+
+    static Flowable<Fragment> person(String entity, String id, ZonedDateTime version) {
+        return Flowable.just(fragment(NAMESPACE, entity, id, version, "$.name", "John"));
+    }
+
+    /**
+     * @return partition=rows for each partition holding rows of the entity.
+     */
+    static List<String> rowsByPartition(Transaction tx, String entity) throws SQLException {
+        List<String> partitions = new ArrayList<>();
+        try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement(
+                "SELECT tableoid::regclass::text, count(*) FROM namespace_partitioned WHERE entity = ? GROUP BY 1 ORDER BY 1")) {
+            ps.setString(1, entity);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                while (resultSet.next()) {
+                    partitions.add(resultSet.getString(1) + "=" + resultSet.getLong(2));
+                }
+            }
+        }
+        return partitions;
+    }
+
+    @Test
+    public void thatVersionsAreRoutedToPartitionsOfEntityAndYear() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.concat(person("1", V2018), person("1", V2019), person("2", V2019))).blockingAwait();
+
+            assertEquals(rowsByPartition(tx, ENTITY), List.of(
+                    "\"namespace_partitioned_" + ENTITY + "_2018\"=1",
+                    "\"namespace_partitioned_" + ENTITY + "_2019\"=2"));
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatDocumentCanBeMarkedDeletedInVersionWithoutPartition() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, person("1", V2018)).blockingAwait();
+            persistence.markDeleted(tx, NAMESPACE, ENTITY, "1", V2010, PersistenceDeletePolicy.FAIL_IF_INCOMING_LINKS).blockingAwait();
+
+            assertEquals(rowsByPartition(tx, ENTITY), List.of(
+                    "\"namespace_partitioned_" + ENTITY + "$default\"=1",
+                    "\"namespace_partitioned_" + ENTITY + "_2018\"=1"));
+            assertEquals(persistence.read(tx, V2010, NAMESPACE, ENTITY, "1").count().blockingGet().longValue(), 0);
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatEntitiesWithoutPartitionAreStoredInDefaultPartition() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, UNMANAGED_ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, person(UNMANAGED_ENTITY, "1", V2018)).blockingAwait();
+
+            assertEquals(rowsByPartition(tx, UNMANAGED_ENTITY), List.of("\"namespace_partitioned$default\"=1"));
+            assertEquals(persistence.read(tx, V2018, NAMESPACE, UNMANAGED_ENTITY, "1").count().blockingGet().longValue(), 1);
+        } finally {
+            tx.cancel();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresPipelinedWriteIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-pipelined-write-integration-test";
+    static final String ENTITY = "PipelinedPerson";
+
+    public PostgresPipelinedWriteIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of("postgres.write.mode", "pipelined", "postgres.write.batch.size", "4"));
+    }
+
+    static Fragment fragment(int id) {
+        return fragment(NAMESPACE, ENTITY, String.valueOf(id), VERSION, "$.name", "name-" + id);
+    }
+
+    @Test
+    public void thatNextChunkIsCollectedWhileChunkIsWrittenAndChunksAreWrittenInOrder() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            Deque<Runnable> writeThread = new ArrayDeque<>(); // chunks are written when the test runs them
+            Executor executor = writeThread::add;
+            List<String> written = new ArrayList<>();
+            BatchFragmentWriter batchWriter = new BatchFragmentWriter((PostgresTransaction) tx, persistence.layout, persistence.entityTables, persistence.batchSizer, false) {
+                @Override
+                void write(Fragment fragment) throws SQLException {
+                    written.add(fragment.id());
+                    super.write(fragment);
+                }
+            };
+            PipelinedFragmentWriter writer = new PipelinedFragmentWriter(batchWriter, persistence.batchSizer, executor);
+
+            for (int i = 0; i < 4; i++) {
+                writer.write(fragment(i));
+            }
+            assertEquals(writeThread.size(), 1);
+            for (int i = 4; i < 7; i++) {
+                writer.write(fragment(i)); // does not wait for the first chunk
+            }
+            assertEquals(writeThread.size(), 1);
+            assertEquals(written, List.of());
+
+            writeThread.poll().run();
+            assertEquals(written, List.of("0", "1", "2", "3"));
+            writer.write(fragment(7));
+            assertEquals(writeThread.size(), 1);
+            writeThread.poll().run();
+            writer.finish();
+
+            assertEquals(written, List.of("0", "1", "2", "3", "4", "5", "6", "7"));
+            assertEquals(persistence.readAll(tx, VERSION, NAMESPACE, ENTITY, Range.unbounded()).count().blockingGet().longValue(), 8);
+        } finally {
+            tx.cancel();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.r2dbc.spi.R2dbcException;
+import no.ssb.lds.core.persistence.test.PersistenceIntegrationTest;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresR2dbcIntegrationTest extends PersistenceIntegrationTest {
+
+    public PostgresR2dbcIntegrationTest() {
+        super("lds-provider-postgres-r2dbc-integration-test");
+    }
+
+    @BeforeClass
+    public void setup() {
+        persistence = new PostgresR2dbcInitializer().initialize(namespace,
+                TestDatabase.configuration(Map.of("persistence.fragment.capacity", String.valueOf(Integer.MAX_VALUE))),
+                Set.of("Person", "Address", "FunkyLongAddress"),
+                null);
+    }
+
+    @AfterClass
+    public void teardown() {
+        if (persistence != null) {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void thatIsolatedTransactionIsRetriedOnSerializationFailureOffTheCommonPool() {
+        R2dbcTransactionFactory transactionFactory = new R2dbcTransactionFactory(PostgresR2dbcInitializer.openConnectionPool(TestDatabase.configuration(Map.of())));
+        try {
+            AtomicInteger attempts = new AtomicInteger();
+            AtomicInteger attemptsInForkJoinPool = new AtomicInteger();
+            String result = transactionFactory.runAsyncInIsolatedTransaction(tx -> {
+                if (ForkJoinTask.inForkJoinPool()) {
+                    attemptsInForkJoinPool.incrementAndGet();
+                }
+                if (attempts.incrementAndGet() == 1) {
+                    throw new R2dbcException() {
+                        @Override
+                        public String getSqlState() {
+                            return "40001"; // serialization_failure
+                        }
+                    };
+                }
+                return "committed";
+            }, false).join();
+
+            assertEquals(result, "committed");
+            assertEquals(attempts.get(), 2);
+            assertEquals(attemptsInForkJoinPool.get(), 0);
+        } finally {
+            transactionFactory.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresReadDocumentsIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-read-documents-integration-test";
+    static final String ENTITY = "BatchReadPerson";
+
+    public PostgresReadDocumentsIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of("postgres.read.io-threads", "1"));
+    }
+
+    static Fragment fragment(String id, ZonedDateTime version, String path, String value) {
+        return fragment(NAMESPACE, ENTITY, id, version, path, value);
+    }
+
+    @Test
+    public void thatReadDocumentsReturnsLatestVersionOfEachDocumentInIdOrder() {
+        ZonedDateTime v2 = VERSION.plusDays(1);
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(
+                    fragment("b", VERSION, "$.name", "Bob"),
+                    fragment("b", VERSION, "$.city", "Oslo"))).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment("b", v2, "$.name", "Bobby"))).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment("a", VERSION, "$.name", "Alice"))).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment("c", v2, "$.name", "Carol"))).blockingAwait();
+
+            List<String> fragments = persistence.readDocuments(tx, v2.plusHours(1), NAMESPACE, ENTITY, List.of("c", "b", "a", "missing"))
+                    .map(f -> f.id() + ":" + new String(f.value(), StandardCharsets.UTF_8))
+                    .toList().blockingGet();
+            assertEquals(fragments, List.of("a:Alice", "b:Bobby", "c:Carol"));
+
+            List<String> atFirstVersion = persistence.readDocuments(tx, VERSION, NAMESPACE, ENTITY, List.of("a", "b", "c"))
+                    .map(f -> f.id() + f.path())
+                    .toList().blockingGet();
+            assertEquals(atFirstVersion, List.of("a$.name", "b$.city", "b$.name"));
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void thatSubscribersMayBlockOnOtherReadsWithoutStarvingReadThreads() {
+        Transaction tx = persistence.createTransaction(false);
+        Transaction other = persistence.createTransaction(true);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment("a", VERSION, "$.name", "Alice"), fragment("b", VERSION, "$.name", "Bob"))).blockingAwait();
+
+            // with a single read thread, this only completes if fragments are not emitted on that thread
+            List<String> fragments = persistence.readDocuments(tx, VERSION, NAMESPACE, ENTITY, List.of("a", "b"))
+                    .doOnNext(f -> persistence.read(other, VERSION, NAMESPACE, ENTITY, f.id()).toList().blockingGet())
+                    .map(f -> f.id() + ":" + new String(f.value(), StandardCharsets.UTF_8))
+                    .toList().blockingGet();
+            assertEquals(fragments, List.of("a:Alice", "b:Bob"));
+        } finally {
+            other.cancel();
+            tx.cancel();
+        }
+    }
+}
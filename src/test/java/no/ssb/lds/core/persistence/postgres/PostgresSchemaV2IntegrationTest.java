@@ -0,0 +1,80 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresSchemaV2IntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-schema-v2-integration-test";
+    static final String ENTITY = "CompactPerson";
+
+    public PostgresSchemaV2IntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of("postgres.schema.version", "2"));
+    }
+
+    static Fragment fragment(String path, String value) {
+        return fragment(NAMESPACE, ENTITY, "1", VERSION, path, value);
+    }
+
+    @Test
+    public void thatPathsAreStoredOnceInPathTableAndReferencedById() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(
+                    fragment("$.emails[0].address", "john@example.com"),
+                    fragment("$.emails[1].address", "johnny@example.com"),
+                    fragment("$.name", "John"))).blockingAwait();
+
+            List<String> storedPaths = new ArrayList<>();
+            try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement(
+                    "SELECT p.path, count(*) FROM namespace_v2 n JOIN namespace_path p ON p.path_id = n.path_id " +
+                            "WHERE n.entity = ? GROUP BY p.path ORDER BY p.path")) {
+                ps.setString(1, ENTITY);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    while (resultSet.next()) {
+                        storedPaths.add(resultSet.getString(1) + "=" + resultSet.getInt(2));
+                    }
+                }
+            }
+            assertEquals(storedPaths, List.of("$.emails[].address=2", "$.name=1"));
+
+            assertEquals(persistence.read(tx, VERSION, NAMESPACE, ENTITY, "1").map(Fragment::path).toList().blockingGet(),
+                    List.of("$.emails[0].address", "$.emails[1].address", "$.name"));
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatPathRegisteredByRolledBackTransactionIsRegisteredAgain() {
+        Transaction rolledBack = persistence.createTransaction(false);
+        try {
+            persistence.createOrOverwrite(rolledBack, Flowable.just(fragment("$.rolledBack", "John"))).blockingAwait();
+        } finally {
+            rolledBack.cancel();
+        }
+
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment("$.rolledBack", "John"))).blockingAwait();
+            assertEquals(persistence.read(tx, VERSION, NAMESPACE, ENTITY, "1").map(Fragment::path).toList().blockingGet(),
+                    List.of("$.rolledBack"));
+        } finally {
+            tx.cancel();
+        }
+    }
+}
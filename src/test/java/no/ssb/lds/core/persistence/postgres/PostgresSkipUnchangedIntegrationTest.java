@@ -0,0 +1,59 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresSkipUnchangedIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-skip-unchanged-integration-test";
+    static final String ENTITY = "ResentPerson";
+    static final ZonedDateTime V1 = VERSION;
+    static final ZonedDateTime V2 = V1.plusDays(1);
+    static final ZonedDateTime V3 = V1.plusDays(2);
+
+    public PostgresSkipUnchangedIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of("postgres.write.skip-unchanged", "true"));
+    }
+
+    static Flowable<Fragment> person(ZonedDateTime version, String name) {
+        return Flowable.just(
+                fragment(NAMESPACE, ENTITY, "1", version, "$.name", name),
+                fragment(NAMESPACE, ENTITY, "1", version, "$.email", "john@example.com"));
+    }
+
+    List<ZonedDateTime> versions(Transaction tx) {
+        return persistence.readVersions(tx, NAMESPACE, ENTITY, "1", Range.unbounded())
+                .map(fragment -> fragment.timestamp().withZoneSameInstant(V1.getZone())).distinct().sorted().toList().blockingGet();
+    }
+
+    @Test
+    public void thatResentDocumentsWithUnchangedContentAreNotWritten() {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, person(V1, "John")).blockingAwait();
+            persistence.createOrOverwrite(tx, person(V1, "John")).blockingAwait();
+            persistence.createOrOverwrite(tx, person(V2, "John")).blockingAwait();
+            assertEquals(versions(tx), List.of(V1));
+
+            persistence.createOrOverwrite(tx, person(V3, "Johnny")).blockingAwait();
+            assertEquals(versions(tx), List.of(V1, V3));
+
+            persistence.markDeleted(tx, NAMESPACE, ENTITY, "1", V3, null).blockingAwait();
+            persistence.createOrOverwrite(tx, person(V3, "Johnny")).blockingAwait();
+            assertEquals(persistence.read(tx, V3, NAMESPACE, ENTITY, "1").count().blockingGet().longValue(), 2);
+        } finally {
+            tx.cancel();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class PostgresTablePerEntityIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-table-per-entity-integration-test";
+    static final String MANAGED_ENTITY = "OwnTablePerson";
+    static final String UNMANAGED_ENTITY = "SharedTablePerson";
+
+    public PostgresTablePerEntityIntegrationTest() {
+        super(NAMESPACE, Set.of(MANAGED_ENTITY), Map.of("postgres.table-per-entity.enabled", "true"));
+    }
+
+    static Fragment fragment(String entity, String id) {
+        return fragment(NAMESPACE, entity, id, VERSION, "$.name", "John");
+    }
+
+    static long rows(Transaction tx, String table, String entity) throws SQLException {
+        try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement("SELECT count(*) FROM " + table + " WHERE entity = ?")) {
+            ps.setString(1, entity);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }
+    }
+
+    static boolean tableExists(Transaction tx, String table) throws SQLException {
+        try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            ps.setString(1, table);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                resultSet.next();
+                return resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    @Test
+    public void thatManagedEntitiesAreWrittenToTablesOfTheirOwn() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            assertEquals(tableExists(tx, "\"namespace_" + MANAGED_ENTITY + "\""), true);
+
+            persistence.deleteAllEntities(tx, NAMESPACE, MANAGED_ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment(MANAGED_ENTITY, "1"), fragment(MANAGED_ENTITY, "2"))).blockingAwait();
+
+            assertEquals(rows(tx, "\"namespace_" + MANAGED_ENTITY + "\"", MANAGED_ENTITY), 2);
+            assertEquals(rows(tx, "namespace", MANAGED_ENTITY), 0);
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatOtherEntitiesAreWrittenToBaseTableWithoutCreatingTables() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, UNMANAGED_ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, Flowable.just(fragment(UNMANAGED_ENTITY, "1"))).blockingAwait();
+
+            assertEquals(tableExists(tx, "\"namespace_" + UNMANAGED_ENTITY + "\""), false);
+            assertEquals(rows(tx, "namespace", UNMANAGED_ENTITY), 1);
+            assertEquals(persistence.read(tx, VERSION, NAMESPACE, UNMANAGED_ENTITY, "1").count().blockingGet().longValue(), 1);
+        } finally {
+            tx.cancel();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.core.persistence.postgres.api.ValuePredicate;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class PostgresValueIndexIntegrationTest extends PostgresFeatureIntegrationTest {
+
+    static final String NAMESPACE = "lds-provider-postgres-value-index-integration-test";
+    static final String ENTITY = "IndexedPerson";
+
+    public PostgresValueIndexIntegrationTest() {
+        super(NAMESPACE, Set.of(ENTITY), Map.of(
+                "postgres.index.paths", ENTITY + ":$.email:hash," + ENTITY + ":$.age:numeric," + ENTITY + ":$.born:date," + ENTITY + ":$.name:text"));
+    }
+
+    static Flowable<Fragment> person(String id, String name, String email, String age, String born) {
+        return Flowable.just(
+                fragment(id, "$.name", name),
+                fragment(id, "$.email", email),
+                fragment(id, "$.age", age),
+                fragment(id, "$.born", born));
+    }
+
+    static Fragment fragment(String id, String path, String value) {
+        return fragment(NAMESPACE, ENTITY, id, VERSION, path, value);
+    }
+
+    List<String> ids(Transaction tx, ValuePredicate predicate) {
+        return persistence.find(tx, VERSION.plusDays(1), NAMESPACE, ENTITY, predicate, Range.unbounded())
+                .map(Fragment::id).distinct().toList().blockingGet();
+    }
+
+    @Test
+    public void thatFindMatchesEqualityRangeAndPrefixPredicates() {
+        Transaction tx = persistence.createTransaction(false);
+        try {
+            persistence.deleteAllEntities(tx, NAMESPACE, ENTITY, List.of()).blockingAwait();
+            persistence.createOrOverwrite(tx, person("1", "Alice", "alice@example.com", "34", "1985-03-01T00:00:00Z")).blockingAwait();
+            persistence.createOrOverwrite(tx, person("2", "Albert", "albert@example.com", "9", "2010-11-20T00:00:00Z")).blockingAwait();
+            persistence.createOrOverwrite(tx, person("3", "Bob", "bob@example.com", "71", "1948-06-15T00:00:00Z")).blockingAwait();
+
+            assertEquals(ids(tx, ValuePredicate.equalTo("$.email", "bob@example.com".getBytes(StandardCharsets.UTF_8))), List.of("3"));
+            assertEquals(ids(tx, ValuePredicate.range("$.age", ValuePredicate.Type.NUMERIC, "10", "71")), List.of("1"));
+            assertEquals(ids(tx, ValuePredicate.range("$.age", ValuePredicate.Type.NUMERIC, "10", null)), List.of("1", "3"));
+            assertEquals(ids(tx, ValuePredicate.range("$.born", ValuePredicate.Type.DATE, null, "1990-01-01T00:00:00Z")), List.of("1", "3"));
+            assertEquals(ids(tx, ValuePredicate.startsWith("$.name", "Al")), List.of("1", "2"));
+            assertEquals(persistence.find(tx, VERSION.plusDays(1), NAMESPACE, ENTITY, "$.name", "Bob".getBytes(StandardCharsets.UTF_8), Range.unbounded())
+                    .map(Fragment::id).distinct().toList().blockingGet(), List.of("3"));
+        } finally {
+            tx.cancel();
+        }
+    }
+
+    @Test
+    public void thatIndexesAreBuiltValidAndOnlyConfiguredPathsAreCovered() throws SQLException {
+        Transaction tx = persistence.createTransaction(false);
+        try (PreparedStatement ps = ((PostgresTransaction) tx).connection.prepareStatement(
+                "SELECT count(*) FILTER (WHERE i.indisvalid), count(*) FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid " +
+                        "WHERE c.relname LIKE 'namespace\\_%\\_idx' AND pg_get_indexdef(i.indexrelid) LIKE '%" + ENTITY + "%'")) {
+            try (ResultSet resultSet = ps.executeQuery()) {
+                resultSet.next();
+                assertEquals(resultSet.getLong(2), 4);
+                assertEquals(resultSet.getLong(1), 4);
+            }
+        } finally {
+            tx.cancel();
+        }
+        assertTrue(persistence.valueIndexes.covers(ENTITY, "$.email"));
+        assertFalse(persistence.valueIndexes.covers(ENTITY, "$.address"));
+    }
+}
@@ -3,40 +3,31 @@ package no.ssb.lds.core.persistence.postgres;
 import org.reactivestreams.Publisher;
 import org.reactivestreams.tck.PublisherVerification;
 import org.reactivestreams.tck.TestEnvironment;
+import org.testng.annotations.AfterClass;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class ResultSetPublisherIntegrationTest extends PublisherVerification<ResultSet> {
+public class ResultSetPublisherIntegrationTest extends PublisherVerification<List<Integer>> {
 
     public static final long DEFAULT_TIMEOUT_MILLIS = 100;
     public static final long DEFAULT_NO_SIGNALS_TIMEOUT_MILLIS = 100;
     public static final long PUBLISHER_REFERENCE_CLEANUP_TIMEOUT_MILLIS = 500;
 
-    final PostgresDbInitializer initializer;
     final PostgresPersistence postgresPersistence;
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
 
     PostgresTransaction tx;
 
     public ResultSetPublisherIntegrationTest() {
         super(new TestEnvironment(DEFAULT_TIMEOUT_MILLIS, DEFAULT_NO_SIGNALS_TIMEOUT_MILLIS), PUBLISHER_REFERENCE_CLEANUP_TIMEOUT_MILLIS);
-        initializer = new PostgresDbInitializer();
-        initializer.initialize("ns",
-                Map.of(
-                        "postgres.driver.host", "postgresdb",
-                        "postgres.driver.port", "5432",
-                        "postgres.driver.user", "lds",
-                        "postgres.driver.password", "lds",
-                        "postgres.driver.database", "lds"
-                ),
-                Set.of("A"),
-                null
-        );
-        postgresPersistence = initializer.getPostgresPersistence();
+        postgresPersistence = TestDatabase.open("ns", Set.of("A"), Map.of());
     }
 
     @BeforeMethod
@@ -49,19 +40,26 @@ public class ResultSetPublisherIntegrationTest extends PublisherVerification<Res
         tx.cancel();
     }
 
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdown();
+    }
+
     @Override
-    public Publisher<ResultSet> createPublisher(long elements) {
+    public Publisher<List<Integer>> createPublisher(long elements) {
         rollbackExistingAndBeginNewTransaction();
         try {
-            return new ResultSetPublisher(tx.connection.createStatement().executeQuery("SELECT * FROM GENERATE_SERIES(1, " + Math.min(elements, 1000) + ")"));
+            // one row per batch and a small prefetch exercise chunking and demand across several fetches
+            return new ResultSetPublisher<>(tx.connection.createStatement().executeQuery("SELECT * FROM GENERATE_SERIES(1, " + Math.min(elements, 1000) + ")"),
+                    rs -> rs.getInt(1), executor, 4, 1);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
     @Override
-    public Publisher<ResultSet> createFailedPublisher() {
-        return new ResultSetPublisher(null);
+    public Publisher<List<Integer>> createFailedPublisher() {
+        return new ResultSetPublisher<Integer>(null, rs -> rs.getInt(1), executor, 4, 1);
     }
 
     private void rollbackExistingAndBeginNewTransaction() {
@@ -0,0 +1,31 @@
+package no.ssb.lds.core.persistence.postgres;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Connects integration tests to the postgresdb database, e.g. the one in docker-compose.yml.
+ */
+class TestDatabase {
+
+    /**
+     * @return the connection settings of the test database, with the given provider configuration added.
+     */
+    static Map<String, String> configuration(Map<String, String> overrides) {
+        Map<String, String> configuration = new HashMap<>();
+        configuration.put("postgres.driver.host", "postgresdb");
+        configuration.put("postgres.driver.port", "5432");
+        configuration.put("postgres.driver.user", "lds");
+        configuration.put("postgres.driver.password", "lds");
+        configuration.put("postgres.driver.database", "lds");
+        configuration.putAll(overrides);
+        return configuration;
+    }
+
+    static PostgresPersistence open(String namespace, Set<String> entities, Map<String, String> overrides) {
+        PostgresDbInitializer initializer = new PostgresDbInitializer();
+        initializer.initialize(namespace, configuration(overrides), entities, null);
+        return (PostgresPersistence) initializer.getPostgresPersistence();
+    }
+}